@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+
+import com.tomtom.camera.util.AudioUtil;
+import com.tomtom.camera.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SDK wide pool of configured and started AAC decoders, keyed by stream {@link Format}. Creating and
+ * configuring {@link MediaCodec} is slow on many devices, so decoders are handed out flushed from
+ * the pool and returned to it once audio playback stops. Pool can be pre-warmed with decoders for
+ * default format and recently played ones. Previews using pool {@link #retain()} it, pooled decoders
+ * are released once last of them calls {@link #unretain()}.
+ */
+class AacDecoderPool {
+
+    private static final String TAG = "AacDecoderPool";
+
+    static final int MAX_POOLED_DECODERS = 2;
+    private static final int MAX_RECENT_FORMATS = 4;
+    /** ADTS header of camera's default audio, AAC LC, 48 kHz, mono. */
+    static final byte[] DEFAULT_ADTS_HEADER = {(byte) 0xFF, (byte) 0xF1, 0x4C, 0x40, 0x00, 0x1F, (byte) 0xFC};
+    /** Key of default audio, computed as for received frames so that pre-warmed decoders match. */
+    static final Format DEFAULT_FORMAT = Format.fromHeader(DEFAULT_ADTS_HEADER);
+
+    private static final AacDecoderPool sInstance = new AacDecoderPool(MAX_POOLED_DECODERS);
+
+    private final int mMaxPooledDecoders;
+    /** Pooled decoders, least recently returned first. */
+    private final ArrayDeque<PooledDecoder> mDecoders = new ArrayDeque<>();
+    private final LinkedHashSet<Format> mRecentFormats = new LinkedHashSet<>();
+    private final ArrayList<Format> mWarmingFormats = new ArrayList<>();
+    private final ExecutorService mWarmupExecutor = Executors.newSingleThreadExecutor();
+    private int mUserCount;
+
+    AacDecoderPool(int maxPooledDecoders) {
+        mMaxPooledDecoders = maxPooledDecoders;
+    }
+
+    static AacDecoderPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Provides started decoder for given format, from pool if one is available.
+     * @param format stream format
+     * @return started decoder with no pending input or output
+     * @throws IOException if decoder can't be created
+     */
+    MediaCodec acquire(Format format) throws IOException {
+        MediaCodec codec = take(format);
+        if (codec != null) {
+            return codec;
+        }
+        Logger.debug(TAG, "No pooled decoder for " + format + ", creating one");
+        return create(format);
+    }
+
+    /**
+     * Provides decoder for given format started in asynchronous mode. Pooled decoder is
+     * reconfigured, which still saves allocating codec component.
+     * @param format stream format
+     * @param callback callback receiving decoder's buffers
+     * @param handler handler callback runs on
+     * @return started decoder
+     * @throws IOException if decoder can't be created
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    MediaCodec acquireAsync(Format format, MediaCodec.Callback callback, Handler handler) throws IOException {
+        MediaCodec codec = take(format);
+        if (codec != null) {
+            codec.stop();
+        } else {
+            codec = MediaCodec.createDecoderByType(AudioUtil.AAC_MIME_TYPE);
+        }
+        codec.setCallback(callback, handler);
+        codec.configure(format.createMediaFormat(), null, null, 0);
+        codec.start();
+        return codec;
+    }
+
+    private synchronized MediaCodec take(Format format) {
+        remember(format);
+        Iterator<PooledDecoder> iterator = mDecoders.descendingIterator();
+        while (iterator.hasNext()) {
+            PooledDecoder decoder = iterator.next();
+            if (decoder.mFormat.equals(format)) {
+                iterator.remove();
+                return decoder.mCodec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns decoder to pool. Decoder is flushed, least recently returned decoder is released if
+     * pool is full.
+     * @param format format decoder was acquired for
+     * @param codec decoder obtained with {@link #acquire(Format)}
+     */
+    void recycle(Format format, MediaCodec codec) {
+        PooledDecoder evicted = null;
+        try {
+            codec.flush();
+        } catch (IllegalStateException e) {
+            Logger.warning(TAG, "Decoder can't be flushed, releasing it: " + e.getMessage());
+            release(codec);
+            return;
+        }
+        synchronized (this) {
+            mDecoders.offer(new PooledDecoder(format, codec));
+            if (mDecoders.size() > mMaxPooledDecoders) {
+                evicted = mDecoders.poll();
+            }
+        }
+        if (evicted != null) {
+            release(evicted.mCodec);
+        }
+    }
+
+    /**
+     * Returns decoder obtained with {@link #acquireAsync(Format, MediaCodec.Callback, Handler)} to
+     * pool, switched back to synchronous mode.
+     * @param format format decoder was acquired for
+     * @param codec decoder in asynchronous mode
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    void recycleAsync(Format format, MediaCodec codec) {
+        try {
+            codec.stop();
+            codec.setCallback(null);
+            codec.configure(format.createMediaFormat(), null, null, 0);
+            codec.start();
+        } catch (IllegalStateException e) {
+            Logger.warning(TAG, "Decoder can't be reconfigured, releasing it: " + e.getMessage());
+            codec.release();
+            return;
+        }
+        recycle(format, codec);
+    }
+
+    /**
+     * Registers user of pool and pre-warms it. Each call has to be paired with {@link #unretain()}.
+     */
+    void retain() {
+        synchronized (this) {
+            mUserCount++;
+        }
+        prewarm();
+    }
+
+    /**
+     * Unregisters user of pool, pooled decoders are released when no user is left.
+     */
+    void unretain() {
+        synchronized (this) {
+            if (mUserCount == 0 || --mUserCount > 0) {
+                return;
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Creates decoders for default and recently played formats in background, if pool doesn't
+     * hold them already.
+     */
+    void prewarm() {
+        List<Format> formats = getPrewarmFormats();
+        for (int i = 0; i < formats.size() && i < mMaxPooledDecoders; i++) {
+            prewarm(formats.get(i));
+        }
+    }
+
+    /**
+     * Provides formats to pre-warm, most recently played first, default one last unless played.
+     * @return formats in pre-warming order
+     */
+    List<Format> getPrewarmFormats() {
+        ArrayList<Format> formats = new ArrayList<>(MAX_RECENT_FORMATS + 1);
+        synchronized (this) {
+            formats.addAll(mRecentFormats);
+        }
+        Collections.reverse(formats);
+        if (!formats.contains(DEFAULT_FORMAT)) {
+            formats.add(DEFAULT_FORMAT);
+        }
+        return formats;
+    }
+
+    private void prewarm(final Format format) {
+        synchronized (this) {
+            if (mWarmingFormats.contains(format)) {
+                return;
+            }
+            for (PooledDecoder decoder : mDecoders) {
+                if (decoder.mFormat.equals(format)) {
+                    return;
+                }
+            }
+            mWarmingFormats.add(format);
+        }
+        mWarmupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recycle(format, create(format));
+                    Logger.debug(TAG, "Pre-warmed decoder for " + format);
+                } catch (IOException e) {
+                    Logger.warning(TAG, "Pre-warming decoder failed: " + e.getMessage());
+                } catch (IllegalStateException e) {
+                    Logger.warning(TAG, "Pre-warming decoder failed: " + e.getMessage());
+                } finally {
+                    synchronized (AacDecoderPool.this) {
+                        mWarmingFormats.remove(format);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases all pooled decoders.
+     */
+    void clear() {
+        ArrayList<PooledDecoder> decoders;
+        synchronized (this) {
+            decoders = new ArrayList<>(mDecoders);
+            mDecoders.clear();
+        }
+        for (PooledDecoder decoder : decoders) {
+            release(decoder.mCodec);
+        }
+    }
+
+    private void remember(Format format) {
+        mRecentFormats.remove(format);
+        mRecentFormats.add(format);
+        if (mRecentFormats.size() > MAX_RECENT_FORMATS) {
+            Iterator<Format> iterator = mRecentFormats.iterator();
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static MediaCodec create(Format format) throws IOException {
+        MediaFormat mediaFormat = format.createMediaFormat();
+        MediaCodec codec = MediaCodec.createDecoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
+        codec.configure(mediaFormat, null, null, 0);
+        codec.start();
+        return codec;
+    }
+
+    private static void release(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Logger.warning(TAG, "Stopping decoder failed: " + e.getMessage());
+        }
+        codec.release();
+    }
+
+    /**
+     * AAC stream format, sample rate and codec specific data computed from ADTS header.
+     */
+    static final class Format {
+
+        private final int mSampleRate;
+        private final byte[] mCsd;
+
+        Format(int sampleRate, byte[] csd) {
+            mSampleRate = sampleRate;
+            mCsd = csd;
+        }
+
+        /**
+         * Reads format of stream from ADTS header of its frame.
+         * @param frame audio frame
+         * @return stream format
+         */
+        static Format fromFrame(Frame frame) {
+            return fromHeader(frame.copyBytes());
+        }
+
+        /**
+         * Reads format of stream from ADTS header.
+         * @param header bytes starting with ADTS header
+         * @return stream format
+         */
+        static Format fromHeader(byte[] header) {
+            ByteBuffer csd = AudioUtil.getCsdForFrame(header);
+            byte[] csdBytes = new byte[csd.remaining()];
+            csd.get(csdBytes);
+            return new Format(AudioUtil.getSampleRateFromAacFrame(header), csdBytes);
+        }
+
+        int getSampleRate() {
+            return mSampleRate;
+        }
+
+        MediaFormat createMediaFormat() {
+            MediaFormat format = MediaFormat.createAudioFormat(AudioUtil.AAC_MIME_TYPE, mSampleRate, 1);
+            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate);
+            format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(mCsd));
+            return format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Format)) {
+                return false;
+            }
+            Format format = (Format) o;
+            return mSampleRate == format.mSampleRate && Arrays.equals(mCsd, format.mCsd);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSampleRate + Arrays.hashCode(mCsd);
+        }
+
+        @Override
+        public String toString() {
+            return mSampleRate + " Hz, csd " + Arrays.toString(mCsd);
+        }
+    }
+
+    private static final class PooledDecoder {
+
+        private final Format mFormat;
+        private final MediaCodec mCodec;
+
+        PooledDecoder(Format format, MediaCodec codec) {
+            mFormat = format;
+            mCodec = codec;
+        }
+    }
+}
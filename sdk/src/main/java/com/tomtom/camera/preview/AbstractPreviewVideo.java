@@ -16,17 +16,24 @@
 
 package com.tomtom.camera.preview;
 
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.util.Pair;
 
 import com.tomtom.camera.api.model.Playable;
 import com.tomtom.camera.util.Logger;
+import com.tomtom.camera.video.BitmapDrawObject;
 import com.tomtom.camera.video.VideoSurface;
 
+import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Preview abstraction.
@@ -36,6 +43,8 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
     private static final String TAG = "PreviewVideo";
 
     private static final float MILLISECONDS = 1000;
+    /** Length of range requested from camera for each scrub position. */
+    private static final float SCRUB_LENGTH_SECS = 0.2f;
 
     private static boolean sPreviewActive;
     private static PreviewCommand sNextStartPreviewCommand = null;
@@ -56,19 +65,37 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
     private OnPreviewVideoListener mOnPreviewVideoListener;
 
     private PreviewPlayer mPreviewPlayer;
+    @Nullable
+    private PreviewRangePrefetcher mRangePrefetcher;
+    @Nullable
+    private volatile PreviewFrameDecoder mFrameDecoder;
     private final PreviewBuffer mPreviewBuffer = new PreviewBuffer();
+    private final JitterBufferController mJitterBufferController = new JitterBufferController(mPreviewBuffer);
 
     private boolean mIsInitialized;
+    /** Whether this preview holds {@link AacDecoderPool}, between prepare and release. */
+    private boolean mIsRetainingDecoderPool;
     private boolean mIsRestarted;
 
     private PreviewApiClient mPreviewApiClient;
 
     private float mCurrentSeekSecs;
     private boolean mShouldPlaySound = true;
+    private volatile boolean mIsScrubbing;
+    private int mScrubPositionMillis;
+
+    @Nullable
+    private ScheduledExecutorService mStatsExecutor;
+    @Nullable
+    private ScheduledFuture<?> mStatsFuture;
 
     private final CameraPreviewStreamServer.OnEosReceivedListener mOnEosReceivedListener = new CameraPreviewStreamServer.OnEosReceivedListener() {
         @Override
         public void onEosReceived() {
+            if (mIsScrubbing) {
+                // Scrub ranges don't continue into next file
+                return;
+            }
             mPreviewPlayer.play();
             if (mPreviewCameraFiles != null && mCurrentBufferingVideoIndex < mPreviewCameraFiles.size() - 1) {
                 mCurrentSeekSecs = mCurrentSeekSecs + mCurrentPlayableFile.getDurationSecs();
@@ -77,6 +104,17 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         }
     };
 
+    private final CameraPreviewStreamServer.OnSessionStartedListener mOnSessionStartedListener = new CameraPreviewStreamServer.OnSessionStartedListener() {
+        @Override
+        public void onSessionStarted(PreviewSessionDescriptor sessionDescriptor) {
+            mJitterBufferController.onSessionStarted();
+            PreviewFrameDecoder frameDecoder = mFrameDecoder;
+            if (frameDecoder != null) {
+                frameDecoder.configure(sessionDescriptor);
+            }
+        }
+    };
+
     private final StreamBufferCallback mPreviewStreamBufferCallback = new StreamBufferCallback() {
         @Override
         public void onEmpty() {
@@ -92,6 +130,7 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         @Override
         public void onReady() {
             Logger.info(TAG, "Buffering is ready");
+            mJitterBufferController.onRebufferEnded();
             mPreviewPlayer.play();
         }
     };
@@ -99,18 +138,55 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
     private final PreviewPlayer.PreviewPlayerCallback mPreviewPlayerCallback = new PreviewPlayer.PreviewPlayerCallback() {
         @Override
         public void drawFrame(byte[] data, int pts, boolean isFirstFrame) {
+            if (onFramePresented(pts, isFirstFrame)) {
+                processFrameData(data, pts, isFirstFrame);
+            }
+        }
+
+        @Override
+        public void drawDecodedFrame(BitmapDrawObject bitmapDrawObject, int pts, boolean isFirstFrame) {
+            if (onFramePresented(pts, isFirstFrame)) {
+                processDecodedFrame(bitmapDrawObject, pts, isFirstFrame);
+            }
+        }
+
+        @Override
+        public void onPlaybackFinished() {
+            if (mOnPreviewVideoListener != null) {
+                mOnPreviewVideoListener.onEndReceived();
+            }
+        }
+
+        @Override
+        public void onRebuffering() {
+            Logger.info(TAG, "Rebuffering");
+            mJitterBufferController.onRebufferStarted();
+        }
+
+        @Override
+        public void onFirstFrameSkipped(int pts) {
+            // Played file is tracked while hidden, so progress is right once shown again
+            onFramePresented(pts, true);
+        }
+
+        /**
+         * Updates playing file index, volume and progress for presented frame.
+         * @return {@code false} if frame shouldn't be drawn
+         */
+        private boolean onFramePresented(int pts, boolean isFirstFrame) {
             if (isFirstFrame) {
+                mJitterBufferController.onFirstFramePresented();
                 mCurrentPlayingVideoIndex++;
                 if (mCurrentPlayingVideoIndex == 0 && mOnPreviewVideoListener != null) {
                     mOnPreviewVideoListener.onPreviewStarted((int) (mCurrentSeekSecs * MILLISECONDS));
                 }
             } else if (mIsRestarted) {
                 mIsRestarted = false;
-                return;
+                return false;
             }
 
             if (mPreviewCameraFiles == null || mCurrentPlayingVideoIndex == -1) {
-                return;
+                return false;
             }
 
             PreviewPlayableFile currentlyPlaying = mPreviewCameraFiles.get(mCurrentPlayingVideoIndex);
@@ -123,15 +199,7 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
             if (mOnPreviewVideoListener != null) {
                 mOnPreviewVideoListener.onPreviewTimeProgress(pts - (int) ((currentlyPlaying.getPlayableFile().getStartOffsetSecs() - currentlyPlaying.getOffsetSecsInTotalDuration()) * MILLISECONDS));
             }
-
-            processFrameData(data, pts, isFirstFrame);
-        }
-
-        @Override
-        public void onPlaybackFinished() {
-            if (mOnPreviewVideoListener != null) {
-                mOnPreviewVideoListener.onEndReceived();
-            }
+            return true;
         }
     };
 
@@ -142,6 +210,8 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         mPreviewBuffer.setStreamBufferCallback(mPreviewStreamBufferCallback);
         mPreviewStreamServer = createPreviewStreamServer(mPreviewBuffer);
         mPreviewStreamServer.setOnEosReceivedListener(mOnEosReceivedListener);
+        mPreviewStreamServer.setOnSessionStartedListener(mOnSessionStartedListener);
+        mPreviewStreamServer.setJitterBufferController(mJitterBufferController);
         mPreviewPlayer = new PreviewPlayer(mPreviewBuffer);
         mPreviewPlayer.setPreviewPlayerCallback(mPreviewPlayerCallback);
         mIsInitialized = false;
@@ -170,6 +240,29 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
      */
     public void setVideoSurface(T videoSurface) {
         mVideoSurface = videoSurface;
+        setPreviewHidden(videoSurface == null);
+    }
+
+    /**
+     * Hides preview. While hidden, stream is still received and buffered and playback position
+     * advances, but video and audio aren't decoded and frames aren't drawn, so no CPU is spent on
+     * output nobody sees. Preview continues from current position once shown again. Preview is
+     * hidden while video surface is set to {@code null}.
+     * @param isHidden {@code true} to hide preview, {@code false} to show it
+     */
+    public void setPreviewHidden(boolean isHidden) {
+        if (isHidden != mPreviewPlayer.isHidden()) {
+            Logger.info(TAG, isHidden ? "Hiding preview" : "Showing preview");
+            mPreviewPlayer.setHidden(isHidden);
+        }
+    }
+
+    /**
+     * Provides information if preview is hidden.
+     * @return {@code true} if hidden
+     */
+    public boolean isPreviewHidden() {
+        return mPreviewPlayer.isHidden();
     }
 
     /**
@@ -192,6 +285,15 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
 
             mIsInitialized = true;
             mPlayableFiles = playableFiles;
+            // Bind listener upfront, so first START doesn't wait for it
+            mPreviewStreamServer.open();
+            // Have an audio decoder ready before first audio frame arrives
+            if (mIsRetainingDecoderPool) {
+                AacDecoderPool.getInstance().prewarm();
+            } else {
+                mIsRetainingDecoderPool = true;
+                AacDecoderPool.getInstance().retain();
+            }
         } catch (CloneNotSupportedException e) {
             Logger.exception(e);
         }
@@ -212,6 +314,7 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
      */
     public void stopPreview() {
         if (!isPreviewActive() || mCurrentPlayableFile == null) {
+            stopCacheReplay();
             if (mVideoSurface != null) {
                 mVideoSurface.stop();
             }
@@ -219,6 +322,7 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         }
 
         Logger.info(TAG, "Stopping preview video");
+        mJitterBufferController.onRebufferEnded();
 
         mPreviewStreamServer.stop();
         mVideoSurface.stopDrawing();
@@ -235,6 +339,17 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         mCurrentPlayableFile = null;
         mIsInitialized = false;
         sCurrentPreviewCommandToExecute = null;
+        mPreviewStreamServer.close();
+        if (mRangePrefetcher != null) {
+            mRangePrefetcher.release();
+        }
+        disableDecodeAhead();
+        if (mIsRetainingDecoderPool) {
+            // Pooled decoders are kept while other previews use them
+            mIsRetainingDecoderPool = false;
+            AacDecoderPool.getInstance().unretain();
+        }
+        setOnPreviewStatsListener(null, 0);
     }
 
     private void seekPreviewForFile(Playable cameraFile, float seekToTimeSecs) {
@@ -255,8 +370,14 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         if (!mIsInitialized) {
             throw new IllegalStateException("Preview not initialized.");
         }
+        leaveScrubMode();
+        if (rewindPreview(seekToTimeMilliseconds)) {
+            return;
+        }
         mCurrentSeekSecs = (float) (seekToTimeMilliseconds / MILLISECONDS);
         mIsRestarted = true;
+        mJitterBufferController.onRebufferEnded();
+        mJitterBufferController.onPlaybackRequested();
         mCurrentBufferingVideoIndex = getPreviewPlayableFileIndex(seekToTimeMilliseconds);
         mCurrentPlayingVideoIndex = mCurrentBufferingVideoIndex - 1;
 
@@ -271,6 +392,36 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         }
     }
 
+    /**
+     * Repositions playback locally if given position is within retained frames of currently
+     * played file, without requesting stream from camera again.
+     * @param seekToTimeMilliseconds seek position in millis
+     * @return {@code true} if rewound
+     */
+    private boolean rewindPreview(int seekToTimeMilliseconds) {
+        if (!isPreviewActive() || mCurrentPlayingVideoIndex < 0
+                || getPreviewPlayableFileIndex(seekToTimeMilliseconds) != mCurrentPlayingVideoIndex) {
+            return false;
+        }
+        Pair<String, Float> fileOffset = getPlayableFileIdAndOffset(seekToTimeMilliseconds);
+        int pts = PreviewSegmentCache.secondsToPts(fileOffset.second);
+        if (!mPreviewBuffer.canRewind(pts)) {
+            return false;
+        }
+        mPreviewPlayer.stop();
+        if (!mPreviewPlayer.rewind(pts)) {
+            return false;
+        }
+        Logger.info(TAG, "Rewound to " + seekToTimeMilliseconds + " ms from retained frames");
+        PreviewFrameDecoder frameDecoder = mFrameDecoder;
+        if (frameDecoder != null) {
+            frameDecoder.reset();
+        }
+        mCurrentSeekSecs = (float) seekToTimeMilliseconds / MILLISECONDS;
+        mPreviewPlayer.play();
+        return true;
+    }
+
     /**
      * Seeks to given offset in current file and plays only for given duration
      * @param seekToTimeSeconds seek position in millis
@@ -280,8 +431,11 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         if (!mIsInitialized) {
             throw new IllegalStateException("Preview not initialized.");
         }
+        leaveScrubMode();
         mCurrentSeekSecs = seekToTimeSeconds;
         mIsRestarted = true;
+        mJitterBufferController.onRebufferEnded();
+        mJitterBufferController.onPlaybackRequested();
         mCurrentBufferingVideoIndex = getPreviewPlayableFileIndex((int) (seekToTimeSeconds * MILLISECONDS));
         mCurrentPlayingVideoIndex = mCurrentBufferingVideoIndex - 1;
 
@@ -297,11 +451,88 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
             scheduleNextCommand(getStartPreviewCommand(seekToTimeInFile, duration));
             prepareForPreviewStart();
         } else {
+            stopCacheReplay();
             startPreviewStreamServer();
             sendPreviewCommand(getStartPreviewCommand(seekToTimeInFile, duration));
         }
     }
 
+    /**
+     * Shows frame at given position without playing, for scrubbing through preview. Only short
+     * range at position is requested from camera, requests made while previous one is executed are
+     * coalesced to latest one and only frame of latest position is presented. Other frames are
+     * dropped before decoding. Playback continues from scrubbed position with
+     * {@link #finishScrubbing()}, or from other position with {@link #seekPreview(int)}.
+     * @param positionMillis position in total duration in millis
+     */
+    public synchronized void scrubPreview(int positionMillis) {
+        if (!mIsInitialized) {
+            throw new IllegalStateException("Preview not initialized.");
+        }
+        if (!mIsScrubbing) {
+            Logger.info(TAG, "Entering scrub mode");
+            mIsScrubbing = true;
+            mPreviewPlayer.setScrubbing(true);
+        }
+        mScrubPositionMillis = positionMillis;
+        mCurrentSeekSecs = (float) positionMillis / MILLISECONDS;
+        mIsRestarted = false;
+        mCurrentBufferingVideoIndex = getPreviewPlayableFileIndex(positionMillis);
+        // Scrub frames aren't first frames, so playing index is set upfront
+        mCurrentPlayingVideoIndex = mCurrentBufferingVideoIndex;
+
+        PreviewPlayableFile previewPlayableFile = mPreviewCameraFiles.get(mCurrentBufferingVideoIndex);
+        Playable playableFile = previewPlayableFile.getPlayableFile();
+        float seekToTimeInFile = mCurrentSeekSecs - previewPlayableFile.getOffsetSecsInTotalDuration();
+        float lengthSecs = Math.min(SCRUB_LENGTH_SECS, playableFile.getDurationSecs() - seekToTimeInFile);
+        seekPreviewForFile(seekToTimeInFile + playableFile.getStartOffsetSecs(), lengthSecs, playableFile);
+    }
+
+    /**
+     * Leaves scrub mode and starts playback from last scrubbed position.
+     */
+    public synchronized void finishScrubbing() {
+        if (mIsScrubbing) {
+            seekPreview(mScrubPositionMillis);
+        }
+    }
+
+    /**
+     * Provides information if preview is in scrub mode.
+     * @return {@code true} if scrubbing
+     */
+    public boolean isScrubbing() {
+        return mIsScrubbing;
+    }
+
+    private void leaveScrubMode() {
+        if (mIsScrubbing) {
+            Logger.info(TAG, "Leaving scrub mode");
+            mIsScrubbing = false;
+            mPreviewPlayer.setScrubbing(false);
+        }
+    }
+
+    /**
+     * Sets playback rate of preview. Video presentation is rescaled, frames which can't be
+     * presented in time at higher rates are dropped. Audio is played only at normal rate.
+     * @param playbackRate rate between 0.25 and 8
+     */
+    public void setPlaybackRate(float playbackRate) {
+        if (playbackRate < PlaybackClock.MIN_RATE || playbackRate > PlaybackClock.MAX_RATE) {
+            throw new IllegalArgumentException("Playback rate " + playbackRate + " out of range");
+        }
+        mPreviewPlayer.setPlaybackRate(playbackRate);
+    }
+
+    /**
+     * Provides current playback rate of preview.
+     * @return playback rate, 1 for normal rate
+     */
+    public float getPlaybackRate() {
+        return mPreviewPlayer.getPlaybackRate();
+    }
+
     /**
      * Pauses the preview
      * @param pausePreview {@code true} if pausing, {@code false} if unpausing/resuming
@@ -314,6 +545,173 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         mPreviewStreamServer.start();
     }
 
+    /**
+     * Stops queueing of cached frames. Camera isn't streaming while cache is replayed, so preview
+     * isn't active and buffered frames wouldn't be cleared otherwise.
+     */
+    private void stopCacheReplay() {
+        if (mPreviewStreamServer.isReplaying()) {
+            Logger.info(TAG, "Stopping cache replay");
+            mPreviewStreamServer.stop();
+        }
+    }
+
+    /**
+     * Enables local cache of streamed preview frames. Seeks into already streamed range are served
+     * from cache without requesting them from camera again. Least recently used ranges are moved
+     * from memory to disk and then evicted when budgets are exceeded.
+     * @param cacheDir directory for disk tier, {@code null} for memory only cache
+     * @param memoryBudgetBytes maximum number of bytes kept in memory
+     * @param diskBudgetBytes maximum number of bytes kept in cache directory
+     */
+    public void enableSegmentCache(@Nullable File cacheDir, long memoryBudgetBytes, long diskBudgetBytes) {
+        mPreviewStreamServer.setSegmentCache(new PreviewSegmentCache(cacheDir, memoryBudgetBytes, diskBudgetBytes));
+    }
+
+    /**
+     * Disables and clears local cache of streamed preview frames.
+     */
+    public void disableSegmentCache() {
+        mPreviewStreamServer.setSegmentCache(null);
+    }
+
+    /**
+     * Enables parallel prefetch for long preview ranges. First window of requested range is streamed
+     * as usual, while rest of the range is streamed at the same time over second preview stream on
+     * another port and merged in once first window ends. Takes effect with next START command.
+     * @param windowSecs length of first window in seconds, ranges shorter than two windows aren't split
+     */
+    public synchronized void enableRangePrefetch(float windowSecs) {
+        disableRangePrefetch();
+        PreviewBuffer stagingBuffer = PreviewRangePrefetcher.createStagingBuffer();
+        mRangePrefetcher = new PreviewRangePrefetcher(mPreviewStreamServer, mPreviewBuffer,
+                createPreviewStreamServer(stagingBuffer), stagingBuffer, windowSecs);
+    }
+
+    /**
+     * Disables parallel prefetch and unbinds prefetch stream server.
+     */
+    public synchronized void disableRangePrefetch() {
+        if (mRangePrefetcher != null) {
+            mRangePrefetcher.release();
+            mRangePrefetcher = null;
+        }
+    }
+
+    /**
+     * Sets how much preview is buffered, as duration of buffered frames. Playback starts once
+     * ready duration is buffered and stops buffering at capacity. Defaults are
+     * {@value PreviewBuffer#DEFAULT_CAPACITY_MILLIS} ms capacity, {@value PreviewBuffer#DEFAULT_READY_MILLIS} ms
+     * ready and {@value PreviewBuffer#DEFAULT_LOW_MILLIS} ms low limit. Disables adaptive buffering.
+     * @param capacityMillis buffered duration at which buffering pauses, 0 for no limit
+     * @param lowMillis buffered duration at or below which buffer is low
+     * @param readyMillis buffered duration needed to start playback, 0 to use frame counts instead
+     */
+    public void setBufferDurationLimits(int capacityMillis, int lowMillis, int readyMillis) {
+        mJitterBufferController.disable();
+        mPreviewBuffer.setDurationLimits(capacityMillis, lowMillis, readyMillis);
+    }
+
+    /**
+     * Sets memory limits of video buffer. Buffer is full once capacity is reached, regardless of
+     * buffered duration, which keeps memory use predictable for large frames.
+     * @param capacityBytes buffered bytes at which buffering pauses, 0 for no limit
+     * @param lowBytes buffered bytes at or below which buffer is low
+     * @param readyBytes buffered bytes needed to start playback, low and ready limits in bytes are
+     *                   used only if duration limits are disabled
+     */
+    public void setVideoBufferByteLimits(long capacityBytes, long lowBytes, long readyBytes) {
+        mPreviewBuffer.setByteLimits(Frame.Type.VIDEO, capacityBytes, lowBytes, readyBytes);
+    }
+
+    /**
+     * Keeps payloads of received frames off Java heap, in slabs of direct memory, which reduces
+     * heap pressure and GC pauses with large frames. Frames which don't fit into slab memory are
+     * kept on heap. Has no effect for {@link NioPreviewVideo}, which keeps frames off-heap already.
+     * @param maxBytes maximum size of slab memory, {@value FrameSlab#DEFAULT_MAX_BYTES} bytes is
+     *                 enough for default buffer limits
+     */
+    public void enableOffHeapFrames(long maxBytes) {
+        mPreviewStreamServer.setFrameSlab(new FrameSlab(maxBytes));
+    }
+
+    /**
+     * Keeps payloads of frames received from now on in byte arrays again.
+     */
+    public void disableOffHeapFrames() {
+        mPreviewStreamServer.setFrameSlab(null);
+    }
+
+    /**
+     * Sets how much of already played preview is kept for rewinds. Seeks back within kept frames
+     * of currently played file are served locally, without restarting stream. Default is
+     * {@value PreviewBuffer#DEFAULT_RETAINED_BYTES} bytes.
+     * @param retainedBytes maximum size of kept frames, 0 to disable local rewinds
+     */
+    public void setRewindBufferBytes(long retainedBytes) {
+        mPreviewBuffer.setRetainedBytes(retainedBytes);
+    }
+
+    /**
+     * Enables adaptive buffering with ready limit between
+     * {@value JitterBufferController#DEFAULT_MIN_READY_MILLIS} ms and
+     * {@value JitterBufferController#DEFAULT_MAX_READY_MILLIS} ms.
+     * @see #enableAdaptiveBuffering(int, int)
+     */
+    public void enableAdaptiveBuffering() {
+        enableAdaptiveBuffering(JitterBufferController.DEFAULT_MIN_READY_MILLIS, JitterBufferController.DEFAULT_MAX_READY_MILLIS);
+    }
+
+    /**
+     * Enables tuning of buffer low and ready limits from observed arrival jitter and throughput of
+     * preview stream, and from rebuffers. Low limit is kept at half of ready limit, capacity set with
+     * {@link #setBufferDurationLimits(int, int, int)} is kept. Disabled by default. While enabled,
+     * tuned limits replace low and ready limits set with {@link #setBufferDurationLimits(int, int, int)},
+     * and calling that method disables tuning again.
+     * @param minReadyMillis lowest buffered duration needed to start playback
+     * @param maxReadyMillis highest buffered duration needed to start playback, should be below
+     *                       buffer capacity
+     */
+    public void enableAdaptiveBuffering(int minReadyMillis, int maxReadyMillis) {
+        mJitterBufferController.enable(minReadyMillis, maxReadyMillis);
+    }
+
+    /**
+     * Disables adaptive buffering and restores default low and ready limits.
+     */
+    public void disableAdaptiveBuffering() {
+        mJitterBufferController.disable();
+    }
+
+    /**
+     * Enables decoding of video frames ahead of playhead on worker threads, into a pool of reused
+     * bitmaps. Decoded frames are presented with {@link #processDecodedFrame(BitmapDrawObject, int, boolean)}.
+     * Stays enabled until {@link #disableDecodeAhead()} or {@link #releasePreview()} is called.
+     * @param decodeDepth number of frames decoded ahead
+     * @param bitmapPoolSize number of reused bitmaps, must be larger than decode depth
+     */
+    public synchronized void enableDecodeAhead(int decodeDepth, int bitmapPoolSize) {
+        disableDecodeAhead();
+        mFrameDecoder = new PreviewFrameDecoder(decodeDepth, bitmapPoolSize);
+        PreviewSessionDescriptor sessionDescriptor = mPreviewStreamServer.getSessionDescriptor();
+        if (sessionDescriptor != null) {
+            mFrameDecoder.configure(sessionDescriptor);
+        }
+        mPreviewPlayer.setFrameDecoder(mFrameDecoder);
+    }
+
+    /**
+     * Disables decoding ahead, frames are presented with
+     * {@link #processFrameData(byte[], int, boolean)} again.
+     */
+    public synchronized void disableDecodeAhead() {
+        if (mFrameDecoder != null) {
+            mPreviewPlayer.setFrameDecoder(null);
+            mFrameDecoder.release();
+            mFrameDecoder = null;
+        }
+    }
+
     /**
      * Enables sound for preview
      * @param playSound {@code true} if enabling, {@code false} if disabling
@@ -340,6 +738,7 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
     }
 
     private void sendSeekVideoFileCommand(float seekToTimeSecs) {
+        stopCacheReplay();
         startPreviewStreamServer();
         Logger.info(TAG, "Sending seek preview command");
         sendPreviewCommand(getStartOnSeekCommand(seekToTimeSecs));
@@ -354,6 +753,9 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
     }
 
     private void sendStopPreview() {
+        if (mRangePrefetcher != null) {
+            mRangePrefetcher.cancel();
+        }
         if (mCurrentPlayableFile != null) {
             Logger.info(TAG, "Sending stop preview command.");
             sendPreviewCommand(PreviewCommand.createStop(mCurrentPlayableFile.getPlayableId(), mPreviewStreamServer.getPort()));
@@ -376,6 +778,17 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
             Logger.error(TAG, "Null command sent");
             return;
         }
+        if (previewCommand.command == PreviewCommand.START) {
+            mPreviewStreamServer.setSessionPlayable(mCurrentPlayableFile);
+            previewCommand = mPreviewStreamServer.newSession(previewCommand);
+            if (previewCommand == null) {
+                Logger.info(TAG, "Preview served from cache");
+                return;
+            }
+            if (mRangePrefetcher != null) {
+                previewCommand = mRangePrefetcher.split(previewCommand);
+            }
+        }
         sCurrentPreviewCommandToExecute = previewCommand;
         mPreviewApiClient.executePreviewCommand(previewCommand);
     }
@@ -385,10 +798,17 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
      * @param isSuccessful camera preview start request success
      */
     public void onCameraPreviewStarted(boolean isSuccessful) {
+        PreviewCommand executedCommand = sCurrentPreviewCommandToExecute;
         sCurrentPreviewCommandToExecute = null;
+        if (!isSuccessful && mRangePrefetcher != null) {
+            mRangePrefetcher.onStartFailed(executedCommand);
+        }
         if (isSuccessful) {
             sPreviewActive = true;
             Logger.info(TAG, "PreviewVideo started");
+            if (mRangePrefetcher != null && sendFollowUpCommand(mRangePrefetcher.pollPendingStart())) {
+                return;
+            }
             sendPendingStartCommand();
         }
     }
@@ -407,10 +827,29 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         if (isSuccessful) {
             sPreviewActive = false;
             Logger.info(TAG, "PreviewVideo stopped");
+            if (mRangePrefetcher != null && sendFollowUpCommand(mRangePrefetcher.pollPendingStop())) {
+                return;
+            }
             sendPendingStartCommand();
         }
     }
 
+    /**
+     * Sends command for prefetch stream, which belongs to already confirmed command, so it bypasses
+     * scheduling of preview commands.
+     * @param previewCommand command to send, can be {@code null}
+     * @return {@code true} if command was sent
+     */
+    private synchronized boolean sendFollowUpCommand(@Nullable PreviewCommand previewCommand) {
+        if (previewCommand == null) {
+            return false;
+        }
+        Logger.info(TAG, "Sending prefetch command " + previewCommand.command);
+        sCurrentPreviewCommandToExecute = previewCommand;
+        mPreviewApiClient.executePreviewCommand(previewCommand);
+        return true;
+    }
+
     private void sendPendingStartCommand() {
         if(sNextStartPreviewCommand != null) {
             startPreviewStreamServer();
@@ -435,6 +874,18 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
      */
     protected abstract void processFrameData(byte[] data, int pts, boolean isFirstFrame);
 
+    /**
+     * Process video frame decoded ahead, by default it is queued to video surface.
+     * @param bitmapDrawObject decoded frame
+     * @param pts pts of frame
+     * @param isFirstFrame is first frame
+     */
+    protected void processDecodedFrame(BitmapDrawObject bitmapDrawObject, int pts, boolean isFirstFrame) {
+        if (mVideoSurface != null) {
+            mVideoSurface.queueBitmapDrawObject(bitmapDrawObject);
+        }
+    }
+
     /**
      * Provides currently playing {@link Playable}
      * @return current playing {@link Playable}
@@ -496,6 +947,176 @@ abstract class AbstractPreviewVideo<T extends VideoSurface> {
         return new Pair<>(previewPlayableFile.getPlayableFile().getPlayableId(), secondsInTotalDuration - previewPlayableFile.getOffsetSecsInTotalDuration() + previewPlayableFile.getPlayableFile().getStartOffsetSecs());
     }
 
+    /**
+     * Provides total time preview stream reading was stalled because buffer was full.
+     * @return stall time in milliseconds
+     */
+    public long getBackpressureStallMillis() {
+        return mPreviewStreamServer.getBackpressureStallMillis();
+    }
+
+    /**
+     * Provides number of times preview stream lost sync due to corrupted data.
+     * @return resync count
+     */
+    public long getStreamResyncCount() {
+        return mPreviewStreamServer.getResyncCount();
+    }
+
+    /**
+     * Provides number of bytes discarded from preview stream while resyncing.
+     * @return discarded bytes
+     */
+    public long getStreamDiscardedBytes() {
+        return mPreviewStreamServer.getDiscardedBytes();
+    }
+
+    /**
+     * Provides offset of last presented video frame from playback clock. While audio is played,
+     * clock follows audio, so this is A/V sync offset.
+     * @return offset in milliseconds, positive if video is ahead
+     */
+    public int getAvSyncOffsetMillis() {
+        return mPreviewPlayer.getAvOffsetMillis();
+    }
+
+    /**
+     * Sets how late behind playback clock video frame can be before it is dropped, so that
+     * playback stays in real time on devices which can't present every frame in time. Default is
+     * {@value PreviewPlayer#DEFAULT_LATE_FRAME_THRESHOLD_MILLIS} ms.
+     * @param lateFrameThresholdMillis threshold in milliseconds, 0 to present every frame
+     */
+    public void setLateFrameThresholdMillis(int lateFrameThresholdMillis) {
+        mPreviewPlayer.setLateFrameThresholdMillis(lateFrameThresholdMillis);
+    }
+
+    /**
+     * Provides number of video frames dropped because they were late.
+     * @return dropped frame count
+     */
+    public long getDroppedFrameCount() {
+        return mPreviewPlayer.getDroppedFrameCount();
+    }
+
+    /**
+     * Provides estimated jitter of preview frame arrival.
+     * @return arrival jitter in milliseconds
+     */
+    public float getArrivalJitterMillis() {
+        return mJitterBufferController.getJitterMillis();
+    }
+
+    /**
+     * Provides number of times playback stalled because buffer ran out before end of stream.
+     * @return rebuffer count
+     */
+    public long getRebufferCount() {
+        return mJitterBufferController.getRebufferCount();
+    }
+
+    /**
+     * Provides total time playback was stalled by rebuffers.
+     * @return rebuffer time in milliseconds
+     */
+    public long getRebufferMillis() {
+        return mJitterBufferController.getRebufferMillis();
+    }
+
+    /**
+     * Provides time from last start or seek of preview to its first presented frame.
+     * @return time to first frame in milliseconds, -1 if not measured yet
+     */
+    public long getTimeToFirstFrameMillis() {
+        return mJitterBufferController.getTimeToFirstFrameMillis();
+    }
+
+    /**
+     * Provides average time spent decoding a frame ahead of playhead.
+     * @return average decode time in milliseconds, 0 if decoding ahead is disabled
+     */
+    public synchronized float getAverageDecodeMillis() {
+        return mFrameDecoder != null ? mFrameDecoder.getAverageDecodeMillis() : 0;
+    }
+
+    /**
+     * Provides longest time spent decoding a frame ahead of playhead.
+     * @return maximum decode time in milliseconds, 0 if decoding ahead is disabled
+     */
+    public synchronized long getMaxDecodeMillis() {
+        return mFrameDecoder != null ? mFrameDecoder.getMaxDecodeMillis() : 0;
+    }
+
+    /**
+     * Provides number of frames whose decoding didn't finish before they had to be presented.
+     * @return decode wait count, 0 if decoding ahead is disabled
+     */
+    public synchronized long getDecodeWaitCount() {
+        return mFrameDecoder != null ? mFrameDecoder.getDecodeWaitCount() : 0;
+    }
+
+    /**
+     * Provides snapshot of playback quality statistics. Values are read from counters maintained
+     * during playback, so taking snapshot is cheap.
+     * @return statistics snapshot
+     */
+    public PreviewStats getPreviewStats() {
+        PreviewStats stats = new PreviewStats();
+        stats.mTimestampMillis = SystemClock.elapsedRealtime();
+        stats.mPresentedFps = mPreviewPlayer.getPresentedFps();
+        stats.mDroppedFps = mPreviewPlayer.getDroppedFps();
+        stats.mPresentedFrameCount = mPreviewPlayer.getPresentedFrameCount();
+        stats.mDroppedFrameCount = mPreviewPlayer.getDroppedFrameCount();
+        PreviewFrameDecoder frameDecoder = mFrameDecoder;
+        stats.mDecodeTimeHistogram = new PreviewStats.Histogram(frameDecoder != null
+                ? frameDecoder.getDecodeTimeCounts()
+                : new long[LatencyHistogram.BUCKET_UPPER_BOUNDS_MILLIS.length]);
+        stats.mDrawTimeHistogram = new PreviewStats.Histogram(mPreviewPlayer.getDrawTimeCounts());
+        stats.mBufferedVideoFrames = mPreviewBuffer.getBufferedFrames(Frame.Type.VIDEO);
+        stats.mBufferedAudioFrames = mPreviewBuffer.getBufferedFrames(Frame.Type.AUDIO);
+        stats.mBufferedVideoBytes = mPreviewBuffer.getBufferedBytes(Frame.Type.VIDEO);
+        stats.mBufferedAudioBytes = mPreviewBuffer.getBufferedBytes(Frame.Type.AUDIO);
+        stats.mBufferedVideoMillis = mPreviewBuffer.getBufferedMillis(Frame.Type.VIDEO);
+        stats.mBufferedAudioMillis = mPreviewBuffer.getBufferedMillis(Frame.Type.AUDIO);
+        stats.mRebufferCount = mJitterBufferController.getRebufferCount();
+        stats.mRebufferMillis = mJitterBufferController.getRebufferMillis();
+        stats.mAvOffsetMillis = mPreviewPlayer.getAvOffsetMillis();
+        stats.mTimeToFirstFrameMillis = mJitterBufferController.getTimeToFirstFrameMillis();
+        return stats;
+    }
+
+    /**
+     * Sets listener receiving {@link PreviewStats} periodically. Listener is called on background
+     * thread, until it's replaced, removed or preview is released with {@link #releasePreview()}.
+     * @param onPreviewStatsListener listener, {@code null} to stop reporting
+     * @param intervalMillis reporting interval in milliseconds, ignored when listener is removed
+     * @throws IllegalArgumentException if listener is set with interval which isn't positive
+     */
+    public synchronized void setOnPreviewStatsListener(@Nullable final OnPreviewStatsListener onPreviewStatsListener, int intervalMillis) {
+        if (onPreviewStatsListener != null && intervalMillis <= 0) {
+            throw new IllegalArgumentException("Stats interval " + intervalMillis + " ms must be positive");
+        }
+        if (mStatsFuture != null) {
+            mStatsFuture.cancel(false);
+            mStatsFuture = null;
+        }
+        if (onPreviewStatsListener == null) {
+            if (mStatsExecutor != null) {
+                mStatsExecutor.shutdown();
+                mStatsExecutor = null;
+            }
+            return;
+        }
+        if (mStatsExecutor == null) {
+            mStatsExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+        mStatsFuture = mStatsExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                onPreviewStatsListener.onPreviewStats(getPreviewStats());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Provides information about current state of preview
      * @return {@code true} if active, {@code false} if not.
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.os.Build;
+
+import com.tomtom.camera.util.Logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plays decoded mono PCM of preview audio on {@link AudioTrack} and reports position of audio being
+ * heard to master clock. Track is kept as long as sample rate doesn't change.
+ */
+class AudioOutput {
+
+    private static final String TAG = "AudioOutput";
+    /** Mono 16 bit PCM. */
+    private static final int BYTES_PER_PCM_FRAME = 2;
+
+    private final PlaybackClock mClock;
+    private volatile AudioTrack mAudioTrack;
+    private volatile boolean mIsMuted;
+    private int mSampleRate;
+    /** PCM chunk for writing to track on platforms which can't write from ByteBuffer. */
+    private byte[] mPcmChunk = new byte[0];
+
+    /** PCM frames written to track since it was created. */
+    private long mWrittenPcmFrames;
+    /** Pts of first frame of current segment and track position it starts at. */
+    private long mSegmentStartPts = -1;
+    private long mSegmentStartPcmFrame;
+
+    AudioOutput(PlaybackClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Creates track for given sample rate, unless current one already plays it.
+     * @param sampleRate sample rate of decoded audio
+     */
+    void open(int sampleRate) {
+        if (mAudioTrack != null && mSampleRate == sampleRate) {
+            return;
+        }
+        release();
+        Logger.info(TAG, "Codec output sample rate is " + sampleRate);
+        AudioTrack audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                AudioTrack.getMinBufferSize(sampleRate,
+                        AudioFormat.CHANNEL_OUT_MONO,
+                        AudioFormat.ENCODING_PCM_16BIT), AudioTrack.MODE_STREAM);
+        audioTrack.play();
+        mAudioTrack = audioTrack;
+        mSampleRate = sampleRate;
+        mWrittenPcmFrames = 0;
+        setVolumeEnabled(!mIsMuted);
+    }
+
+    /**
+     * Marks that PCM written from now on belongs to segment starting with given pts.
+     * @param pts pts of first audio frame of segment
+     */
+    void startSegment(long pts) {
+        mSegmentStartPts = pts;
+        mSegmentStartPcmFrame = mWrittenPcmFrames;
+    }
+
+    /**
+     * Drops PCM written to track but not heard yet, e.g. when playback is repositioned, so that
+     * clock isn't driven by audio of previous position.
+     */
+    void flush() {
+        AudioTrack audioTrack = mAudioTrack;
+        if (audioTrack != null) {
+            audioTrack.pause();
+            audioTrack.flush();
+            audioTrack.play();
+            // Flush resets playback head position
+            mWrittenPcmFrames = 0;
+        }
+        mSegmentStartPts = -1;
+    }
+
+    void setVolumeEnabled(boolean playSound) {
+        mIsMuted = !playSound;
+        AudioTrack audioTrack = mAudioTrack;
+        if (audioTrack != null && audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
+            try {
+                if (playSound) {
+                    audioTrack.setStereoVolume(AudioTrack.getMaxVolume(), AudioTrack.getMaxVolume());
+                } else {
+                    audioTrack.setStereoVolume(0f, 0f);
+                }
+            } catch (IllegalStateException e) {
+                Logger.error(TAG, "IllegalState in setting volume. AudioTrack state was: " + audioTrack.getState());
+            }
+        }
+    }
+
+    /**
+     * Writes PCM straight from codec output buffer where platform allows it, otherwise through
+     * reused chunk array, and reports new position to clock.
+     */
+    void write(ByteBuffer codecOutputBuffer, MediaCodec.BufferInfo bufInfo) {
+        if (bufInfo.size <= 0) {
+            return;
+        }
+        codecOutputBuffer.limit(bufInfo.offset + bufInfo.size);
+        codecOutputBuffer.position(bufInfo.offset);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mAudioTrack.write(codecOutputBuffer, bufInfo.size, AudioTrack.WRITE_BLOCKING);
+        } else {
+            if (mPcmChunk.length < bufInfo.size) {
+                mPcmChunk = new byte[bufInfo.size];
+            }
+            codecOutputBuffer.get(mPcmChunk, 0, bufInfo.size);
+            mAudioTrack.write(mPcmChunk, 0, bufInfo.size);
+        }
+        codecOutputBuffer.clear();
+        mWrittenPcmFrames += bufInfo.size / BYTES_PER_PCM_FRAME;
+        reportAudioPosition();
+    }
+
+    /**
+     * Reports position of audio being heard to master clock, once track plays current segment.
+     */
+    private void reportAudioPosition() {
+        long playedPcmFrames = mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        if (mSegmentStartPts != -1 && playedPcmFrames >= mSegmentStartPcmFrame) {
+            mClock.onAudioPosition(mSegmentStartPts + (playedPcmFrames - mSegmentStartPcmFrame) * PlaybackClock.PTS_PER_SECOND / mSampleRate);
+        }
+    }
+
+    void release() {
+        AudioTrack audioTrack = mAudioTrack;
+        if (audioTrack != null) {
+            Logger.debug(TAG, "Stopping audio track");
+            mAudioTrack = null;
+            audioTrack.flush();
+            audioTrack.release();
+        }
+        mSegmentStartPts = -1;
+    }
+}
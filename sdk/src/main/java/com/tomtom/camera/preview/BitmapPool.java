@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of mutable {@link Bitmap}s which can be decoded into with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}, so a new bitmap isn't allocated for
+ * every decoded frame.
+ */
+class BitmapPool {
+
+    private final int mMaxPooledBitmaps;
+    private final ArrayDeque<Bitmap> mPool;
+
+    BitmapPool(int maxPooledBitmaps) {
+        mMaxPooledBitmaps = maxPooledBitmaps;
+        mPool = new ArrayDeque<>(maxPooledBitmaps);
+    }
+
+    /**
+     * Provides bitmap from pool.
+     * @return pooled bitmap, or {@code null} if pool is empty
+     */
+    synchronized Bitmap acquire() {
+        return mPool.poll();
+    }
+
+    /**
+     * Returns bitmap to pool. Immutable or recycled bitmaps and bitmaps over pool limit are dropped.
+     * @param bitmap bitmap to reuse
+     */
+    synchronized void recycle(Bitmap bitmap) {
+        if (bitmap.isMutable() && !bitmap.isRecycled() && mPool.size() < mMaxPooledBitmaps) {
+            mPool.offer(bitmap);
+        }
+    }
+
+    synchronized void clear() {
+        mPool.clear();
+    }
+}
@@ -16,17 +16,20 @@
 
 package com.tomtom.camera.preview;
 
+import com.tomtom.camera.api.model.Playable;
 import com.tomtom.camera.util.Logger;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import okio.BufferedSource;
-import okio.Okio;
-import okio.Source;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * CameraPreview stream server implementation.
@@ -39,92 +42,161 @@ class CameraPreviewStreamServer {
     private static final int MAX_PORT = 4999;
     private static final int BUFFER_SIZE = 65536;
 
+    private static final int DRAIN_BATCH_SIZE = 16;
+    private static final long RING_FULL_PARK_NANOS = 1000000;
+    /**
+     * Maximum time reader waits for space in full buffer before rechecking if it should still run.
+     */
+    static final long BACKPRESSURE_WAIT_MILLIS = 100;
+
     private int mPort = MIN_PORT;
-    private boolean mIsBufferingRunning;
+    private volatile boolean mIsBufferingRunning;
+    private volatile boolean mIsListening;
 
     private ServerSocket mPreviewServerSocket;
     private Socket mSocket;
+    private volatile int mSessionToken;
+    private volatile int mConnectionSessionToken;
     private boolean mWaitingForFirstVideoFrame;
     private boolean mWaitingForFirstAudioFrame;
 
     private ExecutorService mServerBackgroundExecutor = Executors.newSingleThreadExecutor();
     private ExecutorService mQueueExecutor = Executors.newSingleThreadExecutor();
+    private ExecutorService mReplayExecutor = Executors.newSingleThreadExecutor();
+    private final Object mProducerLock = new Object();
+    private final FrameRingBuffer mFrameRingBuffer = new FrameRingBuffer();
+    private boolean mIsQueueRunning;
     private OnEosReceivedListener mOnEosReceivedListener;
+    private OnEosReceivedListener mOnWindowEndListener;
+    private volatile boolean mIsWindowSession;
 
     private final PreviewBuffer mPreviewBuffer;
+    private final FrameValidator mFrameValidator;
+    private final PreviewStreamParser mStreamParser;
+    private ByteBuffer mReadBuffer;
+    private volatile int mReadBufferSizeHint;
+
+    private volatile Playable mSessionPlayable;
+    private volatile PreviewSessionDescriptor mSessionDescriptor;
+    private OnSessionStartedListener mOnSessionStartedListener;
+    private volatile JitterBufferController mJitterBufferController;
+    private volatile FrameSlab mFrameSlab;
+
+    private volatile PreviewSegmentCache mSegmentCache;
+    private CountDownLatch mReplayLatch;
+    private volatile boolean mIsReplaying;
 
     private final Runnable mServerRunnable = new Runnable() {
         @Override
         public void run() {
-            while (mIsBufferingRunning) {
+            while (mIsListening) {
+                ServerSocket serverSocket;
+                synchronized (CameraPreviewStreamServer.this) {
+                    serverSocket = mPreviewServerSocket;
+                }
+                if (serverSocket == null) {
+                    break;
+                }
+                Socket socket;
                 try {
-                    mSocket = mPreviewServerSocket.accept();
-                    Source source = Okio.source(mSocket);
-                    BufferedSource preview = Okio.buffer(source);
-                    mWaitingForFirstVideoFrame = true;
-                    mWaitingForFirstAudioFrame = true;
-
-                    Logger.debug(TAG, "Connection established with " + mSocket.getRemoteSocketAddress().toString() + " from local port  " + mSocket.getLocalPort());
-
-                    while (mIsBufferingRunning) {
-                        if (mPreviewBuffer != null
-                                && mPreviewBuffer.getBufferState() != StreamBuffer.BufferState.FULL) {
-                            final int version = preview.readInt();
-                            int frameType = preview.readInt();
-                            final Frame.Type fType = Frame.Type.fromValue(frameType);
-                            final int pts;
-                            final int status;
-                            final byte[] data;
-                            if (fType == Frame.Type.AUDIO || fType == Frame.Type.VIDEO) {
-                                int dataLen = preview.readInt();
-                                pts = preview.readInt();
-                                status = preview.readInt();
-                                data = preview.readByteArray(dataLen);
-                            }
-                            // Reading rest of header for reserved part used in EOS/SOS
-                            else {
-                                preview.readByteArray(Frame.HEADER_LENGTH);
-                                pts = 0;
-                                status = 0;
-                                data = null;
-                            }
-                            //TODO Write SOS to buffer when we start handling it
-                            if (fType != Frame.Type.SOS) {
-                                mQueueExecutor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        Frame frame = new Frame(version, fType, pts, status, data);
-
-                                        if (fType == Frame.Type.VIDEO && mWaitingForFirstVideoFrame) {
-                                            mWaitingForFirstVideoFrame = false;
-                                            frame.setIsFirstFrame(true);
-                                        } else if (fType == Frame.Type.AUDIO && mWaitingForFirstAudioFrame) {
-                                            mWaitingForFirstAudioFrame = false;
-                                            frame.setIsFirstFrame(true);
-                                        }
-                                        mPreviewBuffer.queue(frame);
-
-                                        if (fType == Frame.Type.EOS) {
-                                            mWaitingForFirstVideoFrame = true;
-                                            mWaitingForFirstAudioFrame = true;
-                                            mPreviewBuffer.resetVideoOnlyState();
-                                            if (mOnEosReceivedListener != null) {
-                                                mOnEosReceivedListener.onEosReceived();
-                                            }
-                                        }
-                                    }
-                                });
-
-                                if (fType == Frame.Type.EOS) {
-                                    break;
-                                }
-
-                            }
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    synchronized (CameraPreviewStreamServer.this) {
+                        if (serverSocket != mPreviewServerSocket) {
+                            // Listener was moved to port of new session
+                            continue;
                         }
+                        if (mIsListening) {
+                            mIsListening = false;
+                            Logger.error(TAG, "Server socket error : " + e.getMessage());
+                        }
+                    }
+                    break;
+                }
+
+                CountDownLatch replayLatch;
+                synchronized (CameraPreviewStreamServer.this) {
+                    if (serverSocket != mPreviewServerSocket) {
+                        // Accepted on port of superseded session just before it was closed
+                        closeSocket(socket);
+                        continue;
+                    }
+                    mSocket = socket;
+                    mConnectionSessionToken = mSessionToken;
+                    replayLatch = mReplayLatch;
+                }
+
+                Logger.debug(TAG, "Connection established with " + socket.getRemoteSocketAddress().toString() + " from local port  " + socket.getLocalPort() + " for session " + mConnectionSessionToken);
+
+                try {
+                    if (replayLatch != null) {
+                        // Connection continues cached part of the session, which has to be queued first
+                        awaitReplay(replayLatch);
                     }
+                    readFrames(socket);
                 } catch (IOException e) {
-                    mIsBufferingRunning = false;
-                    Logger.error(TAG, "Socket connection error : " + e.getMessage());
+                    if (isCurrentSession()) {
+                        Logger.error(TAG, "Socket connection error : " + e.getMessage());
+                    } else {
+                        Logger.debug(TAG, "Stale connection of session " + mConnectionSessionToken + " closed");
+                    }
+                } finally {
+                    closeConnection(socket);
+                }
+            }
+        }
+    };
+
+    private final FrameRingBuffer.FrameHandler mFrameHandler = new FrameRingBuffer.FrameHandler() {
+        @Override
+        public void onFrame(Frame frame) {
+            if (frame.getType() == Frame.Type.EOS && mIsWindowSession) {
+                // Session covered only part of requested range, rest is provided elsewhere
+                mIsWindowSession = false;
+                if (mOnWindowEndListener != null) {
+                    mOnWindowEndListener.onEosReceived();
+                }
+                return;
+            }
+            mPreviewBuffer.queue(frame);
+
+            if (frame.getType() == Frame.Type.EOS) {
+                mPreviewBuffer.resetVideoOnlyState();
+                if (mOnEosReceivedListener != null) {
+                    mOnEosReceivedListener.onEosReceived();
+                }
+            }
+        }
+    };
+
+    private final PreviewStreamParser.FrameListener mParserListener = new PreviewStreamParser.FrameListener() {
+        @Override
+        public boolean onVideoFrame(int version, int pts, int status, ByteBuffer data) {
+            return !awaitBufferSpace() || dispatchFrame(createFrame(version, Frame.Type.VIDEO, pts, status, data));
+        }
+
+        @Override
+        public boolean onAudioFrame(int version, int pts, int status, ByteBuffer data) {
+            return !awaitBufferSpace() || dispatchFrame(createFrame(version, Frame.Type.AUDIO, pts, status, data));
+        }
+
+        @Override
+        public boolean onStartOfStream(int version) {
+            return dispatchFrame(new Frame(version, Frame.Type.SOS, 0, 0, (byte[]) null));
+        }
+
+        @Override
+        public boolean onEndOfStream(int version) {
+            return dispatchFrame(new Frame(version, Frame.Type.EOS, 0, 0, (byte[]) null));
+        }
+    };
+
+    private final Runnable mQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (mFrameRingBuffer.drain(mFrameHandler, DRAIN_BATCH_SIZE) == 0) {
+                    mFrameRingBuffer.awaitFrames();
                 }
             }
         }
@@ -135,8 +207,14 @@ class CameraPreviewStreamServer {
     }
 
     public CameraPreviewStreamServer(PreviewBuffer previewBuffer, OnEosReceivedListener onPreviewStreamListener){
+        this(previewBuffer, onPreviewStreamListener, new FrameValidator());
+    }
+
+    CameraPreviewStreamServer(PreviewBuffer previewBuffer, OnEosReceivedListener onPreviewStreamListener, FrameValidator frameValidator) {
         mPreviewBuffer = previewBuffer;
         mOnEosReceivedListener = onPreviewStreamListener;
+        mFrameValidator = frameValidator;
+        mStreamParser = new PreviewStreamParser(frameValidator, mParserListener);
     }
 
     /**
@@ -147,16 +225,139 @@ class CameraPreviewStreamServer {
         mOnEosReceivedListener = onEosReceivedListener;
     }
 
+    /**
+     * Sets listener notified with descriptor of each started session, before its first frame is
+     * queued.
+     * @param onSessionStartedListener session listener
+     */
+    void setOnSessionStartedListener(OnSessionStartedListener onSessionStartedListener) {
+        mOnSessionStartedListener = onSessionStartedListener;
+    }
+
+    /**
+     * Sets off-heap storage for payloads of received frames.
+     * @param frameSlab slab storage, {@code null} to keep payloads in byte arrays
+     */
+    void setFrameSlab(FrameSlab frameSlab) {
+        mFrameSlab = frameSlab;
+    }
+
+    /**
+     * Sets controller notified with arrival of each received video frame.
+     * @param jitterBufferController jitter buffer controller, {@code null} to stop notifying
+     */
+    void setJitterBufferController(JitterBufferController jitterBufferController) {
+        mJitterBufferController = jitterBufferController;
+    }
+
+    /**
+     * Sets playable previewed in next session, its metadata is used to describe session once SOS
+     * is received.
+     * @param playable previewed playable, {@code null} if unknown
+     */
+    void setSessionPlayable(Playable playable) {
+        mSessionPlayable = playable;
+    }
+
+    /**
+     * Provides descriptor of last started session.
+     * @return session descriptor, {@code null} if no session started yet
+     */
+    PreviewSessionDescriptor getSessionDescriptor() {
+        return mSessionDescriptor;
+    }
+
+    /**
+     * Sets listener notified instead of queueing EOS, when session was marked with
+     * {@link #endSessionAtWindow()}.
+     * @param onWindowEndListener listener for end of window
+     */
+    void setOnWindowEndListener(OnEosReceivedListener onWindowEndListener) {
+        mOnWindowEndListener = onWindowEndListener;
+    }
+
+    /**
+     * Marks current session as a window of longer range, its EOS is not queued to buffer.
+     */
+    void endSessionAtWindow() {
+        mIsWindowSession = true;
+    }
+
+    /**
+     * Binds listener if not bound yet and starts accepting connections. Listener and its accepting
+     * thread stay up across {@link #start()}/{@link #stop()} cycles, until {@link #close()} is
+     * called, only port is moved by {@link #newSession(AbstractPreviewVideo.PreviewCommand)}.
+     * @return {@code true} if listener is bound
+     */
+    synchronized boolean open() {
+        if (mIsListening) {
+            return true;
+        }
+        if (!bindServerSocket(MIN_PORT, MAX_PORT - MIN_PORT + 1)) {
+            return false;
+        }
+        mIsListening = true;
+        mServerBackgroundExecutor.execute(mServerRunnable);
+        return true;
+    }
+
+    /**
+     * Binds listener to first free port of given count of ports, wrapping around at
+     * {@link #MAX_PORT}.
+     * @param firstPort first port to try
+     * @param portCount number of ports to try
+     * @return {@code true} if listener was bound
+     */
+    private boolean bindServerSocket(int firstPort, int portCount) {
+        int portRange = MAX_PORT - MIN_PORT + 1;
+        for (int i = 0; i < portCount; i++) {
+            int port = MIN_PORT + (firstPort - MIN_PORT + i) % portRange;
+            try {
+                mPreviewServerSocket = openServerSocket(port);
+                Logger.debug(TAG, "Server socket opened on " + port);
+                mPreviewServerSocket.setReceiveBufferSize(BUFFER_SIZE);
+                Logger.debug(TAG, "Socket buffer size set to " + BUFFER_SIZE);
+                mPort = port;
+                return true;
+            } catch (IOException e) {
+                continue;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves listener to next free port, so that camera can connect for current session only. Old
+     * listener is closed, connection attempts of superseded START are refused.
+     */
+    private void moveServerSocket() {
+        ServerSocket previousServerSocket = mPreviewServerSocket;
+        if (!bindServerSocket(mPort + 1, MAX_PORT - MIN_PORT)) {
+            Logger.warning(TAG, "No free port for new session, staying on " + mPort);
+            return;
+        }
+        try {
+            previousServerSocket.close();
+        } catch (IOException e) {
+            Logger.error(TAG, "Error closing server socket: " + e.getMessage());
+        }
+    }
+
     boolean start() {
         if(!mIsBufferingRunning) {
-            mIsBufferingRunning = true;
-            if (startServer()) {
-                Logger.info(TAG, "Client started listening on port : " + mPort);
-                return true;
-            } else {
+            if (!open()) {
                 Logger.info(TAG, "Client could listen on any port");
                 return false;
             }
+            mIsBufferingRunning = true;
+            synchronized (this) {
+                if (!mIsQueueRunning) {
+                    mIsQueueRunning = true;
+                    mQueueExecutor.execute(mQueueRunnable);
+                }
+            }
+            Logger.info(TAG, "Client started listening on port : " + mPort);
+            return true;
         }
         else {
             Logger.info(TAG, "Client already running on port : " + mPort);
@@ -164,21 +365,194 @@ class CameraPreviewStreamServer {
         }
     }
 
+    /**
+     * Starts new preview session. Should be called right before START command is sent to camera,
+     * any earlier connection is closed as stale. Camera doesn't echo anything identifying the
+     * session, so port it connects to serves as session token: each session gets its own port,
+     * which is set to returned command. Listener of previous port is closed, so late connection of
+     * superseded START is refused, regardless of position it starts at.
+     *
+     * If segment cache is set and beginning of requested range is cached, cached frames are queued
+     * locally and only the rest of the range has to be requested from camera.
+     * @param startCommand START command about to be sent
+     * @return command which should be sent to camera, or {@code null} if whole range is served
+     * from cache
+     */
+    synchronized AbstractPreviewVideo.PreviewCommand newSession(AbstractPreviewVideo.PreviewCommand startCommand) {
+        mSessionToken++;
+        mFrameRingBuffer.discardPending();
+        if (mSocket != null && mConnectionSessionToken != mSessionToken) {
+            closeConnection(mSocket);
+        }
+        synchronized (mProducerLock) {
+            mWaitingForFirstVideoFrame = true;
+            mWaitingForFirstAudioFrame = true;
+        }
+        mReplayLatch = null;
+        mIsWindowSession = false;
+        if (mIsListening) {
+            moveServerSocket();
+        }
+        startCommand.previewVideoPort = mPort;
+
+        PreviewSegmentCache segmentCache = mSegmentCache;
+        if (segmentCache == null) {
+            return startCommand;
+        }
+
+        String playableId = startCommand.videoId;
+        float endSecs = startCommand.startPositionSecs + startCommand.lengthSecs;
+        int fromPts = PreviewSegmentCache.secondsToPts(startCommand.startPositionSecs);
+        int toPts = PreviewSegmentCache.secondsToPts(endSecs);
+        PreviewSegmentCache.Segment segment = segmentCache.find(playableId, fromPts);
+        if (segment == null) {
+            segmentCache.startRecording(playableId, null);
+            return startCommand;
+        }
+
+        boolean isCovered = segment.hasEos() || segment.getEndPts() >= toPts;
+        Logger.info(TAG, "Serving " + playableId + " from cache, fully covered: " + isCovered);
+        startReplay(segmentCache, segment, fromPts, toPts, isCovered);
+        if (isCovered) {
+            segmentCache.stopRecording();
+            return null;
+        }
+
+        segmentCache.startRecording(playableId, segment);
+        float remainingStartSecs = PreviewSegmentCache.ptsToSeconds(segment.getEndPts() + 1);
+        return AbstractPreviewVideo.PreviewCommand.createStart(playableId, mPort, remainingStartSecs, endSecs - remainingStartSecs);
+    }
+
+    private void startReplay(final PreviewSegmentCache segmentCache, final PreviewSegmentCache.Segment segment,
+                             final int fromPts, final int toPts, final boolean isEosReplayed) {
+        final int sessionToken = mSessionToken;
+        final CountDownLatch replayLatch = new CountDownLatch(1);
+        mReplayLatch = replayLatch;
+        mIsReplaying = true;
+        segmentCache.pin(segment);
+        mReplayExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (sessionToken == mSessionToken) {
+                        // Cached frames come without SOS
+                        onSessionStarted(PreviewSessionDescriptor.create(0, mSessionPlayable));
+                    }
+                    segmentCache.read(segment, fromPts, toPts, new PreviewSegmentCache.FrameSink() {
+                        @Override
+                        public boolean onFrame(Frame frame) {
+                            while (!mPreviewBuffer.awaitNotFull(BACKPRESSURE_WAIT_MILLIS)) {
+                                if (!mIsBufferingRunning || sessionToken != mSessionToken) {
+                                    return false;
+                                }
+                            }
+                            return offerFrame(frame, sessionToken);
+                        }
+                    });
+                    if (sessionToken == mSessionToken) {
+                        mIsReplaying = false;
+                        if (isEosReplayed) {
+                            offerFrame(new Frame(0, Frame.Type.EOS, 0, 0, null), sessionToken);
+                        }
+                    }
+                } catch (IOException e) {
+                    Logger.error(TAG, "Reading cached segment failed: " + e.getMessage());
+                } finally {
+                    if (sessionToken == mSessionToken) {
+                        mIsReplaying = false;
+                    }
+                    segmentCache.unpin(segment);
+                    replayLatch.countDown();
+                }
+            }
+        });
+    }
+
+    private void awaitReplay(CountDownLatch replayLatch) {
+        try {
+            while (!replayLatch.await(BACKPRESSURE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!isCurrentSession()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Provides information if cached frames are being queued.
+     * @return {@code true} if replaying from cache
+     */
+    boolean isReplaying() {
+        return mIsReplaying;
+    }
+
+    /**
+     * Sets cache which records received frames and serves sessions starting in cached range.
+     * @param segmentCache cache to use, {@code null} to disable caching
+     */
+    void setSegmentCache(PreviewSegmentCache segmentCache) {
+        PreviewSegmentCache previousCache = mSegmentCache;
+        mSegmentCache = segmentCache;
+        if (previousCache != null && previousCache != segmentCache) {
+            previousCache.clear();
+        }
+    }
+
+    /**
+     * Stops buffering and closes current connection. Listener stays bound.
+     */
     void stop(){
         mIsBufferingRunning = false;
-        try{
+        mFrameRingBuffer.discardPending();
+        synchronized (this) {
+            // Invalidates current session, so neither reader nor cache replay queue anything more
+            mSessionToken++;
             if (mSocket != null) {
-                mSocket.close();
+                closeConnection(mSocket);
             }
-            if (mPreviewServerSocket != null){
-                mPreviewServerSocket.close();
-            }
-            if (mPreviewBuffer != null) {
-                mPreviewBuffer.clear();
+        }
+        if (mPreviewBuffer != null) {
+            mPreviewBuffer.clear();
+        }
+    }
+
+    /**
+     * Stops buffering, unbinds listener and finishes background threads. Server can be opened
+     * again, threads are started anew then.
+     */
+    void close() {
+        stop();
+        ExecutorService queueExecutor;
+        synchronized (this) {
+            mIsListening = false;
+            try {
+                if (mPreviewServerSocket != null) {
+                    mPreviewServerSocket.close();
+                }
+            } catch (IOException e) {
+                Logger.error(TAG, "Error closing server socket: " + e.getMessage());
             }
+            mPreviewServerSocket = null;
+
+            // Queue and replay loops only end on interrupt
+            queueExecutor = mQueueExecutor;
+            mServerBackgroundExecutor.shutdownNow();
+            mQueueExecutor.shutdownNow();
+            mReplayExecutor.shutdownNow();
+            mServerBackgroundExecutor = Executors.newSingleThreadExecutor();
+            mQueueExecutor = Executors.newSingleThreadExecutor();
+            mReplayExecutor = Executors.newSingleThreadExecutor();
+            mIsQueueRunning = false;
         }
-        catch (IOException e){
-            Logger.error(TAG, "Error closing socket: " + e.getMessage());
+        try {
+            // Ring has single consumer, so queue thread has to finish before server is started again
+            if (!queueExecutor.awaitTermination(BACKPRESSURE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Logger.warning(TAG, "Queue thread didn't finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -186,34 +560,257 @@ class CameraPreviewStreamServer {
         return mIsBufferingRunning;
     }
 
-    private boolean startServer(){
-        //always start on a different port, so we don't get some old information
-        mPort++;
-        if (mPort == MAX_PORT){
-            mPort = MIN_PORT;
+    private boolean isCurrentSession() {
+        return mConnectionSessionToken == mSessionToken;
+    }
+
+    private synchronized void closeConnection(Socket socket) {
+        closeSocket(socket);
+        if (mSocket == socket) {
+            mSocket = null;
         }
-        for(int port = mPort; port <= MAX_PORT; port++){
-            try{
-                mPreviewServerSocket = new ServerSocket(port);
-                Logger.debug(TAG, "Server socket opened on " + port);
-                mPreviewServerSocket.setReceiveBufferSize(BUFFER_SIZE);
-                Logger.debug(TAG, "Socket buffer size set to " + BUFFER_SIZE);
-                mPort = port;
-                mServerBackgroundExecutor.execute(mServerRunnable);
-                return true;
+    }
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.error(TAG, "Error closing socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads frames from accepted connection until EOS is received or server is stopped. Each
+     * frame should be handed over with {@link #dispatchFrame(Frame)}.
+     * @param socket accepted preview connection
+     * @throws IOException on connection error
+     */
+    protected void readFrames(Socket socket) throws IOException {
+        InputStream input = socket.getInputStream();
+        if (mReadBuffer == null) {
+            mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        ByteBuffer buffer = mReadBuffer;
+        buffer.clear();
+        mStreamParser.reset();
+        while (mIsBufferingRunning) {
+            buffer.flip();
+            boolean stop = mStreamParser.feed(buffer);
+            buffer.compact();
+            if (stop) {
+                break;
             }
-            catch (IOException e){
-                continue;
+            int requiredBytes = Math.max(mStreamParser.getRequiredBytes(), mReadBufferSizeHint);
+            if (requiredBytes > buffer.capacity()) {
+                Logger.debug(TAG, "Growing read buffer to " + requiredBytes + " bytes");
+                buffer.flip();
+                buffer = ByteBuffer.allocate(requiredBytes).put(buffer);
+                mReadBuffer = buffer;
+            }
+            int read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read == -1) {
+                throw new EOFException("Preview stream closed");
+            }
+            buffer.position(buffer.position() + read);
+        }
+    }
+
+    /**
+     * Waits until {@link PreviewBuffer} has space for another frame. While it waits stream isn't
+     * read, so TCP receive window throttles the camera.
+     * @return {@code false} if buffering was stopped meanwhile
+     */
+    private boolean awaitBufferSpace() {
+        while (mIsBufferingRunning) {
+            if (mPreviewBuffer != null && mPreviewBuffer.awaitNotFull(BACKPRESSURE_WAIT_MILLIS)) {
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * Creates frame for payload reported by {@link PreviewStreamParser}. Data is only valid during
+     * the call, so it is copied here, into {@link FrameSlab} if one is set and has room.
+     * @param version frame version
+     * @param type {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @param pts frame pts
+     * @param status frame status
+     * @param data frame payload between position and limit
+     * @return created frame
+     */
+    protected Frame createFrame(int version, Frame.Type type, int pts, int status, ByteBuffer data) {
+        FrameSlab frameSlab = mFrameSlab;
+        if (frameSlab != null) {
+            FrameSlab.Block block = frameSlab.store(data);
+            if (block != null) {
+                return new Frame(version, type, pts, status, block.getPayload(), block);
+            }
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new Frame(version, type, pts, status, bytes);
+    }
+
+    /**
+     * Hands over received frame to {@link PreviewBuffer} through {@link FrameRingBuffer} and
+     * records it into segment cache if one is set. Called from reader thread only.
+     * @param frame received frame
+     * @return {@code true} if frame was EOS and reading of current connection should stop
+     */
+    protected boolean dispatchFrame(Frame frame) {
+        int sessionToken = mConnectionSessionToken;
+        if (sessionToken != mSessionToken) {
+            frame.release();
+            return true;
+        }
+        Frame.Type fType = frame.getType();
+        if (fType == Frame.Type.SOS) {
+            PreviewSessionDescriptor sessionDescriptor = PreviewSessionDescriptor.create(frame.getVersion(), mSessionPlayable);
+            onStartOfStream(sessionDescriptor);
+            onSessionStarted(sessionDescriptor);
+            frame.release();
+            return false;
+        }
+
+        PreviewSessionDescriptor sessionDescriptor = mSessionDescriptor;
+        if (fType == Frame.Type.AUDIO && sessionDescriptor != null && !sessionDescriptor.hasAudio()) {
+            // Muted playable is never heard, so its audio isn't buffered or decoded
+            frame.release();
+            return false;
+        }
+        JitterBufferController jitterBufferController = mJitterBufferController;
+        if (jitterBufferController != null && fType == Frame.Type.VIDEO) {
+            jitterBufferController.onVideoFrameReceived(frame.getPts(), System.nanoTime());
+        }
+        PreviewSegmentCache segmentCache = mSegmentCache;
+        if (segmentCache != null && !(fType == Frame.Type.EOS && mIsWindowSession)) {
+            // End of window isn't end of recorded range, rest is queued with queueSessionFrame()
+            segmentCache.record(frame);
+        }
+        if (!offerFrame(frame, sessionToken)) {
+            return true;
+        }
+        return fType == Frame.Type.EOS;
+    }
+
+    /**
+     * Hands over frame of current session which this server didn't receive, e.g. merged from
+     * prefetch stream after end of window. Frame is recorded into segment cache and queued in the
+     * same way as received frames. It isn't reported to jitter buffer controller, as merged frames
+     * come in bursts, which don't tell anything about network jitter.
+     * @param frame frame continuing current session
+     * @return {@code true} if frame was accepted, {@code false} if session is not current anymore
+     */
+    boolean queueSessionFrame(Frame frame) {
+        int sessionToken = mSessionToken;
+        PreviewSegmentCache segmentCache = mSegmentCache;
+        if (segmentCache != null) {
+            segmentCache.record(frame);
+        }
+        return offerFrame(frame, sessionToken);
+    }
+
+    /**
+     * Called from reader thread when SOS is received, before any frame of the session is read.
+     * Sizes read buffer so estimated frame fits without growing it mid-stream.
+     * @param sessionDescriptor descriptor of started session
+     */
+    protected void onStartOfStream(PreviewSessionDescriptor sessionDescriptor) {
+        int estimatedFrameSize = sessionDescriptor.getEstimatedFrameSize();
+        if (estimatedFrameSize > 0) {
+            mReadBufferSizeHint = Math.min(estimatedFrameSize, mFrameValidator.getMaxFrameSize())
+                    + PreviewStreamParser.WIRE_HEADER_LENGTH;
+        }
+    }
+
+    private void onSessionStarted(PreviewSessionDescriptor sessionDescriptor) {
+        Logger.info(TAG, "Session started: " + sessionDescriptor);
+        mSessionDescriptor = sessionDescriptor;
+        if (mPreviewBuffer != null) {
+            mPreviewBuffer.configure(sessionDescriptor);
+        }
+        if (mOnSessionStartedListener != null) {
+            mOnSessionStartedListener.onSessionStarted(sessionDescriptor);
+        }
+    }
+
+    /**
+     * Sets first frame flags and offers frame to {@link FrameRingBuffer}. Producers (connection
+     * reader and cache replay) never run at the same time, lock only guards handover between them.
+     * @param frame frame to offer
+     * @param sessionToken session frame belongs to
+     * @return {@code true} if frame was accepted, {@code false} if session is not current anymore
+     */
+    private boolean offerFrame(Frame frame, int sessionToken) {
+        synchronized (mProducerLock) {
+            Frame.Type fType = frame.getType();
+            if (fType == Frame.Type.VIDEO && mWaitingForFirstVideoFrame) {
+                mWaitingForFirstVideoFrame = false;
+                frame.setIsFirstFrame(true);
+            } else if (fType == Frame.Type.AUDIO && mWaitingForFirstAudioFrame) {
+                mWaitingForFirstAudioFrame = false;
+                frame.setIsFirstFrame(true);
+            } else if (fType == Frame.Type.EOS && !mIsWindowSession) {
+                // Frames after end of window continue the same file
+                mWaitingForFirstVideoFrame = true;
+                mWaitingForFirstAudioFrame = true;
+            }
+
+            while (mIsBufferingRunning && sessionToken == mSessionToken) {
+                if (mFrameRingBuffer.offer(frame)) {
+                    return true;
+                }
+                LockSupport.parkNanos(RING_FULL_PARK_NANOS);
+            }
+            frame.release();
+            return false;
+        }
+    }
+
+    /**
+     * Opens server socket on given port.
+     * @param port port to bind to
+     * @return bound server socket
+     * @throws IOException if port can't be bound
+     */
+    protected ServerSocket openServerSocket(int port) throws IOException {
+        return new ServerSocket(port);
+    }
+
+    protected boolean isBufferingRunning() {
+        return mIsBufferingRunning;
+    }
+
+    protected PreviewStreamParser getStreamParser() {
+        return mStreamParser;
+    }
+
+    protected PreviewBuffer getPreviewBuffer() {
+        return mPreviewBuffer;
+    }
+
     int getPort(){
         return mPort;
     }
 
+    long getBackpressureStallMillis() {
+        return mPreviewBuffer.getBackpressureStallMillis();
+    }
+
+    long getResyncCount() {
+        return mFrameValidator.getResyncCount();
+    }
+
+    long getDiscardedBytes() {
+        return mFrameValidator.getDiscardedBytes();
+    }
+
     interface OnEosReceivedListener {
         void onEosReceived();
     }
+
+    interface OnSessionStartedListener {
+        void onSessionStarted(PreviewSessionDescriptor sessionDescriptor);
+    }
 }
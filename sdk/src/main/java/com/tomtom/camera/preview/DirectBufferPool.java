@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of equally sized direct {@link ByteBuffer}s, used to avoid allocating a new buffer for
+ * every received frame.
+ */
+class DirectBufferPool {
+
+    private int mBufferSize;
+    private final int mMaxPooledBuffers;
+    private final ArrayDeque<ByteBuffer> mPool;
+
+    DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+        mBufferSize = bufferSize;
+        mMaxPooledBuffers = maxPooledBuffers;
+        mPool = new ArrayDeque<>(maxPooledBuffers);
+    }
+
+    /**
+     * Provides cleared buffer from pool, or allocates new one if pool is empty.
+     * @return direct buffer of {@link #getBufferSize()} capacity
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mPool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool. Buffers of different size or buffers over pool limit are dropped.
+     * @param buffer buffer obtained with {@link #acquire()}
+     */
+    synchronized void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() == mBufferSize && mPool.size() < mMaxPooledBuffers) {
+            buffer.clear();
+            mPool.offer(buffer);
+        }
+    }
+
+    synchronized void clear() {
+        mPool.clear();
+    }
+
+    synchronized int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Changes size of provided buffers. Pooled buffers of previous size are dropped, buffers in use
+     * are dropped once recycled.
+     * @param bufferSize new buffer size
+     */
+    synchronized void setBufferSize(int bufferSize) {
+        if (bufferSize != mBufferSize) {
+            mBufferSize = bufferSize;
+            mPool.clear();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.tomtom.camera.preview;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 /**
@@ -62,6 +63,10 @@ public class Frame {
     private int mPts;
     private int mStatus;
     private byte[] mFrameBytes;
+    private ByteBuffer mFrameBuffer;
+    private FrameReleaser mFrameReleaser;
+    private int mRetainCount;
+    private boolean mIsReleasePending;
 
     public Frame(int version, Type type, int pts, int status, byte[] frameBytes, boolean isFirstFrame) {
         this(version, type, pts, status, frameBytes);
@@ -76,6 +81,21 @@ public class Frame {
         mFrameBytes = frameBytes;
     }
 
+    /**
+     * Creates frame backed by a view into a (pooled) buffer. Buffer content is not copied, given
+     * releaser is notified once frame is consumed so underlying memory can be reused.
+     * @param frameBuffer view into frame payload, from position to limit
+     * @param frameReleaser releaser notified on {@link #release()}, can be {@code null}
+     */
+    Frame(int version, Type type, int pts, int status, ByteBuffer frameBuffer, FrameReleaser frameReleaser) {
+        mVersion = version;
+        mType = type;
+        mPts = pts;
+        mStatus = status;
+        mFrameBuffer = frameBuffer;
+        mFrameReleaser = frameReleaser;
+    }
+
     public int getVersion() {
         return mVersion;
     }
@@ -92,10 +112,112 @@ public class Frame {
         return mStatus;
     }
 
-    public byte[] getBytes(){
+    /**
+     * Provides frame payload as byte array. For buffer backed frames payload is copied on first call
+     * and kept on heap for the lifetime of frame, consumers which can read {@link #getBuffer()}
+     * should prefer it.
+     * @return payload bytes, or {@code null} if frame has no payload
+     */
+    public synchronized byte[] getBytes(){
+        if (mFrameBytes == null && mFrameBuffer != null) {
+            ByteBuffer buffer = mFrameBuffer.duplicate();
+            mFrameBytes = new byte[buffer.remaining()];
+            buffer.get(mFrameBytes);
+        }
         return mFrameBytes;
     }
 
+    /**
+     * Provides information if payload is kept in a buffer, which may be off-heap, rather than in
+     * byte array.
+     * @return {@code true} if frame is buffer backed
+     */
+    public synchronized boolean isBufferBacked() {
+        return mFrameBuffer != null;
+    }
+
+    /**
+     * Copies payload into new array, without keeping the copy in frame.
+     * @return payload bytes, or {@code null} if frame has no payload
+     */
+    public synchronized byte[] copyBytes() {
+        if (mFrameBytes != null || mFrameBuffer == null) {
+            return mFrameBytes;
+        }
+        ByteBuffer buffer = mFrameBuffer.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Provides read-only view of frame payload without copying it. View is valid until
+     * {@link #release()} is called.
+     * @return payload view, or {@code null} if frame has no payload
+     */
+    public synchronized ByteBuffer getBuffer() {
+        if (mFrameBuffer != null) {
+            return mFrameBuffer.asReadOnlyBuffer();
+        }
+        if (mFrameBytes != null) {
+            return ByteBuffer.wrap(mFrameBytes).asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    /**
+     * Provides payload length in bytes.
+     * @return payload length
+     */
+    public synchronized int getLength() {
+        if (mFrameBuffer != null) {
+            return mFrameBuffer.remaining();
+        }
+        return mFrameBytes != null ? mFrameBytes.length : 0;
+    }
+
+    /**
+     * Releases buffer backing this frame. Should be called once frame is consumed, afterwards only
+     * bytes already copied with {@link #getBytes()} remain accessible.
+     */
+    public synchronized void release() {
+        if (mRetainCount > 0) {
+            // Payload is still being read, it's released once reader is done
+            mIsReleasePending = true;
+            return;
+        }
+        if (mFrameReleaser != null) {
+            mFrameBuffer = null;
+            mFrameReleaser.release();
+            mFrameReleaser = null;
+        }
+    }
+
+    /**
+     * Keeps payload valid while it is read outside of buffer, e.g. on decoding thread, while
+     * buffer may drop the frame. {@link #release()} called meanwhile is deferred until
+     * {@link #unretain()}.
+     * @return {@code true} if payload is accessible, {@code false} if frame was released already
+     */
+    synchronized boolean retain() {
+        if (mFrameBuffer == null && mFrameBytes == null) {
+            return false;
+        }
+        mRetainCount++;
+        return true;
+    }
+
+    /**
+     * Ends reading started with successful {@link #retain()}, performing deferred release if any.
+     */
+    synchronized void unretain() {
+        mRetainCount--;
+        if (mRetainCount == 0 && mIsReleasePending) {
+            mIsReleasePending = false;
+            release();
+        }
+    }
+
     public boolean isFirstFrame() {
         return mIsFirstFrame;
     }
@@ -103,4 +225,11 @@ public class Frame {
     public void setIsFirstFrame(boolean isFirstFrame) {
         mIsFirstFrame = isFirstFrame;
     }
+
+    /**
+     * Notified when buffer backed frame is released.
+     */
+    interface FrameReleaser {
+        void release();
+    }
 }
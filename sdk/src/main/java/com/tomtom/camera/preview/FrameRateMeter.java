@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures rate of events, such as presented frames, over consecutive one second windows.
+ */
+class FrameRateMeter {
+
+    private static final long WINDOW_NANOS = SECONDS.toNanos(1);
+
+    private final TimeSource mTimeSource;
+    private long mWindowStartNanos;
+    private int mWindowCount;
+    private float mRate;
+
+    FrameRateMeter(TimeSource timeSource) {
+        mTimeSource = timeSource;
+    }
+
+    synchronized void onEvent() {
+        long nowNanos = mTimeSource.nanoTime();
+        closeWindow(nowNanos);
+        mWindowCount++;
+    }
+
+    /**
+     * Provides rate measured in last complete window.
+     * @return events per second, 0 if there were no events in last window
+     */
+    synchronized float getRate() {
+        closeWindow(mTimeSource.nanoTime());
+        return mRate;
+    }
+
+    private void closeWindow(long nowNanos) {
+        long elapsedNanos = nowNanos - mWindowStartNanos;
+        if (mWindowStartNanos == 0 || elapsedNanos >= 2 * WINDOW_NANOS) {
+            // No events for whole window
+            mRate = 0;
+            mWindowStartNanos = nowNanos;
+            mWindowCount = 0;
+        } else if (elapsedNanos >= WINDOW_NANOS) {
+            mRate = (float) mWindowCount * WINDOW_NANOS / elapsedNanos;
+            mWindowStartNanos = nowNanos;
+            mWindowCount = 0;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single producer, single consumer ring of {@link Frame}s. Producer and consumer only
+ * publish their own sequence, so handing over a frame takes no lock and allocates nothing.
+ * Consumer can block with {@link #awaitFrames()} until producer offers a frame.
+ */
+class FrameRingBuffer {
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final Frame[] mSlots;
+    private final int mMask;
+
+    /** Sequence of next slot to read, written by consumer only. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Sequence of next slot to write, written by producer only. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private long mCachedHead;
+    private long mCachedTail;
+
+    private volatile long mDiscardUntil;
+    private volatile Thread mWaitingConsumer;
+
+    FrameRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity ring capacity, rounded up to power of two
+     */
+    FrameRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSlots = new Frame[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Offers frame to ring. Must be called from producer thread only.
+     * @param frame frame to hand over
+     * @return {@code true} if accepted, {@code false} if ring is full
+     */
+    boolean offer(Frame frame) {
+        long tail = mTail.get();
+        if (tail - mCachedHead >= mSlots.length) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= mSlots.length) {
+                return false;
+            }
+        }
+        mSlots[(int) tail & mMask] = frame;
+        // Full store, so that waiting consumer is read only after new tail is visible to it
+        mTail.set(tail + 1);
+
+        Thread waitingConsumer = mWaitingConsumer;
+        if (waitingConsumer != null) {
+            LockSupport.unpark(waitingConsumer);
+        }
+        return true;
+    }
+
+    /**
+     * Hands over up to given number of frames to handler. Must be called from consumer thread only.
+     * Frames offered before last {@link #discardPending()} are released instead.
+     * @param frameHandler handler receiving frames in offered order
+     * @param maxFrames maximum number of frames handed over in this batch
+     * @return number of frames taken from ring
+     */
+    int drain(FrameHandler frameHandler, int maxFrames) {
+        long head = mHead.get();
+        if (head >= mCachedTail) {
+            mCachedTail = mTail.get();
+            if (head >= mCachedTail) {
+                return 0;
+            }
+        }
+        int count = (int) Math.min(maxFrames, mCachedTail - head);
+        long discardUntil = mDiscardUntil;
+        for (int i = 0; i < count; i++) {
+            int index = (int) (head + i) & mMask;
+            Frame frame = mSlots[index];
+            mSlots[index] = null;
+            if (head + i < discardUntil) {
+                frame.release();
+            } else {
+                frameHandler.onFrame(frame);
+            }
+        }
+        mHead.lazySet(head + count);
+        return count;
+    }
+
+    /**
+     * Blocks consumer thread until ring is not empty or thread is interrupted. Consumer is
+     * published before ring is checked and producer reads it only after publishing new tail, so
+     * either consumer sees offered frame or producer sees consumer and unparks it.
+     */
+    void awaitFrames() {
+        mWaitingConsumer = Thread.currentThread();
+        while (isEmpty() && !Thread.currentThread().isInterrupted()) {
+            LockSupport.park(this);
+        }
+        mWaitingConsumer = null;
+    }
+
+    /**
+     * Marks all frames currently in ring as stale, consumer releases them without handing them over.
+     * Can be called from any thread.
+     */
+    void discardPending() {
+        mDiscardUntil = mTail.get();
+    }
+
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Receives frames drained from ring.
+     */
+    interface FrameHandler {
+        void onFrame(Frame frame);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Off-heap storage for frame payloads. Slabs of direct memory are carved into blocks of power of
+ * two size classes, frame payload is copied into smallest block it fits and block is returned to
+ * its free list once frame is released. Slab memory is bounded, payloads which don't fit are left
+ * to caller.
+ */
+class FrameSlab {
+
+    static final int MIN_BLOCK_SIZE = 4 * 1024;
+    static final int MAX_BLOCK_SIZE = 8 * 1024 * 1024;
+    static final int SLAB_SIZE = 1024 * 1024;
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_BLOCK_SIZE / MIN_BLOCK_SIZE) + 1;
+
+    private final long mMaxBytes;
+    private final ArrayDeque<Block>[] mFreeBlocks;
+    private long mSlabBytes;
+    private long mUsedBytes;
+
+    /**
+     * @param maxBytes maximum size of all allocated slabs
+     */
+    @SuppressWarnings("unchecked")
+    FrameSlab(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mFreeBlocks = new ArrayDeque[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            mFreeBlocks[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Copies payload into free block.
+     * @param data payload between position and limit, position is moved to limit if copied
+     * @return block holding payload, or {@code null} if payload is too large or slab memory is
+     *         exhausted
+     */
+    synchronized Block store(ByteBuffer data) {
+        int length = data.remaining();
+        if (length > MAX_BLOCK_SIZE) {
+            return null;
+        }
+        int sizeClass = getSizeClass(length);
+        Block block = mFreeBlocks[sizeClass].poll();
+        if (block == null) {
+            if (!carve(sizeClass)) {
+                return null;
+            }
+            block = mFreeBlocks[sizeClass].poll();
+        }
+        block.mView.clear();
+        block.mView.put(data);
+        block.mView.flip();
+        mUsedBytes += block.mView.capacity();
+        return block;
+    }
+
+    private synchronized void recycle(Block block) {
+        mUsedBytes -= block.mView.capacity();
+        mFreeBlocks[getSizeClass(block.mView.capacity())].push(block);
+    }
+
+    /**
+     * Allocates new slab and splits it into free blocks of given size class.
+     */
+    private boolean carve(int sizeClass) {
+        int blockSize = MIN_BLOCK_SIZE << sizeClass;
+        int slabSize = Math.max(SLAB_SIZE, blockSize);
+        if (mSlabBytes + slabSize > mMaxBytes) {
+            return false;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        for (int position = 0; position < slabSize; position += blockSize) {
+            slab.limit(position + blockSize);
+            slab.position(position);
+            mFreeBlocks[sizeClass].push(new Block(slab.slice()));
+        }
+        mSlabBytes += slabSize;
+        return true;
+    }
+
+    private static int getSizeClass(int length) {
+        if (length <= MIN_BLOCK_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((length - 1) / MIN_BLOCK_SIZE);
+    }
+
+    /**
+     * Provides size of allocated slab memory.
+     * @return slab bytes
+     */
+    synchronized long getSlabBytes() {
+        return mSlabBytes;
+    }
+
+    /**
+     * Provides size of blocks holding payloads of frames not released yet.
+     * @return used bytes
+     */
+    synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * Block of slab memory holding payload of one frame, returned to slab when frame is released.
+     */
+    final class Block implements Frame.FrameReleaser {
+
+        /** View of block, limited to stored payload. */
+        private final ByteBuffer mView;
+
+        private Block(ByteBuffer view) {
+            mView = view;
+        }
+
+        ByteBuffer getPayload() {
+            return mView;
+        }
+
+        @Override
+        public void release() {
+            recycle(this);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.util.Logger;
+
+/**
+ * Validates preview frame headers against configured limits and keeps track of stream resyncs.
+ * When header doesn't pass validation reader should discard bytes one by one until next valid
+ * header is found, instead of trusting a garbage length.
+ */
+class FrameValidator {
+
+    private static final String TAG = "FrameValidator";
+
+    static final int DEFAULT_MIN_VERSION = 0;
+    static final int DEFAULT_MAX_VERSION = 255;
+    static final int DEFAULT_MAX_VIDEO_FRAME_SIZE = 8 * 1024 * 1024;
+    static final int DEFAULT_MAX_AUDIO_FRAME_SIZE = 64 * 1024;
+
+    private final int mMinVersion;
+    private final int mMaxVersion;
+    private final int mMaxVideoFrameSize;
+    private final int mMaxAudioFrameSize;
+
+    private boolean mIsResyncing;
+    private long mCurrentResyncBytes;
+    private volatile long mResyncCount;
+    private volatile long mDiscardedBytes;
+
+    FrameValidator() {
+        this(DEFAULT_MIN_VERSION, DEFAULT_MAX_VERSION, DEFAULT_MAX_VIDEO_FRAME_SIZE, DEFAULT_MAX_AUDIO_FRAME_SIZE);
+    }
+
+    /**
+     * @param minVersion lowest accepted protocol version
+     * @param maxVersion highest accepted protocol version
+     * @param maxVideoFrameSize maximum accepted video payload in bytes
+     * @param maxAudioFrameSize maximum accepted audio payload in bytes
+     */
+    FrameValidator(int minVersion, int maxVersion, int maxVideoFrameSize, int maxAudioFrameSize) {
+        mMinVersion = minVersion;
+        mMaxVersion = maxVersion;
+        mMaxVideoFrameSize = maxVideoFrameSize;
+        mMaxAudioFrameSize = maxAudioFrameSize;
+    }
+
+    /**
+     * Checks header fields. Length is checked only for frames carrying payload.
+     * @param version version field
+     * @param type type field
+     * @param dataLength length field
+     * @return {@code true} if header is valid
+     */
+    boolean isValidHeader(int version, int type, int dataLength) {
+        if (version < mMinVersion || version > mMaxVersion) {
+            return false;
+        }
+        if (type == Frame.Type.VIDEO.value()) {
+            return dataLength > 0 && dataLength <= mMaxVideoFrameSize;
+        }
+        if (type == Frame.Type.AUDIO.value()) {
+            return dataLength > Frame.AAC_ADTS_HEADER && dataLength <= mMaxAudioFrameSize;
+        }
+        return type == Frame.Type.SOS.value() || type == Frame.Type.EOS.value();
+    }
+
+    /**
+     * Should be called for every byte skipped while looking for next valid header.
+     */
+    void onByteDiscarded() {
+        if (!mIsResyncing) {
+            mIsResyncing = true;
+            mCurrentResyncBytes = 0;
+            mResyncCount++;
+            Logger.warning(TAG, "Invalid frame header, resyncing stream");
+        }
+        mCurrentResyncBytes++;
+        mDiscardedBytes++;
+    }
+
+    /**
+     * Should be called when valid header is found.
+     */
+    void onHeaderAccepted() {
+        if (mIsResyncing) {
+            mIsResyncing = false;
+            Logger.info(TAG, "Stream resynced after discarding " + mCurrentResyncBytes + " bytes");
+        }
+    }
+
+    int getMaxFrameSize() {
+        return Math.max(mMaxVideoFrameSize, mMaxAudioFrameSize);
+    }
+
+    /**
+     * Provides number of times stream lost sync.
+     * @return resync count
+     */
+    long getResyncCount() {
+        return mResyncCount;
+    }
+
+    /**
+     * Provides total number of bytes discarded while resyncing.
+     * @return discarded bytes
+     */
+    long getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.util.Logger;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Tunes {@link PreviewBuffer} low and ready limits from observed stream arrival. Inter-arrival
+ * jitter is estimated as in RFC 3550, from difference between arrival spacing and pts spacing of
+ * consecutive video frames, together with ratio of received media time to wall time. Ready limit
+ * covers a multiple of jitter, grows with throughput deficit and after each rebuffer, and is kept
+ * within configured bounds. Also keeps rebuffer and time to first frame statistics.
+ */
+class JitterBufferController {
+
+    private static final String TAG = "JitterBufferController";
+
+    static final int DEFAULT_MIN_READY_MILLIS = 500;
+    static final int DEFAULT_MAX_READY_MILLIS = PreviewBuffer.DEFAULT_CAPACITY_MILLIS * 3 / 4;
+
+    private static final int JITTER_GAIN_DIVIDER = 16;
+    private static final int THROUGHPUT_GAIN_DIVIDER = 32;
+    private static final int JITTER_MULTIPLIER = 4;
+    private static final int REBUFFER_PENALTY_STEP_MILLIS = 250;
+    private static final int ADJUST_INTERVAL_FRAMES = 30;
+    private static final int ADJUST_THRESHOLD_MILLIS = 100;
+    /** Frame spacing above this is treated as stream discontinuity. */
+    private static final int MAX_FRAME_SPACING_MILLIS = 1000;
+    private static final float NANOS_PER_MILLISECOND = 1000000f;
+
+    private final PreviewBuffer mPreviewBuffer;
+
+    private boolean mIsAdaptive;
+    private int mMinReadyMillis = DEFAULT_MIN_READY_MILLIS;
+    private int mMaxReadyMillis = DEFAULT_MAX_READY_MILLIS;
+    private int mAppliedReadyMillis;
+
+    private boolean mHasLastArrival;
+    private long mLastArrivalNanos;
+    private int mLastPts;
+    private float mJitterMillis;
+    private float mThroughput = 1;
+    private int mFramesSinceAdjust;
+    private int mRebufferPenaltyMillis;
+
+    private long mRebufferCount;
+    private long mRebufferStartNanos;
+    private long mRebufferNanos;
+    private long mPlaybackRequestNanos;
+    private long mTimeToFirstFrameNanos = -1;
+
+    JitterBufferController(PreviewBuffer previewBuffer) {
+        mPreviewBuffer = previewBuffer;
+    }
+
+    /**
+     * Enables tuning of buffer limits within given bounds of ready limit. Low limit is kept at half
+     * of ready limit. Low and ready limits set on buffer by caller are overwritten from now on,
+     * capacity is kept.
+     * @param minReadyMillis lowest ready limit
+     * @param maxReadyMillis highest ready limit, should be below buffer capacity
+     */
+    synchronized void enable(int minReadyMillis, int maxReadyMillis) {
+        mIsAdaptive = true;
+        mMinReadyMillis = minReadyMillis;
+        mMaxReadyMillis = Math.max(minReadyMillis, maxReadyMillis);
+        mAppliedReadyMillis = 0;
+        adjust();
+    }
+
+    /**
+     * Disables tuning and restores default low and ready limits.
+     */
+    synchronized void disable() {
+        if (mIsAdaptive) {
+            mIsAdaptive = false;
+            mPreviewBuffer.setDurationLimits(mPreviewBuffer.getCapacityMillis(),
+                    PreviewBuffer.DEFAULT_LOW_MILLIS, PreviewBuffer.DEFAULT_READY_MILLIS);
+        }
+    }
+
+    /**
+     * Should be called on start of each stream session, frame spacing isn't measured across
+     * sessions.
+     */
+    synchronized void onSessionStarted() {
+        mHasLastArrival = false;
+        if (mRebufferPenaltyMillis > 0) {
+            // Penalty of earlier rebuffers fades with sessions played without them
+            mRebufferPenaltyMillis = mRebufferPenaltyMillis * 3 / 4;
+        }
+    }
+
+    /**
+     * Should be called from reader for each received video frame.
+     * @param pts frame pts
+     * @param arrivalNanos arrival time from {@link System#nanoTime()}
+     */
+    synchronized void onVideoFrameReceived(int pts, long arrivalNanos) {
+        if (mHasLastArrival) {
+            float ptsSpacingMillis = (float) (pts - mLastPts) / PreviewBuffer.PTS_PER_MILLISECOND;
+            float arrivalSpacingMillis = (float) (arrivalNanos - mLastArrivalNanos) / NANOS_PER_MILLISECOND;
+            if (ptsSpacingMillis > 0 && ptsSpacingMillis <= MAX_FRAME_SPACING_MILLIS) {
+                float transitDelta = Math.abs(arrivalSpacingMillis - ptsSpacingMillis);
+                mJitterMillis += (transitDelta - mJitterMillis) / JITTER_GAIN_DIVIDER;
+                if (arrivalSpacingMillis > 0) {
+                    float throughput = ptsSpacingMillis / arrivalSpacingMillis;
+                    mThroughput += (throughput - mThroughput) / THROUGHPUT_GAIN_DIVIDER;
+                }
+            }
+        }
+        mHasLastArrival = true;
+        mLastArrivalNanos = arrivalNanos;
+        mLastPts = pts;
+
+        if (mIsAdaptive && ++mFramesSinceAdjust >= ADJUST_INTERVAL_FRAMES) {
+            adjust();
+        }
+    }
+
+    /**
+     * Sets low and ready limits of buffer from current estimates, replacing whatever was set before.
+     */
+    private void adjust() {
+        mFramesSinceAdjust = 0;
+        float readyMillis = mMinReadyMillis + JITTER_MULTIPLIER * mJitterMillis + mRebufferPenaltyMillis;
+        if (mThroughput < 1) {
+            // Link is slower than playback, buffer has to cover deficit for longer part of range
+            readyMillis += (1 - mThroughput) * mMaxReadyMillis;
+        }
+        int ready = Math.max(mMinReadyMillis, Math.min(mMaxReadyMillis, (int) readyMillis));
+        if (Math.abs(ready - mAppliedReadyMillis) >= ADJUST_THRESHOLD_MILLIS) {
+            Logger.debug(TAG, "Ready limit " + ready + " ms, jitter " + mJitterMillis + " ms, throughput " + mThroughput);
+            mAppliedReadyMillis = ready;
+            mPreviewBuffer.setDurationLimits(mPreviewBuffer.getCapacityMillis(), ready / 2, ready);
+        }
+    }
+
+    /**
+     * Should be called when playback was requested, time to first frame is measured from here.
+     */
+    synchronized void onPlaybackRequested() {
+        mPlaybackRequestNanos = System.nanoTime();
+    }
+
+    /**
+     * Should be called when first frame of a file is presented.
+     */
+    synchronized void onFirstFramePresented() {
+        if (mPlaybackRequestNanos != 0) {
+            mTimeToFirstFrameNanos = System.nanoTime() - mPlaybackRequestNanos;
+            mPlaybackRequestNanos = 0;
+        }
+    }
+
+    /**
+     * Should be called when playback stalls on empty buffer before end of stream.
+     */
+    synchronized void onRebufferStarted() {
+        if (mRebufferStartNanos != 0) {
+            return;
+        }
+        mRebufferCount++;
+        mRebufferStartNanos = System.nanoTime();
+        mRebufferPenaltyMillis = Math.min(mMaxReadyMillis, mRebufferPenaltyMillis + REBUFFER_PENALTY_STEP_MILLIS);
+        if (mIsAdaptive) {
+            adjust();
+        }
+    }
+
+    /**
+     * Should be called when playback resumes or is stopped, ends rebuffer in progress.
+     */
+    synchronized void onRebufferEnded() {
+        if (mRebufferStartNanos != 0) {
+            mRebufferNanos += System.nanoTime() - mRebufferStartNanos;
+            mRebufferStartNanos = 0;
+        }
+    }
+
+    synchronized float getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * Provides ratio of received media time to wall time, below 1 stream arrives slower than it
+     * plays.
+     * @return throughput ratio
+     */
+    synchronized float getThroughput() {
+        return mThroughput;
+    }
+
+    synchronized long getRebufferCount() {
+        return mRebufferCount;
+    }
+
+    /**
+     * Provides total time playback was stalled by rebuffers.
+     * @return rebuffer time in milliseconds
+     */
+    synchronized long getRebufferMillis() {
+        long rebufferNanos = mRebufferNanos;
+        if (mRebufferStartNanos != 0) {
+            rebufferNanos += System.nanoTime() - mRebufferStartNanos;
+        }
+        return NANOSECONDS.toMillis(rebufferNanos);
+    }
+
+    /**
+     * Provides time from last playback request to its first presented frame.
+     * @return time to first frame in milliseconds, -1 if not measured yet
+     */
+    synchronized long getTimeToFirstFrameMillis() {
+        return mTimeToFirstFrameNanos >= 0 ? NANOSECONDS.toMillis(mTimeToFirstFrameNanos) : -1;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Histogram of operation durations with fixed millisecond buckets, recording is lock free and
+ * allocates nothing.
+ */
+class LatencyHistogram {
+
+    /** Inclusive upper bounds of buckets, last bucket holds everything longer. */
+    static final int[] BUCKET_UPPER_BOUNDS_MILLIS = {1, 2, 4, 8, 16, 33, 66, 133, Integer.MAX_VALUE};
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_UPPER_BOUNDS_MILLIS.length);
+
+    /**
+     * Records single duration.
+     * @param durationNanos duration in nanoseconds
+     */
+    void record(long durationNanos) {
+        long durationMillis = NANOSECONDS.toMillis(durationNanos);
+        int bucket = 0;
+        while (durationMillis > BUCKET_UPPER_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        mCounts.incrementAndGet(bucket);
+    }
+
+    /**
+     * Provides number of recorded durations in each bucket.
+     * @return counts, indexed like {@link #BUCKET_UPPER_BOUNDS_MILLIS}
+     */
+    long[] getCounts() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+}
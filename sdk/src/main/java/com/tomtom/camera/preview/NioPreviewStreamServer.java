@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.util.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CameraPreview stream server reading frames with {@link SocketChannel} into pooled direct
+ * buffers, which are parsed in place by {@link PreviewStreamParser}. Frames are handed over as
+ * views into received data, so no per frame payload array is allocated.
+ */
+class NioPreviewStreamServer extends CameraPreviewStreamServer {
+
+    private static final String TAG = "NioPreviewStreamServer";
+
+    static final int DEFAULT_SEGMENT_SIZE = 2 * 1024 * 1024;
+    static final int DEFAULT_MAX_POOLED_SEGMENTS = 16;
+    private static final int MIN_FRAMES_PER_SEGMENT = 8;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final DirectBufferPool mBufferPool;
+    private final int mDefaultSegmentSize;
+
+    private Segment mSegment;
+    private int mParsePosition;
+
+    NioPreviewStreamServer(PreviewBuffer previewBuffer) {
+        this(previewBuffer, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_POOLED_SEGMENTS);
+    }
+
+    NioPreviewStreamServer(PreviewBuffer previewBuffer, int segmentSize, int maxPooledSegments) {
+        this(previewBuffer, segmentSize, maxPooledSegments, new FrameValidator());
+    }
+
+    NioPreviewStreamServer(PreviewBuffer previewBuffer, int segmentSize, int maxPooledSegments, FrameValidator frameValidator) {
+        super(previewBuffer, null, frameValidator);
+        mBufferPool = new DirectBufferPool(segmentSize, maxPooledSegments);
+        mDefaultSegmentSize = segmentSize;
+    }
+
+    @Override
+    protected ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        try {
+            serverSocketChannel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocketChannel.close();
+            throw e;
+        }
+        return serverSocketChannel.socket();
+    }
+
+    @Override
+    protected void readFrames(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            Logger.warning(TAG, "Socket is not channel based, falling back to stream reading");
+            super.readFrames(socket);
+            return;
+        }
+
+        PreviewStreamParser streamParser = getStreamParser();
+        streamParser.reset();
+        mSegment = new Segment(mBufferPool.acquire(), true);
+        mParsePosition = 0;
+        try {
+            while (isBufferingRunning()) {
+                ByteBuffer input = mSegment.mInput;
+                input.limit(mSegment.mBuffer.position());
+                input.position(mParsePosition);
+                boolean stop = streamParser.feed(input);
+                mParsePosition = input.position();
+                if (stop) {
+                    break;
+                }
+                int requiredBytes = streamParser.getRequiredBytes();
+                if (mParsePosition + requiredBytes > mSegment.mBuffer.capacity()) {
+                    moveToNewSegment(requiredBytes);
+                }
+                if (channel.read(mSegment.mBuffer) == -1) {
+                    throw new EOFException("Preview stream closed");
+                }
+            }
+        } finally {
+            mSegment.release();
+            mSegment = null;
+        }
+    }
+
+    /**
+     * Grows segments so that several frames of estimated size fit into one.
+     */
+    @Override
+    protected void onStartOfStream(PreviewSessionDescriptor sessionDescriptor) {
+        super.onStartOfStream(sessionDescriptor);
+        long segmentSize = (long) sessionDescriptor.getEstimatedFrameSize() * MIN_FRAMES_PER_SEGMENT;
+        mBufferPool.setBufferSize((int) Math.max(mDefaultSegmentSize, Math.min(segmentSize, MAX_SEGMENT_SIZE)));
+    }
+
+    @Override
+    protected Frame createFrame(int version, Frame.Type type, int pts, int status, ByteBuffer data) {
+        mSegment.retain();
+        return new Frame(version, type, pts, status, data.slice(), mSegment);
+    }
+
+    /**
+     * Moves bytes not parsed yet to a new segment which can hold at least given number of bytes.
+     */
+    private void moveToNewSegment(int length) {
+        Segment segment;
+        if (length <= mBufferPool.getBufferSize()) {
+            segment = new Segment(mBufferPool.acquire(), true);
+        } else {
+            Logger.debug(TAG, "Allocating dedicated segment for " + length + " bytes");
+            segment = new Segment(ByteBuffer.allocateDirect(length), false);
+        }
+
+        ByteBuffer pending = mSegment.mBuffer.duplicate();
+        pending.flip();
+        pending.position(mParsePosition);
+        segment.mBuffer.put(pending);
+
+        mSegment.release();
+        mSegment = segment;
+        mParsePosition = 0;
+    }
+
+    /**
+     * Received data buffer shared by all frames sliced from it. Returned to pool once reader and
+     * all frames released it.
+     */
+    private final class Segment implements Frame.FrameReleaser {
+
+        private final ByteBuffer mBuffer;
+        /** View of received data passed to parser. */
+        private final ByteBuffer mInput;
+        private final boolean mIsPooled;
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+        Segment(ByteBuffer buffer, boolean isPooled) {
+            mBuffer = buffer;
+            mInput = buffer.duplicate();
+            mIsPooled = isPooled;
+        }
+
+        void retain() {
+            mRefCount.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            if (mRefCount.decrementAndGet() == 0 && mIsPooled) {
+                mBufferPool.recycle(mBuffer);
+            }
+        }
+    }
+}
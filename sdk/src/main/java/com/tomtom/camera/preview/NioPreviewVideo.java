@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+/**
+ * {@link PreviewVideo} which receives preview stream with {@link java.nio.channels.SocketChannel}
+ * into pooled direct buffers instead of allocating new byte array for every frame. Preferred for
+ * high resolution or high framerate clips.
+ */
+public class NioPreviewVideo extends PreviewVideo {
+
+    public NioPreviewVideo(PreviewApiClient previewApiClient, PreviewVideoSurface surfaceView, OnPreviewVideoListener onPreviewVideoListener) {
+        super(previewApiClient, surfaceView, onPreviewVideoListener);
+    }
+
+    @Override
+    protected CameraPreviewStreamServer createPreviewStreamServer(PreviewBuffer previewBuffer) {
+        return new NioPreviewStreamServer(previewBuffer);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.util.Logger;
+
+/**
+ * Master clock of preview playback, in pts units. Clock runs on monotonic time from position it
+ * was started at, scaled by playback rate. While audio is played at normal rate, it is disciplined
+ * by audio playback position: small differences are slewed out gradually and large ones make clock
+ * jump to audio position.
+ */
+class PlaybackClock {
+
+    private static final String TAG = "PlaybackClock";
+
+    static final int PTS_PER_SECOND = 90000;
+    static final float NORMAL_RATE = 1f;
+    static final float MIN_RATE = 0.25f;
+    static final float MAX_RATE = 8f;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    /** Difference to audio position above which clock jumps instead of slewing, 200 ms. */
+    private static final int AUDIO_RESYNC_PTS = PTS_PER_SECOND / 5;
+    /** Part of difference to audio position corrected with each audio position update. */
+    private static final int AUDIO_SLEW_DIVIDER = 8;
+    /** Audio position updates older than this don't drive clock anymore, 500 ms. */
+    private static final long AUDIO_TIMEOUT_NANOS = NANOS_PER_SECOND / 2;
+
+    private final TimeSource mTimeSource;
+    private boolean mIsRunning;
+    private long mAnchorPts;
+    private long mAnchorNanos;
+    private long mLastAudioNanos;
+    private float mRate = NORMAL_RATE;
+
+    PlaybackClock() {
+        this(TimeSource.SYSTEM);
+    }
+
+    PlaybackClock(TimeSource timeSource) {
+        mTimeSource = timeSource;
+    }
+
+    /**
+     * Starts clock from given position.
+     * @param pts position in pts units
+     */
+    synchronized void start(int pts) {
+        mAnchorPts = pts;
+        mAnchorNanos = mTimeSource.nanoTime();
+        mLastAudioNanos = 0;
+        mIsRunning = true;
+    }
+
+    /**
+     * Stops clock at its current position.
+     */
+    synchronized void pause() {
+        if (mIsRunning) {
+            mAnchorPts = getPtsLocked(mTimeSource.nanoTime());
+            mLastAudioNanos = 0;
+            mIsRunning = false;
+        }
+    }
+
+    /**
+     * Sets rate clock advances at, from its current position.
+     * @param rate rate between {@link #MIN_RATE} and {@link #MAX_RATE}
+     */
+    synchronized void setRate(float rate) {
+        if (mIsRunning) {
+            long nowNanos = mTimeSource.nanoTime();
+            mAnchorPts = getPtsLocked(nowNanos);
+            mAnchorNanos = nowNanos;
+        }
+        mLastAudioNanos = 0;
+        mRate = rate;
+    }
+
+    synchronized float getRate() {
+        return mRate;
+    }
+
+    synchronized boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Provides current position.
+     * @return position in pts units, position clock was paused at if not running
+     */
+    synchronized long getPts() {
+        return mIsRunning ? getPtsLocked(mTimeSource.nanoTime()) : mAnchorPts;
+    }
+
+    private long getPtsLocked(long nowNanos) {
+        if (mRate == NORMAL_RATE) {
+            return mAnchorPts + (nowNanos - mAnchorNanos) * PTS_PER_SECOND / NANOS_PER_SECOND;
+        }
+        return mAnchorPts + (long) ((nowNanos - mAnchorNanos) * (double) mRate * PTS_PER_SECOND / NANOS_PER_SECOND);
+    }
+
+    /**
+     * Provides time until clock reaches given position, at current rate.
+     * @param pts position in pts units
+     * @return time in microseconds, negative if position is already passed
+     */
+    synchronized long getMicrosUntil(int pts) {
+        return (long) ((pts - getPts()) * 1000000L / PTS_PER_SECOND / (double) mRate);
+    }
+
+    /**
+     * Disciplines clock by position of audio being played.
+     * @param audioPts position of audio currently heard, in pts units
+     */
+    synchronized void onAudioPosition(long audioPts) {
+        if (!mIsRunning || mRate != NORMAL_RATE) {
+            return;
+        }
+        long nowNanos = mTimeSource.nanoTime();
+        long errorPts = audioPts - getPtsLocked(nowNanos);
+        mLastAudioNanos = nowNanos;
+        if (Math.abs(errorPts) > AUDIO_RESYNC_PTS) {
+            Logger.debug(TAG, "Clock off audio by " + errorPts / 90 + " ms, resyncing");
+            mAnchorPts = audioPts;
+            mAnchorNanos = nowNanos;
+        } else {
+            mAnchorPts += errorPts / AUDIO_SLEW_DIVIDER;
+        }
+    }
+
+    /**
+     * Provides information if clock is currently driven by audio.
+     * @return {@code true} if audio position was reported recently
+     */
+    synchronized boolean isAudioDriven() {
+        return mIsRunning && mLastAudioNanos != 0 && mTimeSource.nanoTime() - mLastAudioNanos < AUDIO_TIMEOUT_NANOS;
+    }
+}
@@ -18,6 +18,13 @@ package com.tomtom.camera.preview;
 
 import com.tomtom.camera.util.Logger;
 
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 /**
  * Preview buffer implementation. Provides separate buffers for video and audio frames and callbacks
  * for buffer states.
@@ -26,65 +33,87 @@ class PreviewBuffer {
 
     private static final String TAG = "PreviewBuffer";
 
-    private StreamBufferCallback mExternalStreamBufferCallback;
-    private StreamBuffer<Frame> mVideoBuffer;
-    private StreamBuffer<Frame> mAudioBuffer;
-    private boolean mHasReachedEos;
-    private boolean mIsVideoOnly;
+    static final int PTS_PER_MILLISECOND = 90;
+    /** Default duration limits, matching default frame count limits at 30 fps. */
+    static final int DEFAULT_CAPACITY_MILLIS = 4000;
+    static final int DEFAULT_LOW_MILLIS = 1000;
+    static final int DEFAULT_READY_MILLIS = 2000;
+    static final long DEFAULT_VIDEO_CAPACITY_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_FRAME_CAPACITY = 8;
+    static final long DEFAULT_RETAINED_BYTES = 16 * 1024 * 1024;
 
-    private StreamBufferCallback mLocalStreamBufferCallback = new StreamBufferCallback() {
-        @Override
-        public void onEmpty() {
-            Logger.info(TAG, "OnEmpty");
-            if(mVideoBuffer.getBufferState() == StreamBuffer.BufferState.EMPTY) {
-                if (mIsVideoOnly) {
-                    mExternalStreamBufferCallback.onEmpty();
-                } else {
-                    if (mAudioBuffer.getBufferState() == StreamBuffer.BufferState.EMPTY) {
-                        mExternalStreamBufferCallback.onEmpty();
-                    } else {
-                        Logger.debug(TAG, "onEmpty() Video buffer state: " + mVideoBuffer.getBufferState().name() + " Audio buffer state: " + mAudioBuffer.getBufferState().name());
-                    }
-                }
-            }
-            else {
-                if (mVideoBuffer.getBufferState() != null) {
-                    Logger.debug(TAG, "onEmpty() Video buffer state: " + mVideoBuffer.getBufferState().name() + " Audio buffer state: " + mAudioBuffer.getBufferState().name());
+    private static final StreamBuffer.BufferState[] BUFFER_STATES = StreamBuffer.BufferState.values();
+    /**
+     * Combined state for each combination of audio presence, EOS and video and audio buffer
+     * states, indexed by {@link #getStateIndex(boolean, boolean, StreamBuffer.BufferState, StreamBuffer.BufferState)}.
+     */
+    private static final StreamBuffer.BufferState[] COMBINED_STATES = new StreamBuffer.BufferState[4 * BUFFER_STATES.length * BUFFER_STATES.length];
+
+    static {
+        for (int i = 0; i < 4; i++) {
+            boolean isVideoOnly = (i & 2) != 0;
+            boolean hasReachedEos = (i & 1) != 0;
+            for (StreamBuffer.BufferState videoState : BUFFER_STATES) {
+                for (StreamBuffer.BufferState audioState : BUFFER_STATES) {
+                    COMBINED_STATES[getStateIndex(isVideoOnly, hasReachedEos, videoState, audioState)] =
+                            combineStates(isVideoOnly, hasReachedEos, videoState, audioState);
                 }
             }
         }
+    }
+
+    private static final StreamBuffer.Measure<Frame> FRAME_MEASURE = new StreamBuffer.Measure<Frame>() {
+        @Override
+        public int getSizeBytes(Frame frame) {
+            return frame.getLength();
+        }
+
+        @Override
+        public int getTimestamp(Frame frame) {
+            return frame.getPts();
+        }
+    };
+
+    private volatile StreamBufferCallback mExternalStreamBufferCallback;
+    private final StreamBuffer<Frame> mVideoBuffer;
+    private final StreamBuffer<Frame> mAudioBuffer;
+    private volatile boolean mHasReachedEos;
+    private volatile boolean mIsVideoOnly;
+    private volatile int mCapacityMillis = DEFAULT_CAPACITY_MILLIS;
+    private final RetainedFrameBuffer mRetainedFrames = new RetainedFrameBuffer(DEFAULT_RETAINED_BYTES);
+    /** Serializes queueing of received frames with rewinds, buffers allow single producer only. */
+    private final Object mProducerLock = new Object();
+
+    private final Object mSpaceAvailableLock = new Object();
+    private final Object mFramesAvailableLock = new Object();
+    /** Number of consumers blocked in {@link #awaitFrames(Frame.Type, long)}, changed under its lock. */
+    private volatile int mWaitingConsumerCount;
+    private final CopyOnWriteArrayList<OnFramesAvailableListener> mOnFramesAvailableListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean mIsScrubbing;
+    private volatile boolean mIsAudioDiscarded;
+    /** Number of producers blocked in {@link #awaitNotFull(long)}, changed under its lock. */
+    private volatile int mWaitingProducerCount;
+    private volatile long mBackpressureStallNanos;
+    private volatile int mBackpressureStallCount;
+
+    /** Combined state, updated after every change of either buffer. */
+    private final AtomicReference<StreamBuffer.BufferState> mState = new AtomicReference<>(StreamBuffer.BufferState.EMPTY);
+
+    /** Transitions of buffers' own hysteresis, combined state is updated on them as well. */
+    private final StreamBufferCallback mLocalStreamBufferCallback = new StreamBufferCallback() {
+        @Override
+        public void onEmpty() {
+            updateState();
+        }
 
         @Override
         public void onLow() {
-            Logger.info(TAG, "OnLow");
-            if(mVideoBuffer.getBufferState() == StreamBuffer.BufferState.LOW) {
-                if (mIsVideoOnly) {
-                    mExternalStreamBufferCallback.onLow();
-                } else {
-                    if (mAudioBuffer.getBufferState() == StreamBuffer.BufferState.LOW) {
-                        mExternalStreamBufferCallback.onLow();
-                    } else {
-                        Logger.debug(TAG, "onLow() Video buffer state: " + mVideoBuffer.getBufferState().name() + " Audio buffer state: " + mAudioBuffer.getBufferState().name());
-                    }
-                }
-            }
-            else {
-                Logger.debug(TAG, "onLow() Video buffer state: " + mVideoBuffer.getBufferState().name() + " Audio buffer state: " + mAudioBuffer.getBufferState().name());
-            }
+            updateState();
         }
 
         @Override
         public void onReady() {
-            Logger.info(TAG, "OnReady");
-            if(mIsVideoOnly){
-                Logger.info(TAG, "REALLY OnReady");
-                mExternalStreamBufferCallback.onReady();
-            }
-            else {
-                if(mVideoBuffer.getBufferState() == StreamBuffer.BufferState.READY && mAudioBuffer.getBufferState().ordinal() >= StreamBuffer.BufferState.READY.ordinal()){
-                    mExternalStreamBufferCallback.onReady();
-                }
-            }
+            updateState();
         }
     };
 
@@ -94,88 +123,459 @@ class PreviewBuffer {
 
     PreviewBuffer(StreamBufferCallback streamBufferCallback){
         mExternalStreamBufferCallback = streamBufferCallback;
-        mVideoBuffer = new StreamBuffer<Frame>(mLocalStreamBufferCallback);
-        mAudioBuffer = new StreamBuffer<Frame>(mLocalStreamBufferCallback);
+        mVideoBuffer = new StreamBuffer<Frame>(mLocalStreamBufferCallback, FRAME_MEASURE);
+        mAudioBuffer = new StreamBuffer<Frame>(mLocalStreamBufferCallback, FRAME_MEASURE);
         mHasReachedEos = false;
         mIsVideoOnly = true;
+        setDurationLimits(DEFAULT_CAPACITY_MILLIS, DEFAULT_LOW_MILLIS, DEFAULT_READY_MILLIS);
+        setByteLimits(Frame.Type.VIDEO, DEFAULT_VIDEO_CAPACITY_BYTES, 0, 0);
     }
 
     void setStreamBufferCallback(StreamBufferCallback streamBufferCallback) {
         mExternalStreamBufferCallback = streamBufferCallback;
     }
 
+    /**
+     * Sets buffer limits as duration of buffered frames, applied to both video and audio buffer.
+     * Buffers are full once capacity is reached even if byte or frame count capacity isn't.
+     * @param capacityMillis buffered duration at which buffer is full, 0 for no limit
+     * @param lowMillis buffered duration at or below which buffer is low
+     * @param readyMillis buffered duration above which playback can start, 0 to use bytes or
+     *                    frame count for low and ready limits instead
+     */
+    void setDurationLimits(int capacityMillis, int lowMillis, int readyMillis) {
+        mCapacityMillis = capacityMillis;
+        long capacityPts = (long) capacityMillis * PTS_PER_MILLISECOND;
+        long lowPts = (long) lowMillis * PTS_PER_MILLISECOND;
+        long readyPts = (long) readyMillis * PTS_PER_MILLISECOND;
+        mVideoBuffer.setDurationLimits(capacityPts, lowPts, readyPts);
+        mAudioBuffer.setDurationLimits(capacityPts, lowPts, readyPts);
+    }
+
+    int getCapacityMillis() {
+        return mCapacityMillis;
+    }
+
+    /**
+     * Sets buffer limits as size of buffered frames.
+     * @param type {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @param capacityBytes buffered size at which buffer is full, 0 for no limit
+     * @param lowBytes buffered size at or below which buffer is low
+     * @param readyBytes buffered size above which playback can start, 0 if low and ready limits
+     *                   aren't given in bytes
+     */
+    void setByteLimits(Frame.Type type, long capacityBytes, long lowBytes, long readyBytes) {
+        if (type == Frame.Type.VIDEO) {
+            mVideoBuffer.setByteLimits(capacityBytes, lowBytes, readyBytes);
+        } else if (type == Frame.Type.AUDIO) {
+            mAudioBuffer.setByteLimits(capacityBytes, lowBytes, readyBytes);
+        }
+    }
+
+    /**
+     * Sizes frame count limits for session framerate, so that they match duration limits. Frame
+     * counts are used as fallback when duration limits are disabled, and frame capacity bounds
+     * buffers when frame timestamps don't advance.
+     * @param sessionDescriptor descriptor of started session
+     */
+    void configure(PreviewSessionDescriptor sessionDescriptor) {
+        int capacityMillis = mCapacityMillis > 0 ? mCapacityMillis : DEFAULT_CAPACITY_MILLIS;
+        setFrameLimits(mVideoBuffer, sessionDescriptor.getFramerate() * capacityMillis / 1000);
+        if (sessionDescriptor.hasAudio()) {
+            setFrameLimits(mAudioBuffer, sessionDescriptor.getAudioFramerate() * capacityMillis / 1000);
+        }
+        Logger.info(TAG, "Buffers configured for " + sessionDescriptor + ", video capacity " + mVideoBuffer.getCapacity() + ", audio capacity " + mAudioBuffer.getCapacity());
+    }
+
+    private static void setFrameLimits(StreamBuffer<Frame> streamBuffer, int capacity) {
+        capacity = Math.max(MIN_FRAME_CAPACITY, Math.min(StreamBuffer.MAX_BUFFER_CAPACITY, capacity));
+        streamBuffer.setLimits(capacity,
+                capacity * StreamBuffer.DEFAULT_BUFFER_LOW_LIMIT / StreamBuffer.DEFAULT_BUFFER_CAPACITY,
+                capacity * StreamBuffer.DEFAULT_BUFFER_READY_LIMIT / StreamBuffer.DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Provides size of buffered frames of given type.
+     * @param type {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @return buffered bytes
+     */
+    long getBufferedBytes(Frame.Type type) {
+        return type == Frame.Type.AUDIO ? mAudioBuffer.getBufferedBytes() : mVideoBuffer.getBufferedBytes();
+    }
+
+    /**
+     * Provides number of buffered frames of given type.
+     * @param type {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @return buffered frames
+     */
+    int getBufferedFrames(Frame.Type type) {
+        return type == Frame.Type.AUDIO ? mAudioBuffer.size() : mVideoBuffer.size();
+    }
+
+    /**
+     * Provides duration of buffered frames of given type.
+     * @param type {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @return buffered duration in milliseconds
+     */
+    long getBufferedMillis(Frame.Type type) {
+        StreamBuffer<Frame> streamBuffer = type == Frame.Type.AUDIO ? mAudioBuffer : mVideoBuffer;
+        return streamBuffer.getBufferedDuration() / PTS_PER_MILLISECOND;
+    }
+
     Frame dequeue(Frame.Type type){
+        Frame frame;
         if(type == Frame.Type.VIDEO){
-            return mVideoBuffer.dequeue();
+            frame = mVideoBuffer.dequeue();
         }
         else if(type == Frame.Type.AUDIO) {
-            return mAudioBuffer.dequeue();
+            frame = mAudioBuffer.dequeue();
         }
         else{
             return null;
         }
+        updateState();
+        signalSpaceAvailable();
+        return frame;
     }
 
-    StreamBuffer.BufferState queue(Frame frame) {
-        mHasReachedEos = false;
-        switch(frame.getType()){
-            case AUDIO:
-                if(mIsVideoOnly){
-                    mIsVideoOnly = false;
+    /**
+     * Blocks consumer until frame of given type is buffered or given timeout elapses.
+     * @param type {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @param timeoutMillis maximum time to wait
+     * @return {@code true} if frame of given type is buffered
+     */
+    boolean awaitFrames(Frame.Type type, long timeoutMillis) {
+        if (peek(type) != null) {
+            return true;
+        }
+        synchronized (mFramesAvailableLock) {
+            // Video and audio consumers may wait at the same time, each only unregisters itself
+            mWaitingConsumerCount++;
+            try {
+                if (peek(type) == null) {
+                    mFramesAvailableLock.wait(timeoutMillis);
                 }
-                mAudioBuffer.queue(frame);
-                break;
-            case VIDEO:
-                mVideoBuffer.queue(frame);
-                break;
-            case EOS:
-                mHasReachedEos = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mWaitingConsumerCount--;
+            }
         }
-        return getBufferState();
+        return peek(type) != null;
     }
 
-    StreamBuffer.BufferState getBufferState(){
-        if(mIsVideoOnly){
-            if(mHasReachedEos && mVideoBuffer.getBufferState() == StreamBuffer.BufferState.LOW) {
-                return StreamBuffer.BufferState.READY;
-            }
-            else{
-                return mVideoBuffer.getBufferState();
+    /**
+     * Adds listener for consumers which don't block in {@link #awaitFrames(Frame.Type, long)}.
+     * @param onFramesAvailableListener listener
+     */
+    void addOnFramesAvailableListener(OnFramesAvailableListener onFramesAvailableListener) {
+        mOnFramesAvailableListeners.addIfAbsent(onFramesAvailableListener);
+    }
+
+    void removeOnFramesAvailableListener(OnFramesAvailableListener onFramesAvailableListener) {
+        mOnFramesAvailableListeners.remove(onFramesAvailableListener);
+    }
+
+    private void signalFramesAvailable() {
+        if (mWaitingConsumerCount > 0) {
+            synchronized (mFramesAvailableLock) {
+                mFramesAvailableLock.notifyAll();
             }
         }
-        else{
-            if(mVideoBuffer.getBufferState() == StreamBuffer.BufferState.LOW || mAudioBuffer.getBufferState() == StreamBuffer.BufferState.LOW){
-                if(mHasReachedEos){
-                    return StreamBuffer.BufferState.READY;
-                }
-                else {
-                    return StreamBuffer.BufferState.LOW;
+        for (OnFramesAvailableListener onFramesAvailableListener : mOnFramesAvailableListeners) {
+            onFramesAvailableListener.onFramesAvailable();
+        }
+    }
+
+    /**
+     * Blocks producer while buffer is {@link StreamBuffer.BufferState#FULL}, until consumer takes
+     * frames out or given timeout elapses. Time spent waiting is accounted as backpressure stall.
+     * @param timeoutMillis maximum time to wait
+     * @return {@code true} if buffer is not full anymore
+     */
+    boolean awaitNotFull(long timeoutMillis) {
+        if (getBufferState() != StreamBuffer.BufferState.FULL) {
+            return true;
+        }
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + MILLISECONDS.toNanos(timeoutMillis);
+        boolean isFull = true;
+        synchronized (mSpaceAvailableLock) {
+            mWaitingProducerCount++;
+            try {
+                // State is rechecked after producer is registered, dequeue before that isn't missed
+                isFull = getBufferState() == StreamBuffer.BufferState.FULL;
+                while (isFull) {
+                    long remainingMillis = NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        break;
+                    }
+                    mSpaceAvailableLock.wait(remainingMillis);
+                    isFull = getBufferState() == StreamBuffer.BufferState.FULL;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mWaitingProducerCount--;
             }
+        }
+        mBackpressureStallNanos += System.nanoTime() - startNanos;
+        if (!isFull) {
+            mBackpressureStallCount++;
+        }
+        return !isFull;
+    }
 
-            else if(mVideoBuffer.getBufferState() == StreamBuffer.BufferState.FULL || mAudioBuffer.getBufferState() == StreamBuffer.BufferState.FULL) {
-                return StreamBuffer.BufferState.FULL;
+    private void signalSpaceAvailable() {
+        if (mWaitingProducerCount > 0) {
+            synchronized (mSpaceAvailableLock) {
+                mSpaceAvailableLock.notifyAll();
             }
+        }
+    }
 
+    /**
+     * Provides total time producer was blocked on full buffer.
+     * @return stall time in milliseconds
+     */
+    long getBackpressureStallMillis() {
+        return NANOSECONDS.toMillis(mBackpressureStallNanos);
+    }
 
-            else if(mVideoBuffer.getBufferState() == StreamBuffer.BufferState.EMPTY && mAudioBuffer.getBufferState() == StreamBuffer.BufferState.EMPTY){
-                return StreamBuffer.BufferState.EMPTY;
+    /**
+     * Provides number of times producer was blocked on full buffer until space became available.
+     * @return stall count
+     */
+    int getBackpressureStallCount() {
+        return mBackpressureStallCount;
+    }
+
+    StreamBuffer.BufferState queue(Frame frame) {
+        synchronized (mProducerLock) {
+            mHasReachedEos = false;
+            switch (frame.getType()) {
+                case AUDIO:
+                    if (mIsScrubbing || mIsAudioDiscarded) {
+                        frame.release();
+                        break;
+                    }
+                    if (mIsVideoOnly) {
+                        mIsVideoOnly = false;
+                    }
+                    if (!mAudioBuffer.queue(frame)) {
+                        onFrameDropped(frame);
+                    }
+                    break;
+                case VIDEO:
+                    if (mIsScrubbing && !frame.isFirstFrame()) {
+                        // Only frame at requested position is presented while scrubbing
+                        frame.release();
+                        break;
+                    }
+                    if (!mVideoBuffer.queue(frame)) {
+                        onFrameDropped(frame);
+                    }
+                    break;
+                case EOS:
+                    mHasReachedEos = true;
             }
+        }
+        updateState();
+        signalFramesAvailable();
+        return getBufferState();
+    }
 
-            else if(mVideoBuffer.getBufferState() ==StreamBuffer.BufferState.READY && mAudioBuffer.getBufferState() == StreamBuffer.BufferState.READY){
-                return StreamBuffer.BufferState.READY;
+    /**
+     * Should be called by consumer once dequeued frame is played. Frame is retained for rewinds
+     * within byte budget set with {@link #setRetainedBytes(long)}, or released.
+     * @param frame played frame
+     */
+    void onFramePlayed(Frame frame) {
+        mRetainedFrames.retain(frame);
+    }
+
+    /**
+     * Enables scrub mode, in which only first video frames of sessions are buffered, other video
+     * and audio frames are dropped as they arrive.
+     * @param isScrubbing {@code true} to enable scrub mode
+     */
+    void setScrubbing(boolean isScrubbing) {
+        mIsScrubbing = isScrubbing;
+    }
+
+    /**
+     * Enables dropping of audio frames as they arrive, for when audio isn't played.
+     * @param isAudioDiscarded {@code true} to drop audio frames
+     */
+    void setAudioDiscarded(boolean isAudioDiscarded) {
+        mIsAudioDiscarded = isAudioDiscarded;
+    }
+
+    /**
+     * Sets byte budget of played frames retained for rewinds.
+     * @param retainedBytes maximum size of retained frames, 0 to release frames once played
+     */
+    void setRetainedBytes(long retainedBytes) {
+        mRetainedFrames.setBudgetBytes(retainedBytes);
+    }
+
+    /**
+     * Checks if playback can be rewound to given position from retained frames.
+     * @param pts position in pts units
+     * @return {@code true} if position is within retained window
+     */
+    boolean canRewind(int pts) {
+        return mRetainedFrames.contains(pts);
+    }
+
+    /**
+     * Moves retained frames from given position on back in front of buffered frames. Should be
+     * called while playback is stopped. Buffers may end up over capacity, then producer waits
+     * until frames are played again.
+     * @param pts position in pts units
+     * @return {@code true} if rewound, {@code false} if position isn't retained or retained
+     *         and buffered frames don't fit into buffers
+     */
+    boolean rewind(int pts) {
+        synchronized (mProducerLock) {
+            if (!mRetainedFrames.contains(pts)
+                    || mRetainedFrames.countFrom(pts, Frame.Type.VIDEO) + mVideoBuffer.size() > mVideoBuffer.getRingSize()
+                    || mRetainedFrames.countFrom(pts, Frame.Type.AUDIO) + mAudioBuffer.size() > mAudioBuffer.getRingSize()) {
+                return false;
+            }
+            ArrayList<Frame> videoFrames = new ArrayList<>();
+            ArrayList<Frame> audioFrames = new ArrayList<>();
+            mRetainedFrames.drainFrom(pts, videoFrames, audioFrames);
+            Logger.debug(TAG, "Rewinding " + videoFrames.size() + " video and " + audioFrames.size() + " audio frames");
+            requeue(mVideoBuffer, videoFrames);
+            requeue(mAudioBuffer, audioFrames);
+            if (!audioFrames.isEmpty()) {
+                mIsVideoOnly = false;
+            }
+        }
+        updateState();
+        signalSpaceAvailable();
+        signalFramesAvailable();
+        return true;
+    }
+
+    /**
+     * Puts given frames in front of buffered ones. Frames are replayed within current file, so
+     * they aren't marked as first frames anymore.
+     */
+    private static void requeue(StreamBuffer<Frame> streamBuffer, ArrayList<Frame> frames) {
+        for (Frame frame : frames) {
+            frame.setIsFirstFrame(false);
+        }
+        frames.ensureCapacity(frames.size() + streamBuffer.size());
+        streamBuffer.drainTo(frames);
+        for (Frame frame : frames) {
+            if (!streamBuffer.requeue(frame)) {
+                frame.release();
+            }
+        }
+    }
+
+    private void onFrameDropped(Frame frame) {
+        Logger.warning(TAG, "Buffer full, dropping " + frame.getType() + " frame with pts " + frame.getPts());
+        frame.release();
+    }
+
+    StreamBuffer.BufferState getBufferState(){
+        return mState.get();
+    }
+
+    /**
+     * Recomputes combined state and notifies external callback if it changed. Called after every
+     * change of buffers, allocates nothing when state stays the same.
+     */
+    private void updateState() {
+        while (true) {
+            StreamBuffer.BufferState state = mState.get();
+            StreamBuffer.BufferState newState = COMBINED_STATES[getStateIndex(mIsVideoOnly, mHasReachedEos,
+                    mVideoBuffer.getBufferState(), mAudioBuffer.getBufferState())];
+            if (newState == state) {
+                return;
+            }
+            if (mState.compareAndSet(state, newState)) {
+                onStateChanged(state, newState);
+                return;
             }
+        }
+    }
 
-            Logger.exception(new Exception("None of the given conditions are met. " + " VideoState: " + mVideoBuffer.getBufferState().name() + " Audio: " + mAudioBuffer.getBufferState().name() + " Reached EOS: " + mHasReachedEos));
-            return StreamBuffer.BufferState.READY;
+    private void onStateChanged(StreamBuffer.BufferState state, StreamBuffer.BufferState newState) {
+        Logger.debug(TAG, "State " + state + " -> " + newState);
+        StreamBufferCallback callback = mExternalStreamBufferCallback;
+        if (callback == null) {
+            return;
         }
+        switch (newState) {
+            case EMPTY:
+                callback.onEmpty();
+                break;
+            case LOW:
+                if (state == StreamBuffer.BufferState.READY || state == StreamBuffer.BufferState.FULL) {
+                    callback.onLow();
+                }
+                break;
+            case READY:
+            case FULL:
+                if (state == StreamBuffer.BufferState.EMPTY || state == StreamBuffer.BufferState.LOW) {
+                    callback.onReady();
+                }
+                break;
+        }
+    }
+
+    private static int getStateIndex(boolean isVideoOnly, boolean hasReachedEos, StreamBuffer.BufferState videoState, StreamBuffer.BufferState audioState) {
+        int flags = (isVideoOnly ? 2 : 0) | (hasReachedEos ? 1 : 0);
+        return (flags * BUFFER_STATES.length + videoState.ordinal()) * BUFFER_STATES.length + audioState.ordinal();
+    }
+
+    /**
+     * Combines video and audio buffer states. Buffers which are low don't hold playback back once
+     * EOS is received, as nothing more is coming.
+     */
+    static StreamBuffer.BufferState combineStates(boolean isVideoOnly, boolean hasReachedEos, StreamBuffer.BufferState videoState, StreamBuffer.BufferState audioState) {
+        if (isVideoOnly) {
+            if (hasReachedEos && videoState == StreamBuffer.BufferState.LOW) {
+                return StreamBuffer.BufferState.READY;
+            }
+            return videoState;
+        }
+        if (videoState == StreamBuffer.BufferState.LOW || audioState == StreamBuffer.BufferState.LOW) {
+            return hasReachedEos ? StreamBuffer.BufferState.READY : StreamBuffer.BufferState.LOW;
+        }
+        if (videoState == StreamBuffer.BufferState.FULL || audioState == StreamBuffer.BufferState.FULL) {
+            return StreamBuffer.BufferState.FULL;
+        }
+        if (videoState == StreamBuffer.BufferState.EMPTY && audioState == StreamBuffer.BufferState.EMPTY) {
+            return StreamBuffer.BufferState.EMPTY;
+        }
+        // Both ready, or one ran out while the other is ready
+        return StreamBuffer.BufferState.READY;
     }
 
     void clear(){
-        mAudioBuffer.clear();
-        mVideoBuffer.clear();
+        ArrayList<Frame> droppedFrames = new ArrayList<>(mAudioBuffer.size() + mVideoBuffer.size());
+        mAudioBuffer.drainTo(droppedFrames);
+        mVideoBuffer.drainTo(droppedFrames);
+        for (Frame frame : droppedFrames) {
+            frame.release();
+        }
         mHasReachedEos = false;
         mIsVideoOnly = true;
+        // Consumers are stopped on clear even if buffers were empty already
+        mState.set(StreamBuffer.BufferState.EMPTY);
+        StreamBufferCallback callback = mExternalStreamBufferCallback;
+        if (callback != null) {
+            callback.onEmpty();
+        }
+        mAudioBuffer.clear();
+        mVideoBuffer.clear();
+        mRetainedFrames.clear();
+        signalSpaceAvailable();
     }
 
     int getNextVideoPts(){
@@ -201,6 +601,14 @@ class PreviewBuffer {
         }
     }
 
+    /**
+     * Provides information if all audio frames were consumed and no more are coming.
+     * @return {@code true} if EOS frame was offered to buffer and there's no buffered audio
+     */
+    boolean isAudioEosReached() {
+        return mHasReachedEos && (mAudioBuffer.size() == 0);
+    }
+
     boolean hasAudioFrames() {
         return mAudioBuffer.size() > 0;
     }
@@ -211,6 +619,7 @@ class PreviewBuffer {
 
     void resetVideoOnlyState() {
         mIsVideoOnly = true;
+        updateState();
     }
 
     Frame peek(Frame.Type frameType) {
@@ -230,4 +639,27 @@ class PreviewBuffer {
 
         return null;
     }
+
+    /**
+     * Provides buffered frame at given position from head without dequeuing it.
+     * @param frameType {@link Frame.Type#VIDEO} or {@link Frame.Type#AUDIO}
+     * @param index position from head
+     * @return frame, or {@code null} if there are fewer buffered frames of given type
+     */
+    Frame peek(Frame.Type frameType, int index) {
+        switch (frameType) {
+            case AUDIO:
+                return mAudioBuffer.peek(index);
+            case VIDEO:
+                return mVideoBuffer.peek(index);
+        }
+        return null;
+    }
+
+    /**
+     * Notified on producer's thread whenever frames are queued or rewound.
+     */
+    interface OnFramesAvailableListener {
+        void onFramesAvailable();
+    }
 }
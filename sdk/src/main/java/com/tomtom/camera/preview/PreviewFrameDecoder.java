@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.tomtom.camera.util.Logger;
+import com.tomtom.camera.video.BitmapDrawObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Decodes MJPEG preview frames ahead of playhead. Next frames in {@link PreviewBuffer} are decoded
+ * on worker threads into pooled bitmaps, so at presentation time decoded frame is just handed
+ * over. Presented bitmaps are returned to pool once enough newer frames were presented that
+ * surface can't be drawing them anymore.
+ */
+class PreviewFrameDecoder {
+
+    private static final String TAG = "PreviewFrameDecoder";
+
+    static final int DEFAULT_DECODE_DEPTH = 3;
+    static final int DEFAULT_BITMAP_POOL_SIZE = 8;
+    private static final int WORKER_COUNT = 2;
+    private static final float NANOS_PER_MILLI = 1000000f;
+
+    private final int mDecodeDepth;
+    private final int mRetainedBitmaps;
+    private final BitmapPool mBitmapPool;
+    private final ExecutorService mDecodeExecutor;
+    private final ArrayDeque<DecodeTask> mPendingTasks = new ArrayDeque<>();
+    private final ArrayDeque<Bitmap> mPresentedBitmaps = new ArrayDeque<>();
+    private Frame mLastSubmittedFrame;
+    private int mWidthPx;
+    private int mHeightPx;
+
+    private final Object mStatsLock = new Object();
+    /** Scratch array of each decoding thread, buffer backed payloads are read into it. */
+    private final ThreadLocal<byte[]> mScratch = new ThreadLocal<>();
+    private long mDecodedFrameCount;
+    private long mTotalDecodeNanos;
+    private long mMaxDecodeNanos;
+    private long mDecodeWaitCount;
+    private final LatencyHistogram mDecodeTimeHistogram = new LatencyHistogram();
+
+    PreviewFrameDecoder() {
+        this(DEFAULT_DECODE_DEPTH, DEFAULT_BITMAP_POOL_SIZE);
+    }
+
+    /**
+     * @param decodeDepth number of frames decoded ahead of playhead
+     * @param bitmapPoolSize number of bitmaps reused for decoding, should be larger than decode
+     *                       depth so presented bitmaps can be retained while surface draws them
+     */
+    PreviewFrameDecoder(int decodeDepth, int bitmapPoolSize) {
+        if (decodeDepth < 1 || bitmapPoolSize <= decodeDepth) {
+            throw new IllegalArgumentException("Bitmap pool size must be larger than decode depth");
+        }
+        mDecodeDepth = decodeDepth;
+        mRetainedBitmaps = bitmapPoolSize - decodeDepth;
+        mBitmapPool = new BitmapPool(bitmapPoolSize);
+        mDecodeExecutor = Executors.newFixedThreadPool(Math.min(decodeDepth, WORKER_COUNT));
+    }
+
+    /**
+     * Submits decoding of next video frames in buffer which aren't decoded yet, up to decode
+     * depth. Should be called before presented frame is dequeued.
+     * @param previewBuffer buffer frames are presented from
+     */
+    synchronized void decodeAhead(PreviewBuffer previewBuffer) {
+        if (mDecodeExecutor.isShutdown()) {
+            return;
+        }
+        int start = 0;
+        if (mLastSubmittedFrame != null) {
+            for (int i = 0; i < mDecodeDepth; i++) {
+                Frame frame = previewBuffer.peek(Frame.Type.VIDEO, i);
+                if (frame == null) {
+                    break;
+                }
+                if (frame == mLastSubmittedFrame) {
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        for (int i = start; i < mDecodeDepth; i++) {
+            Frame frame = previewBuffer.peek(Frame.Type.VIDEO, i);
+            if (frame == null) {
+                break;
+            }
+            DecodeTask task = new DecodeTask(frame);
+            mPendingTasks.offer(task);
+            mLastSubmittedFrame = frame;
+            mDecodeExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Provides decoded frame for presentation, waiting for its decoding if needed. Frames which
+     * weren't decoded ahead are decoded on calling thread. Decoding of frames submitted before
+     * given one is cancelled, as they won't be presented anymore.
+     * @param frame frame about to be presented
+     * @return decoded frame, or {@code null} if frame couldn't be decoded
+     */
+    BitmapDrawObject take(Frame frame) {
+        DecodeTask task = null;
+        synchronized (this) {
+            if (isPending(frame)) {
+                while ((task = mPendingTasks.poll()) != null && task.mFrame != frame) {
+                    task.cancel();
+                }
+            }
+        }
+
+        Bitmap bitmap;
+        if (task != null) {
+            if (!task.isDone()) {
+                synchronized (mStatsLock) {
+                    mDecodeWaitCount++;
+                }
+            }
+            bitmap = task.await();
+        } else {
+            bitmap = decode(frame);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            mPresentedBitmaps.offer(bitmap);
+            while (mPresentedBitmaps.size() > mRetainedBitmaps) {
+                mBitmapPool.recycle(mPresentedBitmaps.poll());
+            }
+        }
+        return new BitmapDrawObject(bitmap);
+    }
+
+    private boolean isPending(Frame frame) {
+        for (DecodeTask task : mPendingTasks) {
+            if (task.mFrame == frame) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Bitmap decode(Frame frame) {
+        // Buffer may release frame on clear or seek while it's decoded, payload is kept valid meanwhile
+        if (!frame.retain()) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        int length;
+        byte[] data;
+        try {
+            ByteBuffer payload = frame.getBuffer();
+            if (payload == null) {
+                return null;
+            }
+            length = payload.remaining();
+            if (frame.isBufferBacked()) {
+                // Buffer backed payload is read into per thread scratch array, so no copy is kept in frame
+                data = mScratch.get();
+                if (data == null || data.length < length) {
+                    data = new byte[length];
+                    mScratch.set(data);
+                }
+                payload.get(data, 0, length);
+            } else {
+                data = frame.getBytes();
+                if (data == null) {
+                    return null;
+                }
+            }
+        } finally {
+            frame.unretain();
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = mBitmapPool.acquire();
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap doesn't fit frame anymore, it is dropped
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        if (bitmap == null) {
+            Logger.warning(TAG, "Unable to decode frame with pts " + frame.getPts());
+            if (options.inBitmap != null) {
+                mBitmapPool.recycle(options.inBitmap);
+            }
+            return null;
+        }
+
+        long decodeNanos = System.nanoTime() - startNanos;
+        mDecodeTimeHistogram.record(decodeNanos);
+        synchronized (mStatsLock) {
+            mDecodedFrameCount++;
+            mTotalDecodeNanos += decodeNanos;
+            if (decodeNanos > mMaxDecodeNanos) {
+                mMaxDecodeNanos = decodeNanos;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Configures decoder for started session. Pooled bitmaps are dropped if resolution changed, so
+     * decoding doesn't try to reuse bitmaps which don't fit.
+     * @param sessionDescriptor descriptor of started session
+     */
+    synchronized void configure(PreviewSessionDescriptor sessionDescriptor) {
+        if (!sessionDescriptor.hasResolution()) {
+            return;
+        }
+        if (sessionDescriptor.getWidthPx() != mWidthPx || sessionDescriptor.getHeightPx() != mHeightPx) {
+            mWidthPx = sessionDescriptor.getWidthPx();
+            mHeightPx = sessionDescriptor.getHeightPx();
+            mBitmapPool.clear();
+        }
+    }
+
+    /**
+     * Cancels pending decoding, e.g. when buffered frames were dropped.
+     */
+    synchronized void reset() {
+        DecodeTask task;
+        while ((task = mPendingTasks.poll()) != null) {
+            task.cancel();
+        }
+        mLastSubmittedFrame = null;
+    }
+
+    /**
+     * Stops decoding workers and drops pooled bitmaps.
+     */
+    synchronized void release() {
+        reset();
+        mDecodeExecutor.shutdownNow();
+        mPresentedBitmaps.clear();
+        mBitmapPool.clear();
+    }
+
+    /**
+     * Provides average time spent decoding a frame.
+     * @return average decode time in milliseconds
+     */
+    float getAverageDecodeMillis() {
+        synchronized (mStatsLock) {
+            return mDecodedFrameCount > 0 ? (float) mTotalDecodeNanos / mDecodedFrameCount / NANOS_PER_MILLI : 0;
+        }
+    }
+
+    /**
+     * Provides longest time spent decoding a frame.
+     * @return maximum decode time in milliseconds
+     */
+    long getMaxDecodeMillis() {
+        synchronized (mStatsLock) {
+            return NANOSECONDS.toMillis(mMaxDecodeNanos);
+        }
+    }
+
+    long getDecodedFrameCount() {
+        synchronized (mStatsLock) {
+            return mDecodedFrameCount;
+        }
+    }
+
+    long[] getDecodeTimeCounts() {
+        return mDecodeTimeHistogram.getCounts();
+    }
+
+    /**
+     * Provides number of frames which weren't decoded yet when they had to be presented.
+     * @return decode wait count
+     */
+    long getDecodeWaitCount() {
+        synchronized (mStatsLock) {
+            return mDecodeWaitCount;
+        }
+    }
+
+    private final class DecodeTask implements Runnable {
+
+        private final Frame mFrame;
+        private Bitmap mBitmap;
+        private boolean mIsDone;
+        private boolean mIsCancelled;
+
+        DecodeTask(Frame frame) {
+            mFrame = frame;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mIsCancelled) {
+                    return;
+                }
+            }
+            Bitmap bitmap = decode(mFrame);
+            synchronized (this) {
+                if (mIsCancelled) {
+                    if (bitmap != null) {
+                        mBitmapPool.recycle(bitmap);
+                    }
+                } else {
+                    mBitmap = bitmap;
+                }
+                mIsDone = true;
+                notifyAll();
+            }
+        }
+
+        synchronized boolean isDone() {
+            return mIsDone;
+        }
+
+        synchronized Bitmap await() {
+            try {
+                while (!mIsDone && !mIsCancelled) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mBitmap;
+        }
+
+        synchronized void cancel() {
+            mIsCancelled = true;
+            if (mBitmap != null) {
+                mBitmapPool.recycle(mBitmap);
+                mBitmap = null;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -16,23 +16,28 @@
 
 package com.tomtom.camera.preview;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 
-import com.tomtom.camera.util.AudioUtil;
 import com.tomtom.camera.util.Logger;
+import com.tomtom.camera.video.BitmapDrawObject;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
@@ -42,24 +47,89 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 class PreviewPlayer {
 
     private static final String TAG = "PreviewPlayer";
-
-    private ExecutorService mPtsExecutorService = Executors.newSingleThreadExecutor();
-
-    private ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    /** Offset of video frame from clock above which clock restarts from frame, 1 second. */
+    private static final int MAX_CLOCK_DISCONTINUITY_PTS = PlaybackClock.PTS_PER_SECOND;
+    static final int DEFAULT_LATE_FRAME_THRESHOLD_MILLIS = 100;
+    private static final int MAX_CONSECUTIVE_DROPPED_FRAMES = 5;
+    /** Longest wait for audio frame, before playing state is checked again. */
+    private static final long FRAME_WAIT_MILLIS = 20;
+
+    private final TimeSource mTimeSource;
+    private final ScheduledExecutorService mScheduler;
+    /** Runs frame presentation, so that scheduling of next frame isn't delayed by drawing. */
+    private final Executor mPresentExecutor;
     private ScheduledFuture<?> mHandle;
     private VideoThread mVideoRunnable;
 
     private AtomicBoolean mIsPlaying = new AtomicBoolean();
-    private AudioThread mAudioThread;
+    private volatile AudioRenderer mAudioRenderer;
     private boolean mReadyToPlayAudio;
     private Object mNotifyObject = new Object();
 
     private PreviewBuffer mPreviewBuffer;
     private PreviewPlayerCallback mPreviewPlayerCallback;
+    private volatile PreviewFrameDecoder mFrameDecoder;
+    private final PlaybackClock mClock;
+    private volatile long mAvOffsetPts;
+    private volatile int mLateFrameThresholdPts = DEFAULT_LATE_FRAME_THRESHOLD_MILLIS * PreviewBuffer.PTS_PER_MILLISECOND;
+    /** Updated by scheduler and present threads. */
+    private final AtomicInteger mConsecutiveDroppedFrames = new AtomicInteger();
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+    private final AtomicLong mPresentedFrameCount = new AtomicLong();
+    private final FrameRateMeter mPresentedFrameRate;
+    private final FrameRateMeter mDroppedFrameRate;
+    private final LatencyHistogram mDrawTimeHistogram = new LatencyHistogram();
+    private volatile float mPlaybackRate = PlaybackClock.NORMAL_RATE;
+    private volatile boolean mIsScrubbing;
+    private volatile boolean mIsHidden;
+    private volatile boolean mIsVolumeEnabled = true;
+    private final AtomicBoolean mIsScrubFramePending = new AtomicBoolean();
+
+    private final Runnable mScrubRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mIsScrubFramePending.set(false);
+            presentLatestFrame();
+        }
+    };
+
+    private final PreviewBuffer.OnFramesAvailableListener mScrubFramesListener = new PreviewBuffer.OnFramesAvailableListener() {
+        @Override
+        public void onFramesAvailable() {
+            if (mIsScrubFramePending.compareAndSet(false, true)) {
+                mScheduler.execute(mScrubRunnable);
+            }
+        }
+    };
+
+    private final PreviewBuffer.OnFramesAvailableListener mAudioFramesListener = new PreviewBuffer.OnFramesAvailableListener() {
+        @Override
+        public void onFramesAvailable() {
+            startAudioRendererIfNeeded();
+        }
+    };
 
     PreviewPlayer(PreviewBuffer previewBuffer) {
+        this(previewBuffer, TimeSource.SYSTEM, Executors.newSingleThreadScheduledExecutor(), Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * Creates player with given timing, so that playback can run on virtual time.
+     * @param previewBuffer buffer frames are played from
+     * @param timeSource time source of master clock, has to match scheduler's time
+     * @param scheduler scheduler of video frames
+     * @param presentExecutor executor presenting video frames and reporting end of playback
+     */
+    PreviewPlayer(PreviewBuffer previewBuffer, TimeSource timeSource, ScheduledExecutorService scheduler, Executor presentExecutor) {
         mPreviewBuffer = previewBuffer;
+        mTimeSource = timeSource;
+        mScheduler = scheduler;
+        mPresentExecutor = presentExecutor;
+        mClock = new PlaybackClock(timeSource);
+        mPresentedFrameRate = new FrameRateMeter(timeSource);
+        mDroppedFrameRate = new FrameRateMeter(timeSource);
         mVideoRunnable = new VideoThread();
+        mPreviewBuffer.addOnFramesAvailableListener(mAudioFramesListener);
     }
 
     void setPreviewPlayerCallback(PreviewPlayerCallback previewPlayerCallback) {
@@ -67,18 +137,53 @@ class PreviewPlayer {
     }
 
 
+    /**
+     * Sets decoder used to decode video frames ahead of presentation. Decoded frames are presented
+     * with {@link PreviewPlayerCallback#drawDecodedFrame(BitmapDrawObject, int, boolean)}.
+     * @param frameDecoder decoder, or {@code null} to present raw frame data
+     */
+    void setFrameDecoder(PreviewFrameDecoder frameDecoder) {
+        mFrameDecoder = frameDecoder;
+    }
+
     void setVolumeEnabled(boolean playSound) {
-        if (mAudioThread != null) {
-            mAudioThread.setVolumeEnabled(playSound);
+        mIsVolumeEnabled = playSound;
+        AudioRenderer audioRenderer = mAudioRenderer;
+        if (audioRenderer != null) {
+            audioRenderer.setVolumeEnabled(playSound);
         }
     }
 
     void play() {
+        if (mIsScrubbing) {
+            return;
+        }
         if (mIsPlaying.compareAndSet(false, true)) {
             mHandle = mScheduler.schedule(mVideoRunnable,0 , MILLISECONDS);
-            if (mAudioThread == null || !mAudioThread.isAudioRunning()) {
-                mAudioThread = new AudioThread();
-                mAudioThread.start();
+            startAudioRendererIfNeeded();
+        }
+    }
+
+    /**
+     * Starts audio renderer once there is audio to play, so that none runs for video only streams
+     * or while preview is hidden.
+     */
+    private void startAudioRendererIfNeeded() {
+        if (!mIsPlaying.get() || mIsHidden || !mPreviewBuffer.hasAudioFrames()) {
+            return;
+        }
+        AudioRenderer audioRenderer = mAudioRenderer;
+        if (audioRenderer != null && audioRenderer.isAudioRunning()) {
+            return;
+        }
+        synchronized (mAudioFramesListener) {
+            if (mAudioRenderer == null || !mAudioRenderer.isAudioRunning()) {
+                audioRenderer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        ? new AsyncAudioDecoder()
+                        : new AudioThread();
+                audioRenderer.setVolumeEnabled(mIsVolumeEnabled);
+                mAudioRenderer = audioRenderer;
+                audioRenderer.start();
             }
         }
     }
@@ -86,9 +191,186 @@ class PreviewPlayer {
     void stop() {
         if (mIsPlaying.compareAndSet(true, false)) {
             mHandle.cancel(true);
+            mClock.pause();
+            AudioRenderer audioRenderer = mAudioRenderer;
+            if (audioRenderer != null) {
+                audioRenderer.onPlaybackStopped();
+            }
         }
     }
 
+    /**
+     * Sets playback rate. Video presentation is rescaled by master clock, audio is only played at
+     * normal rate, as it isn't time stretched.
+     * @param playbackRate rate between {@link PlaybackClock#MIN_RATE} and {@link PlaybackClock#MAX_RATE}
+     */
+    void setPlaybackRate(float playbackRate) {
+        mPlaybackRate = playbackRate;
+        mClock.setRate(playbackRate);
+    }
+
+    float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * Rewinds buffer to given retained pts. Audio renderer starts new segment with first rewound
+     * frame, so that master clock follows rewound audio rather than audio played before. Renderers
+     * take frames under the same lock, so none is taken half way through rewind.
+     * @param pts pts to rewind to
+     * @return {@code true} if rewound
+     */
+    boolean rewind(int pts) {
+        synchronized (mNotifyObject) {
+            if (!mPreviewBuffer.rewind(pts)) {
+                return false;
+            }
+            AudioRenderer audioRenderer = mAudioRenderer;
+            if (audioRenderer != null) {
+                audioRenderer.resync();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Enables scrub mode. Playback stops and latest buffered video frame is presented as soon as it
+     * arrives, frames it supersedes are dropped without decoding. Buffer is cleared on both
+     * transitions, so that frames of one mode aren't presented in other.
+     * @param isScrubbing {@code true} to enable scrub mode
+     */
+    void setScrubbing(boolean isScrubbing) {
+        if (isScrubbing) {
+            stop();
+            mIsScrubbing = true;
+            mPreviewBuffer.setScrubbing(true);
+            mPreviewBuffer.clear();
+            mPreviewBuffer.addOnFramesAvailableListener(mScrubFramesListener);
+        } else {
+            mPreviewBuffer.removeOnFramesAvailableListener(mScrubFramesListener);
+            mPreviewBuffer.setScrubbing(false);
+            mPreviewBuffer.clear();
+            mIsScrubbing = false;
+        }
+    }
+
+    /**
+     * Presents newest buffered video frame of scrub mode. It is presented as continuation of
+     * current file, since file changes are handled by caller when requesting scrub position.
+     */
+    private void presentLatestFrame() {
+        Frame frame = mPreviewBuffer.dequeue(Frame.Type.VIDEO);
+        if (frame == null) {
+            return;
+        }
+        Frame newerFrame;
+        while ((newerFrame = mPreviewBuffer.dequeue(Frame.Type.VIDEO)) != null) {
+            // Superseded by newer scrub position
+            mPreviewBuffer.onFramePlayed(frame);
+            frame = newerFrame;
+        }
+        PreviewPlayerCallback previewPlayerCallback = mPreviewPlayerCallback;
+        if (mIsScrubbing && !mIsHidden && previewPlayerCallback != null) {
+            PreviewFrameDecoder frameDecoder = mFrameDecoder;
+            BitmapDrawObject decodedFrame = frameDecoder != null ? frameDecoder.take(frame) : null;
+            int ptsMillis = frame.getPts() / PreviewBuffer.PTS_PER_MILLISECOND;
+            long drawStartNanos = mTimeSource.nanoTime();
+            if (decodedFrame != null) {
+                previewPlayerCallback.drawDecodedFrame(decodedFrame, ptsMillis, false);
+            } else {
+                previewPlayerCallback.drawFrame(frame.copyBytes(), ptsMillis, false);
+            }
+            onFramePresented(mTimeSource.nanoTime() - drawStartNanos);
+        }
+        mPreviewBuffer.onFramePlayed(frame);
+    }
+
+    /**
+     * Hides or shows playback. While hidden, video frames are consumed on clock without decoding
+     * and drawing, audio isn't buffered and audio renderer finishes, so that playback continues
+     * from current position once shown. Only first frames of files are reported, with
+     * {@link PreviewPlayerCallback#onFirstFrameSkipped(int)}.
+     * @param isHidden {@code true} to hide playback
+     */
+    void setHidden(boolean isHidden) {
+        mIsHidden = isHidden;
+        mPreviewBuffer.setAudioDiscarded(isHidden);
+        if (!isHidden) {
+            startAudioRendererIfNeeded();
+        }
+    }
+
+    boolean isHidden() {
+        return mIsHidden;
+    }
+
+    /**
+     * Audio isn't time stretched, so it's played only at normal rate, and not while hidden.
+     */
+    private boolean isAudioPlayed() {
+        return mPlaybackRate == PlaybackClock.NORMAL_RATE && !mIsHidden;
+    }
+
+    private void skipAudioFrame() {
+        Frame frame = mPreviewBuffer.dequeue(Frame.Type.AUDIO);
+        if (frame != null) {
+            mPreviewBuffer.onFramePlayed(frame);
+        }
+    }
+
+    /**
+     * Provides offset of last presented video frame from master clock. With audio, clock follows
+     * audio playback position, so this is A/V offset.
+     * @return offset in milliseconds, positive if video was presented early
+     */
+    int getAvOffsetMillis() {
+        return (int) (mAvOffsetPts / PreviewBuffer.PTS_PER_MILLISECOND);
+    }
+
+    /**
+     * Sets how late behind clock video frame can be before it is dropped.
+     * @param lateFrameThresholdMillis threshold in milliseconds, 0 to present every frame
+     */
+    void setLateFrameThresholdMillis(int lateFrameThresholdMillis) {
+        mLateFrameThresholdPts = lateFrameThresholdMillis * PreviewBuffer.PTS_PER_MILLISECOND;
+    }
+
+    /**
+     * Provides number of video frames dropped because they were late.
+     * @return dropped frame count
+     */
+    long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    long getPresentedFrameCount() {
+        return mPresentedFrameCount.get();
+    }
+
+    float getPresentedFps() {
+        return mPresentedFrameRate.getRate();
+    }
+
+    float getDroppedFps() {
+        return mDroppedFrameRate.getRate();
+    }
+
+    /**
+     * Provides durations of handing frames over to callback, which draws them.
+     * @return draw time histogram counts
+     */
+    long[] getDrawTimeCounts() {
+        return mDrawTimeHistogram.getCounts();
+    }
+
+    /**
+     * Provides information if master clock is currently driven by audio.
+     * @return {@code true} if audio drives clock, {@code false} if clock runs on monotonic time
+     */
+    boolean isAudioClock() {
+        return mClock.isAudioDriven();
+    }
+
     void pause(boolean pause) {
         if (!pause) {
             play();
@@ -98,11 +380,59 @@ class PreviewPlayer {
         }
     }
 
-    private class AudioThread extends Thread {
+    /**
+     * Decodes and plays audio frames from buffer while player is playing.
+     */
+    private interface AudioRenderer {
+        void start();
+        boolean isAudioRunning();
+        void setVolumeEnabled(boolean playSound);
+        /** Called once first video frame of segment is presented, so that its audio can start. */
+        void onReadyToPlay();
+        void onPlaybackStopped();
+        /**
+         * Makes next frame start new segment, with queued and not yet heard audio dropped. Called
+         * under notify object lock.
+         */
+        void resync();
+    }
 
-        private boolean mIsAudioRunning;
-        private boolean mIsMuted;
-        private AudioTrack mAudioTrack;
+    /**
+     * Copies AAC payload of frame without ADTS header to codec input buffer.
+     * @return number of bytes copied
+     */
+    private static int putAacPayload(Frame frame, ByteBuffer dstBuf) {
+        dstBuf.clear();
+        ByteBuffer payload = frame.getBuffer();
+        if (payload == null || payload.remaining() <= Frame.AAC_ADTS_HEADER) {
+            return 0;
+        }
+        payload.position(payload.position() + Frame.AAC_ADTS_HEADER);
+        int length = payload.remaining();
+        dstBuf.put(payload);
+        return length;
+    }
+
+    /**
+     * Decodes audio with codec in synchronous mode, on platforms without asynchronous codec callbacks.
+     */
+    private class AudioThread extends Thread implements AudioRenderer {
+
+        private static final long CODEC_TIMEOUT_MICROS = 10000;
+
+        private volatile boolean mIsAudioRunning;
+        private final AudioOutput mAudioOutput = new AudioOutput(mClock);
+
+        private MediaCodec mCodec;
+        private ByteBuffer[] mCodecInputBuffers;
+        private ByteBuffer[] mCodecOutputBuffers;
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private AacDecoderPool.Format mFormat;
+        private boolean mHasPendingInput;
+        /** Frames were skipped, so next one starts new segment. */
+        private boolean mIsResyncNeeded;
+        /** Playback was repositioned, so audio written to track isn't heard anymore. */
+        private boolean mIsTrackFlushNeeded;
 
         AudioThread() {
             mIsAudioRunning = true;
@@ -112,206 +442,444 @@ class PreviewPlayer {
             mIsAudioRunning = isAudioRunning;
         }
 
-        boolean isAudioRunning() {
+        @Override
+        public boolean isAudioRunning() {
             return mIsAudioRunning;
         }
 
-        void setVolumeEnabled(boolean playSound) {
-            mIsMuted = !playSound;
-            if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
-                try {
-                    if (playSound) {
-                        mAudioTrack.setStereoVolume(AudioTrack.getMaxVolume(), AudioTrack.getMaxVolume());
-                    } else {
-                        mAudioTrack.setStereoVolume(0f, 0f);
-                    }
-                } catch (IllegalStateException e) {
-                    Logger.error(TAG, "IllegalState in setting volume. AudioTrack state was: " + mAudioTrack.getState());
-                }
-            }
+        @Override
+        public void setVolumeEnabled(boolean playSound) {
+            mAudioOutput.setVolumeEnabled(playSound);
         }
 
         @Override
-        public void run() {
-            while (mIsPlaying.get() && mIsAudioRunning) {
-                Frame audioFrame = mPreviewBuffer.peek(Frame.Type.AUDIO);
-                int adtsSampleRate;
-                ByteBuffer csdBytes;
-                if (audioFrame != null) {
-                    adtsSampleRate = AudioUtil.getSampleRateFromAacFrame(audioFrame.getBytes());
-                    csdBytes = AudioUtil.getCsdForFrame(audioFrame.getBytes());
-                } else {
-                    adtsSampleRate = AudioUtil.SAMPLE_RATE_DEFAULT;
-                    csdBytes = ByteBuffer.wrap(new byte[]{0x11, (byte) 0x90});
-                }
-
-                MediaCodec codec;
-
-                MediaFormat format = MediaFormat.createAudioFormat(AudioUtil.AAC_MIME_TYPE, adtsSampleRate, 1);
-                format.setInteger(MediaFormat.KEY_SAMPLE_RATE, adtsSampleRate);
-                format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-                format.setByteBuffer("csd-0", csdBytes);
-                String mime = format.getString(MediaFormat.KEY_MIME);
-
-                // the actual decoder
-                try {
-                    codec = MediaCodec.createDecoderByType(mime);
-                } catch (IOException e) {
-                    Logger.exception(e);
-                    return;
-                }
-
-                codec.configure(format, null, null, 0);
-                codec.start();
-                ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
-                ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
-
-                // get the sample rate to configure AudioTrack
-                int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-                Logger.info(TAG, "Codec output sample rate is " + sampleRate);
-                // create our AudioTrack instance
-                mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
-                        AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
-                        AudioTrack.getMinBufferSize(sampleRate,
-                                AudioFormat.CHANNEL_OUT_MONO,
-                                AudioFormat.ENCODING_PCM_16BIT), AudioTrack.MODE_STREAM);
-
-                // start playing, we will feed you later
-                mAudioTrack.play();
-                if (mIsMuted) {
-                    mAudioTrack.setStereoVolume(0f, 0f);
-                } else {
-                    mAudioTrack.setStereoVolume(AudioTrack.getMaxVolume(), AudioTrack.getMaxVolume());
-                }
+        public void onReadyToPlay() {
+            // Waiting thread is notified on mNotifyObject
+        }
 
-                // start decoding
-                MediaCodec.BufferInfo bufInfo = new MediaCodec.BufferInfo();
-                boolean sawInputEOS = false;
-                boolean sawOutputEOS = false;
-                boolean sawFirstFrame = false;
+        @Override
+        public void onPlaybackStopped() {
+            // Thread finishes within FRAME_WAIT_MILLIS
+        }
 
-                while (!sawOutputEOS && mIsPlaying.get() && mIsAudioRunning) {
+        @Override
+        public void resync() {
+            mIsResyncNeeded = true;
+            mIsTrackFlushNeeded = true;
+        }
 
-                    while (!mPreviewBuffer.hasAudioFrames()) {
-                        if (!(mIsAudioRunning && mIsPlaying.get())) {
+        /**
+         * Decodes audio frames as they become available. Codec and track are kept across segments
+         * with the same format, segments only flush the codec.
+         */
+        @Override
+        public void run() {
+            try {
+                while (mIsPlaying.get() && mIsAudioRunning) {
+                    if (!mPreviewBuffer.awaitFrames(Frame.Type.AUDIO, FRAME_WAIT_MILLIS)) {
+                        if (mIsHidden) {
+                            // Buffered audio is skipped, renderer is started again once shown
                             break;
                         }
-                        try {
-                            Thread.sleep(10);
-                        } catch (InterruptedException e) {
-                            Logger.exception(e);
+                        if (mHasPendingInput && mPreviewBuffer.isEosReached()) {
+                            drainToEndOfStream();
                         }
+                        continue;
                     }
 
-                    if (!(mIsAudioRunning && mIsPlaying.get())) {
-                        break;
-                    }
-
+                    Frame frame;
                     synchronized (mNotifyObject) {
-                        Frame frame = mPreviewBuffer.peek(Frame.Type.AUDIO);
-
+                        frame = mPreviewBuffer.peek(Frame.Type.AUDIO);
                         if (frame == null) {
-                            break;
+                            continue;
                         }
-
+                        if (!isAudioPlayed()) {
+                            skipAudioFrame();
+                            mIsResyncNeeded = true;
+                            continue;
+                        }
+                        boolean isSegmentStart = frame.isFirstFrame() || mCodec == null || mIsResyncNeeded;
+                        if (isSegmentStart && !startSegment(frame)) {
+                            return;
+                        }
+                        mIsResyncNeeded = false;
                         if (frame.isFirstFrame()) {
-                            if (!sawFirstFrame) {
-                                frame = mPreviewBuffer.dequeue(Frame.Type.AUDIO);
-                                sawFirstFrame = true;
-                                if (!mReadyToPlayAudio) {
-                                    try {
-                                        mNotifyObject.wait();
-                                    } catch (InterruptedException e) {
-                                        Logger.exception(e);
-                                    }
+                            // Audio of new segment starts with its first video frame
+                            if (!mReadyToPlayAudio) {
+                                try {
+                                    mNotifyObject.wait();
+                                } catch (InterruptedException e) {
+                                    Logger.exception(e);
                                 }
-                                mReadyToPlayAudio = false;
-                            } else {
-                                break;
                             }
-                        } else {
-                            frame = mPreviewBuffer.dequeue(Frame.Type.AUDIO);
+                            mReadyToPlayAudio = false;
                         }
-
-
-                        if (!sawInputEOS) {
-                            sawInputEOS = queueCodecInputBuffer(codec, codecInputBuffers, sawInputEOS, frame);
+                        frame = mPreviewBuffer.dequeue(Frame.Type.AUDIO);
+                        if (frame == null) {
+                            continue;
+                        }
+                        if (isSegmentStart) {
+                            if (mIsTrackFlushNeeded) {
+                                mAudioOutput.flush();
+                                mIsTrackFlushNeeded = false;
+                            }
+                            mAudioOutput.startSegment(frame.getPts());
                         }
                     }
 
-                    int outputBufIndex = codec.dequeueOutputBuffer(bufInfo, 10000);
+                    queueInput(frame);
+                    mPreviewBuffer.onFramePlayed(frame);
+                    drainOutput(CODEC_TIMEOUT_MICROS);
+                }
+            } finally {
+                Logger.debug(TAG, "Finishing AudioThread");
+                releaseCodecAndTrack();
+                mIsAudioRunning = false;
+            }
+        }
 
-                    if (outputBufIndex >= 0) {
-                        sawOutputEOS = queueAudioTrack(codec, mAudioTrack, codecOutputBuffers[outputBufIndex], bufInfo, sawOutputEOS, outputBufIndex);
-                    } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                        codecOutputBuffers = codec.getOutputBuffers();
-                        Logger.info(TAG, "output buffers have changed.");
-                    } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        MediaFormat oformat = codec.getOutputFormat();
+        /**
+         * Prepares codec and track for segment starting with given frame. Codec is only flushed if
+         * segment has the same format as previous one.
+         * @return {@code false} if codec couldn't be created
+         */
+        private boolean startSegment(Frame frame) {
+            AacDecoderPool.Format format = AacDecoderPool.Format.fromFrame(frame);
+            if (mCodec != null && format.equals(mFormat)) {
+                if (mHasPendingInput) {
+                    mCodec.flush();
+                    mHasPendingInput = false;
+                }
+                return true;
+            }
+            releaseCodecAndTrack();
 
-                        Logger.info(TAG, "output format has changed to " + oformat);
-                    } else {
-                        Logger.info(TAG, "dequeueOutputBuffer returned " + outputBufIndex);
-                    }
+            try {
+                mCodec = AacDecoderPool.getInstance().acquire(format);
+            } catch (IOException e) {
+                Logger.exception(e);
+                return false;
+            }
+            mCodecInputBuffers = mCodec.getInputBuffers();
+            mCodecOutputBuffers = mCodec.getOutputBuffers();
+            mFormat = format;
+            mAudioOutput.open(format.getSampleRate());
+            return true;
+        }
 
+        private void queueInput(Frame frame) {
+            int inputBufIndex = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_MICROS);
+            if (inputBufIndex < 0) {
+                Logger.debug(TAG, "inputBufIndex " + inputBufIndex);
+                return;
+            }
+            int length = putAacPayload(frame, mCodecInputBuffers[inputBufIndex]);
+            mCodec.queueInputBuffer(inputBufIndex, 0, length, 0, 0);
+            mHasPendingInput = true;
+        }
+
+        /**
+         * Queues end of stream and plays out everything codec still holds, codec is flushed
+         * afterwards so it can be reused.
+         */
+        private void drainToEndOfStream() {
+            int inputBufIndex = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_MICROS);
+            if (inputBufIndex < 0) {
+                return;
+            }
+            mCodec.queueInputBuffer(inputBufIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            while (mIsPlaying.get() && mIsAudioRunning && !drainOutput(CODEC_TIMEOUT_MICROS)) {
+                // Draining until output EOS
+            }
+            mCodec.flush();
+            mHasPendingInput = false;
+        }
+
+        /**
+         * Writes available decoded output to track.
+         * @return {@code true} if output end of stream was reached
+         */
+        private boolean drainOutput(long timeoutMicros) {
+            int outputBufIndex = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutMicros);
+            if (outputBufIndex >= 0) {
+                mAudioOutput.write(mCodecOutputBuffers[outputBufIndex], mBufferInfo);
+                mCodec.releaseOutputBuffer(outputBufIndex, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Logger.info(TAG, "Output EOS reached");
+                    return true;
                 }
+            } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mCodecOutputBuffers = mCodec.getOutputBuffers();
+                Logger.info(TAG, "output buffers have changed.");
+            } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                Logger.info(TAG, "output format has changed to " + mCodec.getOutputFormat());
+            }
+            return false;
+        }
+
+        private void releaseCodecAndTrack() {
+            mAudioOutput.release();
+            if (mCodec != null) {
+                // Pooled decoder is flushed, so it's ready for next seek
+                AacDecoderPool.getInstance().recycle(mFormat, mCodec);
+                mCodec = null;
+            }
+            mHasPendingInput = false;
+        }
+    }
 
-                Logger.debug(TAG, "Stopping audio track");
+    /**
+     * Decodes audio with codec in asynchronous mode. Input buffers are filled from buffer as codec
+     * hands them over and frames arrive, output goes straight to track. Handler thread only runs
+     * when there is work, instead of polling codec with timeouts.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private class AsyncAudioDecoder extends MediaCodec.Callback implements AudioRenderer, PreviewBuffer.OnFramesAvailableListener {
+
+        private final HandlerThread mHandlerThread;
+        private final Handler mHandler;
+        private volatile boolean mIsAudioRunning;
+        private final AudioOutput mAudioOutput = new AudioOutput(mClock);
+
+        private MediaCodec mCodec;
+        private AacDecoderPool.Format mFormat;
+        /** Input buffers codec handed over, waiting for frames. */
+        private final ArrayDeque<Integer> mFreeInputBuffers = new ArrayDeque<>();
+        private boolean mHasPendingInput;
+        private boolean mIsDraining;
+        /** First frame of segment codec and track were prepared for. */
+        private Frame mPreparedFrame;
+        /** Frames were skipped, so next one starts new segment. */
+        private boolean mIsResyncNeeded;
+        /** Playback was repositioned, so audio written to track isn't heard anymore. */
+        private boolean mIsTrackFlushNeeded;
+
+        private final Runnable mFillInputRunnable = new Runnable() {
+            @Override
+            public void run() {
+                fillInputBuffers();
+            }
+        };
 
-                // ////////closing
-                if (mAudioTrack != null) {
-                    mAudioTrack.flush();
-                    mAudioTrack.release();
+        private final Runnable mStopRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (mIsAudioRunning && !mIsPlaying.get()) {
+                    release();
                 }
-                codec.stop();
             }
-            Logger.debug(TAG, "Finishing AudioThread");
-            mIsAudioRunning = false;
+        };
+
+        AsyncAudioDecoder() {
+            mHandlerThread = new HandlerThread("PreviewAudio");
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+            mIsAudioRunning = true;
         }
 
-        private boolean queueAudioTrack(MediaCodec codec, AudioTrack audioTrack, ByteBuffer codecOutputBuffer, MediaCodec.BufferInfo bufInfo, boolean sawOutputEOS, int outputBufIndex) {
+        @Override
+        public void start() {
+            mPreviewBuffer.addOnFramesAvailableListener(this);
+            mHandler.post(mFillInputRunnable);
+        }
 
-            ByteBuffer buf = codecOutputBuffer;
-            buf.position(bufInfo.offset);
-            buf.limit(bufInfo.offset + bufInfo.size);
+        @Override
+        public boolean isAudioRunning() {
+            return mIsAudioRunning;
+        }
+
+        @Override
+        public void setVolumeEnabled(boolean playSound) {
+            mAudioOutput.setVolumeEnabled(playSound);
+        }
+
+        @Override
+        public void onReadyToPlay() {
+            mHandler.post(mFillInputRunnable);
+        }
+
+        @Override
+        public void onPlaybackStopped() {
+            mHandler.post(mStopRunnable);
+        }
+
+        @Override
+        public void resync() {
+            mIsResyncNeeded = true;
+            mIsTrackFlushNeeded = true;
+            mPreparedFrame = null;
+        }
 
-            final byte[] chunk = new byte[bufInfo.size];
-            buf.get(chunk);
-            buf.clear();
+        @Override
+        public void onFramesAvailable() {
+            mHandler.post(mFillInputRunnable);
+        }
 
-            if (chunk.length > 0) {
-                // play
-                audioTrack.write(chunk, 0, chunk.length);
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (codec != mCodec) {
+                return;
+            }
+            mFreeInputBuffers.offer(index);
+            fillInputBuffers();
+        }
 
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (codec != mCodec) {
+                return;
             }
-            codec.releaseOutputBuffer(outputBufIndex, false);
-            if ((bufInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mAudioOutput.write(codec.getOutputBuffer(index), info);
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 Logger.info(TAG, "Output EOS reached");
-                sawOutputEOS = true;
+                flushCodec();
             }
-            return sawOutputEOS;
         }
 
-        private boolean queueCodecInputBuffer(MediaCodec codec, ByteBuffer[] codecInputBuffers, boolean sawInputEOS, Frame frame) {
-            int inputBufIndex = codec.dequeueInputBuffer(10000);
-            if (inputBufIndex >= 0) {
-                ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-                dstBuf.clear();
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Logger.error(TAG, "Audio codec error: " + e.getMessage());
+            if (codec == mCodec) {
+                release();
+            }
+        }
 
-                int actualRead = 0;
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Logger.info(TAG, "output format has changed to " + format);
+        }
 
-                if (mPreviewBuffer.isEosReached()) {
-                    sawInputEOS = true;
-                } else {
-                    dstBuf.put(frame.getBytes(), Frame.AAC_ADTS_HEADER, frame.getBytes().length - Frame.AAC_ADTS_HEADER);
-                    actualRead = frame.getBytes().length - 7;
+        /**
+         * Queues buffered audio frames to free input buffers. Segment's first frame waits until
+         * its first video frame is presented.
+         */
+        private void fillInputBuffers() {
+            if (!mIsAudioRunning) {
+                return;
+            }
+            if (!mIsPlaying.get()) {
+                release();
+                return;
+            }
+            while (true) {
+                Frame frame;
+                synchronized (mNotifyObject) {
+                    frame = mPreviewBuffer.peek(Frame.Type.AUDIO);
+                    if (frame == null) {
+                        break;
+                    }
+                    if (!isAudioPlayed()) {
+                        skipAudioFrame();
+                        mIsResyncNeeded = true;
+                        mPreparedFrame = null;
+                        continue;
+                    }
+                    boolean isSegmentStart = frame.isFirstFrame() || mCodec == null || mIsResyncNeeded;
+                    if (isSegmentStart && frame != mPreparedFrame) {
+                        if (!startSegment(frame)) {
+                            release();
+                            return;
+                        }
+                        mPreparedFrame = frame;
+                    }
+                    if (mFreeInputBuffers.isEmpty() || mIsDraining) {
+                        // Continued once codec hands over input buffer
+                        return;
+                    }
+                    if (frame.isFirstFrame()) {
+                        if (!mReadyToPlayAudio) {
+                            // Continued from onReadyToPlay()
+                            return;
+                        }
+                        mReadyToPlayAudio = false;
+                    }
+                    frame = mPreviewBuffer.dequeue(Frame.Type.AUDIO);
+                    if (frame == null) {
+                        break;
+                    }
+                    if (frame == mPreparedFrame) {
+                        if (mIsTrackFlushNeeded) {
+                            mAudioOutput.flush();
+                            mIsTrackFlushNeeded = false;
+                        }
+                        mAudioOutput.startSegment(frame.getPts());
+                        mPreparedFrame = null;
+                        mIsResyncNeeded = false;
+                    }
+                }
+                int index = mFreeInputBuffers.poll();
+                int length = putAacPayload(frame, mCodec.getInputBuffer(index));
+                mCodec.queueInputBuffer(index, 0, length, 0, 0);
+                mHasPendingInput = true;
+                mPreviewBuffer.onFramePlayed(frame);
+            }
+            if (mIsHidden) {
+                // Buffered audio is skipped, renderer is started again once shown
+                release();
+                return;
+            }
+            if (mHasPendingInput && !mFreeInputBuffers.isEmpty() && mPreviewBuffer.isAudioEosReached()) {
+                // Codec plays out what it holds and is flushed on output EOS
+                mCodec.queueInputBuffer(mFreeInputBuffers.poll(), 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mHasPendingInput = false;
+                mIsDraining = true;
+            }
+        }
+
+        /**
+         * Prepares codec and track for segment starting with given frame. Codec is only flushed if
+         * segment has the same format as previous one.
+         * @return {@code false} if codec couldn't be created
+         */
+        private boolean startSegment(Frame frame) {
+            AacDecoderPool.Format format = AacDecoderPool.Format.fromFrame(frame);
+            if (mCodec != null && format.equals(mFormat)) {
+                if (mHasPendingInput || mIsDraining) {
+                    flushCodec();
                 }
+                return true;
+            }
+            releaseCodec();
 
-                codec.queueInputBuffer(inputBufIndex, 0, actualRead, 0, sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-            } else {
-                Logger.debug(TAG, "inputBufIndex " + inputBufIndex);
+            try {
+                mCodec = AacDecoderPool.getInstance().acquireAsync(format, this, mHandler);
+            } catch (IOException e) {
+                Logger.exception(e);
+                return false;
+            }
+            mFormat = format;
+            mAudioOutput.open(format.getSampleRate());
+            return true;
+        }
+
+        private void flushCodec() {
+            mCodec.flush();
+            mFreeInputBuffers.clear();
+            mHasPendingInput = false;
+            mIsDraining = false;
+            // Codec in asynchronous mode hands over input buffers again once resumed
+            mCodec.start();
+        }
+
+        private void releaseCodec() {
+            if (mCodec != null) {
+                AacDecoderPool.getInstance().recycleAsync(mFormat, mCodec);
+                mCodec = null;
             }
-            return sawInputEOS;
+            mFreeInputBuffers.clear();
+            mHasPendingInput = false;
+            mIsDraining = false;
+            mPreparedFrame = null;
+        }
+
+        private void release() {
+            Logger.debug(TAG, "Finishing AsyncAudioDecoder");
+            mPreviewBuffer.removeOnFramesAvailableListener(this);
+            mIsAudioRunning = false;
+            releaseCodec();
+            mAudioOutput.release();
+            mHandlerThread.quitSafely();
         }
     }
 
@@ -319,27 +887,53 @@ class PreviewPlayer {
 
         private static final int PTS_DIVIDER_MILLIS = 90;
 
-        private final ExecutorService mPlayerExecutorService = Executors.newSingleThreadExecutor();
-
         @Override
         public void run() {
-            final Frame frame = mPreviewBuffer.dequeue(Frame.Type.VIDEO);
-            if (frame == null) {
+            final PreviewFrameDecoder frameDecoder = mFrameDecoder;
+            if (frameDecoder != null && !mIsHidden) {
+                frameDecoder.decodeAhead(mPreviewBuffer);
+            }
+            Frame dequeuedFrame = mPreviewBuffer.dequeue(Frame.Type.VIDEO);
+            if (dequeuedFrame == null) {
                 return;
             }
+            final Frame frame = skipLateFrames(dequeuedFrame);
 
             Frame nextFrame = mPreviewBuffer.peek(Frame.Type.VIDEO);
+            syncClock(frame);
 
-            mPlayerExecutorService.execute(new Runnable() {
+            mPresentExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    if (mPreviewPlayerCallback != null) {
-                        mPreviewPlayerCallback.drawFrame(frame.getBytes(), frame.getPts() / PTS_DIVIDER_MILLIS, frame.isFirstFrame());
+                    if (mIsHidden) {
+                        // Nothing is shown, frame is only consumed so that position advances
+                        if (frame.isFirstFrame() && mPreviewPlayerCallback != null) {
+                            mPreviewPlayerCallback.onFirstFrameSkipped(frame.getPts() / PTS_DIVIDER_MILLIS);
+                        }
+                    } else if (isLate(frame)) {
+                        // Drawing fell behind clock, frame is skipped so that next one is on time
+                        onFrameDropped();
+                    } else if (mPreviewPlayerCallback != null) {
+                        mConsecutiveDroppedFrames.set(0);
+                        BitmapDrawObject decodedFrame = frameDecoder != null ? frameDecoder.take(frame) : null;
+                        long drawStartNanos = mTimeSource.nanoTime();
+                        if (decodedFrame != null) {
+                            mPreviewPlayerCallback.drawDecodedFrame(decodedFrame, frame.getPts() / PTS_DIVIDER_MILLIS, frame.isFirstFrame());
+                        } else {
+                            mPreviewPlayerCallback.drawFrame(frame.copyBytes(), frame.getPts() / PTS_DIVIDER_MILLIS, frame.isFirstFrame());
+                        }
+                        onFramePresented(mTimeSource.nanoTime() - drawStartNanos);
+                        mAvOffsetPts = frame.getPts() - mClock.getPts();
                     }
+                    mPreviewBuffer.onFramePlayed(frame);
                     synchronized (mNotifyObject) {
                         if (frame.isFirstFrame() && mPreviewBuffer.hasAudioFrames()) {
                             mReadyToPlayAudio = true;
                             mNotifyObject.notify();
+                            AudioRenderer audioRenderer = mAudioRenderer;
+                            if (audioRenderer != null) {
+                                audioRenderer.onReadyToPlay();
+                            }
                         }
                     }
                 }
@@ -350,31 +944,106 @@ class PreviewPlayer {
                     && mPreviewBuffer.getBufferState() != StreamBuffer.BufferState.EMPTY
                     && mIsPlaying.get()) {
 
-                int deltaPts;
+                long delayMicros;
                 if (nextFrame != null && nextFrame.isFirstFrame()) {
-                    deltaPts = 0;
+                    delayMicros = 0;
                 } else {
-                    deltaPts = ((nextPts - frame.getPts()) / PTS_DIVIDER_MILLIS);
+                    // Scheduled against master clock, so scheduling latency doesn't accumulate
+                    delayMicros = Math.max(0, mClock.getMicrosUntil(nextPts));
                 }
 
-                mHandle = mScheduler.schedule(mVideoRunnable, (long) deltaPts, MILLISECONDS);
+                mHandle = mScheduler.schedule(mVideoRunnable, delayMicros, MICROSECONDS);
 
             }
             else {
                 if (mPreviewPlayerCallback != null && mPreviewBuffer.isEosReached()) {
-                    mPtsExecutorService.execute(new Runnable() {
+                    mPresentExecutor.execute(new Runnable() {
                         @Override
                         public void run() {
                             mPreviewPlayerCallback.onPlaybackFinished();
                         }
                     });
+                } else if (mPreviewPlayerCallback != null && (nextPts == -1 || mPreviewBuffer.getBufferState() == StreamBuffer.BufferState.EMPTY)) {
+                    // Ran out of frames before end of stream
+                    mPreviewPlayerCallback.onRebuffering();
                 }
             }
         }
     }
 
+    /**
+     * Skips frames which are already later than threshold, as long as next frame of the same file
+     * is buffered. First frames of files aren't skipped.
+     * @param frame dequeued frame
+     * @return frame which should be presented
+     */
+    private Frame skipLateFrames(Frame frame) {
+        while (isLate(frame)) {
+            Frame nextFrame = mPreviewBuffer.peek(Frame.Type.VIDEO);
+            if (nextFrame == null || nextFrame.isFirstFrame()) {
+                break;
+            }
+            Frame dequeuedFrame = mPreviewBuffer.dequeue(Frame.Type.VIDEO);
+            if (dequeuedFrame == null) {
+                break;
+            }
+            onFrameDropped();
+            mPreviewBuffer.onFramePlayed(frame);
+            frame = dequeuedFrame;
+        }
+        return frame;
+    }
+
+    /**
+     * Checks if frame is later than threshold behind clock and can be dropped. At most
+     * {@link #MAX_CONSECUTIVE_DROPPED_FRAMES} frames are dropped in a row, so that picture is
+     * updated even if device can't keep up at all.
+     */
+    private boolean isLate(Frame frame) {
+        int lateFrameThresholdPts = mLateFrameThresholdPts;
+        return lateFrameThresholdPts > 0
+                && !frame.isFirstFrame()
+                && mConsecutiveDroppedFrames.get() < MAX_CONSECUTIVE_DROPPED_FRAMES
+                && mClock.isRunning()
+                && mClock.getPts() - frame.getPts() > lateFrameThresholdPts;
+    }
+
+    private void onFramePresented(long drawNanos) {
+        mPresentedFrameCount.incrementAndGet();
+        mPresentedFrameRate.onEvent();
+        mDrawTimeHistogram.record(drawNanos);
+    }
+
+    private void onFrameDropped() {
+        // Not logged per frame, dropped frame count and rate are in playback stats
+        mConsecutiveDroppedFrames.incrementAndGet();
+        mDroppedFrameCount.incrementAndGet();
+        mDroppedFrameRate.onEvent();
+    }
+
+    /**
+     * Starts master clock from frame about to be presented if it isn't running, on start of a file,
+     * or on discontinuity such as seek while clock isn't driven by audio.
+     */
+    private void syncClock(Frame frame) {
+        if (!mIsPlaying.get()) {
+            // Buffer ran empty on this frame, clock stays paused until playback resumes
+            return;
+        }
+        if (frame.isFirstFrame() || !mClock.isRunning()) {
+            mClock.start(frame.getPts());
+        } else if (!mClock.isAudioDriven() && Math.abs(frame.getPts() - mClock.getPts()) > MAX_CLOCK_DISCONTINUITY_PTS) {
+            Logger.debug(TAG, "Video discontinuity at pts " + frame.getPts() + ", restarting clock");
+            mClock.start(frame.getPts());
+        }
+    }
+
     interface PreviewPlayerCallback {
         void drawFrame(byte[] data, int pts, boolean isFirstFrame);
+        void drawDecodedFrame(BitmapDrawObject bitmapDrawObject, int pts, boolean isFirstFrame);
         void onPlaybackFinished();
+        void onRebuffering();
+        /** Called instead of drawing for first frame of file while playback is hidden. */
+        void onFirstFrameSkipped(int pts);
     }
 }
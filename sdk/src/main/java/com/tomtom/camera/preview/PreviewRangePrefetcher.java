@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.util.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prefetches next part of requested preview range over a second {@link CameraPreviewStreamServer}.
+ *
+ * START command for a long range is split in two: main server streams first window of the range,
+ * while prefetch server streams the rest into a staging {@link PreviewBuffer} in parallel. When
+ * main window ends, staged frames are merged into main buffer in pts order, followed by frames
+ * prefetch server keeps receiving, until its EOS which is forwarded as the real end of stream.
+ * Merged frames are handed over through main server, so they are recorded into its segment cache
+ * like frames it receives.
+ */
+class PreviewRangePrefetcher {
+
+    private static final String TAG = "PreviewRangePrefetcher";
+
+    private static final StreamBufferCallback NO_OP_CALLBACK = new StreamBufferCallback() {
+        @Override
+        public void onEmpty() {
+        }
+
+        @Override
+        public void onLow() {
+        }
+
+        @Override
+        public void onReady() {
+        }
+    };
+
+    private final float mWindowSecs;
+    private final CameraPreviewStreamServer mMainServer;
+    private final PreviewBuffer mMainBuffer;
+
+    private final PreviewBuffer mStagingBuffer;
+    private final CameraPreviewStreamServer mPrefetchServer;
+    private final ExecutorService mMergeExecutor = Executors.newSingleThreadExecutor();
+
+    private AbstractPreviewVideo.PreviewCommand mPendingPrefetchCommand;
+    private AbstractPreviewVideo.PreviewCommand mActivePrefetchCommand;
+    private volatile boolean mIsPrefetchEosReceived;
+    private volatile int mPrefetchToken;
+    /** Merge waits on it for staged frames, prefetch EOS or cancellation. */
+    private final Object mMergeLock = new Object();
+
+    private final PreviewBuffer.OnFramesAvailableListener mOnStagedFramesListener = new PreviewBuffer.OnFramesAvailableListener() {
+        @Override
+        public void onFramesAvailable() {
+            signalMerge();
+        }
+    };
+
+    private final CameraPreviewStreamServer.OnEosReceivedListener mOnWindowEndListener = new CameraPreviewStreamServer.OnEosReceivedListener() {
+        @Override
+        public void onEosReceived() {
+            startMerge(mPrefetchToken);
+        }
+    };
+
+    private final CameraPreviewStreamServer.OnEosReceivedListener mOnPrefetchEosListener = new CameraPreviewStreamServer.OnEosReceivedListener() {
+        @Override
+        public void onEosReceived() {
+            mIsPrefetchEosReceived = true;
+            signalMerge();
+        }
+    };
+
+    /**
+     * @param mainServer server streaming into main buffer
+     * @param mainBuffer main buffer used by player
+     * @param prefetchServer second server, streaming into staging buffer
+     * @param stagingBuffer buffer created with {@link #createStagingBuffer()}
+     * @param windowSecs length of first window streamed by main server
+     */
+    PreviewRangePrefetcher(CameraPreviewStreamServer mainServer, PreviewBuffer mainBuffer, CameraPreviewStreamServer prefetchServer,
+                           PreviewBuffer stagingBuffer, float windowSecs) {
+        mMainServer = mainServer;
+        mMainBuffer = mainBuffer;
+        mPrefetchServer = prefetchServer;
+        mStagingBuffer = stagingBuffer;
+        mWindowSecs = windowSecs;
+        mMainServer.setOnWindowEndListener(mOnWindowEndListener);
+        mPrefetchServer.setOnEosReceivedListener(mOnPrefetchEosListener);
+        mStagingBuffer.addOnFramesAvailableListener(mOnStagedFramesListener);
+    }
+
+    /**
+     * Creates buffer for prefetch server. Prefetched frames aren't played from it, so it has no
+     * state callbacks.
+     * @return staging buffer
+     */
+    static PreviewBuffer createStagingBuffer() {
+        return new PreviewBuffer(NO_OP_CALLBACK);
+    }
+
+    /**
+     * Splits START command if requested range is long enough. Main server session is set to end
+     * with first window and second part is prepared for prefetch server.
+     * @param startCommand START command for main server
+     * @return command which should be sent for main server
+     */
+    synchronized AbstractPreviewVideo.PreviewCommand split(AbstractPreviewVideo.PreviewCommand startCommand) {
+        cancel();
+        if (startCommand.lengthSecs == null || startCommand.lengthSecs < 2 * mWindowSecs) {
+            return startCommand;
+        }
+        if (!mPrefetchServer.start()) {
+            Logger.warning(TAG, "Prefetch server couldn't be started");
+            return startCommand;
+        }
+
+        float prefetchStartSecs = startCommand.startPositionSecs + mWindowSecs;
+        AbstractPreviewVideo.PreviewCommand prefetchCommand = AbstractPreviewVideo.PreviewCommand.createStart(startCommand.videoId,
+                mPrefetchServer.getPort(), prefetchStartSecs, startCommand.lengthSecs - mWindowSecs);
+        mPendingPrefetchCommand = mPrefetchServer.newSession(prefetchCommand);
+        mIsPrefetchEosReceived = false;
+        mMainServer.endSessionAtWindow();
+        Logger.info(TAG, "Prefetching " + startCommand.videoId + " from " + prefetchStartSecs + " on port " + mPrefetchServer.getPort());
+
+        return AbstractPreviewVideo.PreviewCommand.createStart(startCommand.videoId, startCommand.previewVideoPort,
+                startCommand.startPositionSecs, mWindowSecs);
+    }
+
+    /**
+     * Provides prefetch START command which should be sent once main START is confirmed.
+     * @return command to send, or {@code null}
+     */
+    synchronized AbstractPreviewVideo.PreviewCommand pollPendingStart() {
+        AbstractPreviewVideo.PreviewCommand command = mPendingPrefetchCommand;
+        mPendingPrefetchCommand = null;
+        if (command != null) {
+            mActivePrefetchCommand = command;
+        }
+        return command;
+    }
+
+    /**
+     * Should be called when camera refused a START command. If it was prefetch command, stream ends
+     * with main window instead of waiting for prefetched frames forever.
+     * @param startCommand refused command
+     */
+    synchronized void onStartFailed(AbstractPreviewVideo.PreviewCommand startCommand) {
+        if (startCommand != null && startCommand == mActivePrefetchCommand) {
+            Logger.warning(TAG, "Prefetch stream couldn't be started");
+            mActivePrefetchCommand = null;
+            mIsPrefetchEosReceived = true;
+        }
+    }
+
+    /**
+     * Provides STOP command for prefetch stream which is still running, should be sent once main
+     * STOP is confirmed.
+     * @return command to send, or {@code null}
+     */
+    synchronized AbstractPreviewVideo.PreviewCommand pollPendingStop() {
+        AbstractPreviewVideo.PreviewCommand command = null;
+        if (mActivePrefetchCommand != null && !mIsPrefetchEosReceived) {
+            command = AbstractPreviewVideo.PreviewCommand.createStop(mActivePrefetchCommand.videoId, mActivePrefetchCommand.previewVideoPort);
+        }
+        mActivePrefetchCommand = null;
+        return command;
+    }
+
+    /**
+     * Stops merging and prefetch server. STOP for running prefetch stream is left to
+     * {@link #pollPendingStop()}.
+     */
+    synchronized void cancel() {
+        mPrefetchToken++;
+        signalMerge();
+        mPendingPrefetchCommand = null;
+        if (mPrefetchServer.isRunning()) {
+            mPrefetchServer.stop();
+        }
+    }
+
+    /**
+     * Stops prefetching and unbinds prefetch server.
+     */
+    synchronized void release() {
+        cancel();
+        mPrefetchServer.close();
+    }
+
+    private void startMerge(final int prefetchToken) {
+        Logger.info(TAG, "Main window ended, merging prefetched frames");
+        mMergeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (prefetchToken == mPrefetchToken) {
+                    Frame frame = takeNextStagedFrame();
+                    if (frame == null) {
+                        if (mIsPrefetchEosReceived) {
+                            finishMerge(prefetchToken);
+                            return;
+                        }
+                        if (!awaitMergeSignal(prefetchToken)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    // Frames continue main window, so they don't start new file
+                    frame.setIsFirstFrame(false);
+                    while (!mMainBuffer.awaitNotFull(CameraPreviewStreamServer.BACKPRESSURE_WAIT_MILLIS)) {
+                        if (prefetchToken != mPrefetchToken) {
+                            frame.release();
+                            return;
+                        }
+                    }
+                    if (!mMainServer.queueSessionFrame(frame)) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks merge until frame is staged, prefetch EOS is received or merge is cancelled.
+     * @return {@code false} if merge thread was interrupted
+     */
+    private boolean awaitMergeSignal(int prefetchToken) {
+        synchronized (mMergeLock) {
+            try {
+                while (prefetchToken == mPrefetchToken && !mIsPrefetchEosReceived && !hasStagedFrames()) {
+                    mMergeLock.wait();
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void signalMerge() {
+        synchronized (mMergeLock) {
+            mMergeLock.notifyAll();
+        }
+    }
+
+    private boolean hasStagedFrames() {
+        return mStagingBuffer.peek(Frame.Type.VIDEO) != null || mStagingBuffer.peek(Frame.Type.AUDIO) != null;
+    }
+
+    /**
+     * Takes staged frame with lower pts of video and audio heads.
+     */
+    private Frame takeNextStagedFrame() {
+        Frame video = mStagingBuffer.peek(Frame.Type.VIDEO);
+        Frame audio = mStagingBuffer.peek(Frame.Type.AUDIO);
+        if (video == null && audio == null) {
+            return null;
+        }
+        if (audio == null || (video != null && video.getPts() <= audio.getPts())) {
+            return mStagingBuffer.dequeue(Frame.Type.VIDEO);
+        }
+        return mStagingBuffer.dequeue(Frame.Type.AUDIO);
+    }
+
+    private void finishMerge(int prefetchToken) {
+        synchronized (this) {
+            if (prefetchToken != mPrefetchToken) {
+                return;
+            }
+            mActivePrefetchCommand = null;
+        }
+        Logger.info(TAG, "Prefetched range merged");
+        // Main server queues EOS and notifies its listener of end of whole range
+        mMainServer.queueSessionFrame(new Frame(0, Frame.Type.EOS, 0, 0, null));
+    }
+}
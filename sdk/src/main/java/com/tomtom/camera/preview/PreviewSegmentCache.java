@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of already streamed preview frames. Frames of every preview session are recorded
+ * into a {@link Segment} keyed by playable id and covering a pts range. Segments are kept in memory
+ * until memory budget is exceeded, then least recently used ones are moved to disk, and least
+ * recently used disk segments are deleted once disk budget is exceeded.
+ *
+ * Recording is called from socket reader thread, so payloads are copied and segments moved to disk
+ * on a single writer thread, without holding cache lock while writing to disk.
+ */
+class PreviewSegmentCache {
+
+    private static final String TAG = "PreviewSegmentCache";
+
+    static final int PTS_PER_SECOND = 90000;
+
+    private static final String FILE_PREFIX = "preview_segment_";
+    private static final long WRITER_KEEP_ALIVE_SECS = 10;
+
+    private final File mCacheDir;
+    private final long mMemoryBudgetBytes;
+    private final long mDiskBudgetBytes;
+    private final Executor mWriteExecutor;
+
+    /** Segments in access order, least recently used first. */
+    private final LinkedHashMap<Integer, Segment> mSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMemoryBytes;
+    private long mDiskBytes;
+    private int mNextSegmentId;
+
+    private String mRecordingPlayableId;
+    private Segment mRecordingSegment;
+
+    /**
+     * @param cacheDir directory for disk tier, {@code null} for memory only cache
+     * @param memoryBudgetBytes maximum size of segments kept in memory
+     * @param diskBudgetBytes maximum size of segments kept on disk
+     */
+    PreviewSegmentCache(File cacheDir, long memoryBudgetBytes, long diskBudgetBytes) {
+        this(cacheDir, memoryBudgetBytes, diskBudgetBytes, createWriteExecutor());
+    }
+
+    /**
+     * @param cacheDir directory for disk tier, {@code null} for memory only cache
+     * @param memoryBudgetBytes maximum size of segments kept in memory
+     * @param diskBudgetBytes maximum size of segments kept on disk
+     * @param writeExecutor executor copying recorded frames and moving segments to disk, has to
+     * run tasks one at a time in submission order
+     */
+    PreviewSegmentCache(File cacheDir, long memoryBudgetBytes, long diskBudgetBytes, Executor writeExecutor) {
+        mCacheDir = cacheDir;
+        mMemoryBudgetBytes = memoryBudgetBytes;
+        mDiskBudgetBytes = cacheDir != null ? diskBudgetBytes : 0;
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Creates single thread executor, which thread finishes when cache is idle.
+     */
+    private static Executor createWriteExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Starts recording of frames for given playable. Segment is created with first recorded frame.
+     * @param playableId id of streamed playable
+     * @param continuedSegment segment which should be extended, or {@code null} for new segment
+     */
+    synchronized void startRecording(String playableId, Segment continuedSegment) {
+        stopRecording();
+        mRecordingPlayableId = playableId;
+        if (continuedSegment != null && mSegments.containsKey(continuedSegment.mId)) {
+            mRecordingSegment = continuedSegment;
+        }
+    }
+
+    synchronized void stopRecording() {
+        final Segment segment = mRecordingSegment;
+        if (segment != null) {
+            // Frames recorded so far are still being written
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PreviewSegmentCache.this) {
+                        segment.closeOutput();
+                    }
+                }
+            });
+        }
+        mRecordingPlayableId = null;
+        mRecordingSegment = null;
+    }
+
+    /**
+     * Records received frame into current segment. SOS frames are ignored, EOS closes the segment.
+     * Frame is retained until its payload is copied on writer thread.
+     * @param frame received frame
+     */
+    synchronized void record(final Frame frame) {
+        if (mRecordingPlayableId == null) {
+            return;
+        }
+        Frame.Type type = frame.getType();
+        if (type == Frame.Type.EOS) {
+            final Segment segment = mRecordingSegment;
+            if (segment != null) {
+                // Segment is complete only once frames recorded before EOS are appended
+                mWriteExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        segment.mHasEos = true;
+                    }
+                });
+            }
+            stopRecording();
+            return;
+        }
+        if (type != Frame.Type.VIDEO && type != Frame.Type.AUDIO) {
+            return;
+        }
+        if (mRecordingSegment == null) {
+            if (type != Frame.Type.VIDEO) {
+                // Segment has to start with video frame, so it can be presented right away
+                return;
+            }
+            mRecordingSegment = new Segment(mNextSegmentId++, mRecordingPlayableId, frame.getPts());
+            mSegments.put(mRecordingSegment.mId, mRecordingSegment);
+        }
+        if (!frame.retain()) {
+            return;
+        }
+        final Segment segment = mRecordingSegment;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                append(segment, frame);
+            }
+        });
+    }
+
+    /**
+     * Copies payload of retained frame and appends it to segment. Called on writer thread.
+     */
+    private void append(Segment segment, Frame frame) {
+        byte[] bytes;
+        try {
+            bytes = frame.copyBytes();
+        } finally {
+            frame.unretain();
+        }
+        Frame cachedFrame = new Frame(frame.getVersion(), frame.getType(), frame.getPts(), frame.getStatus(), bytes);
+        synchronized (this) {
+            if (!mSegments.containsKey(segment.mId)) {
+                // Evicted or cleared meanwhile
+                return;
+            }
+            long frameSize = segment.append(cachedFrame);
+            if (segment.isOnDisk()) {
+                mDiskBytes += frameSize;
+            } else {
+                mMemoryBytes += frameSize;
+            }
+            trim();
+        }
+    }
+
+    /**
+     * Looks up segment containing given position.
+     * @param playableId id of playable
+     * @param pts position in pts units
+     * @return segment with the longest cached range after given position, or {@code null}
+     */
+    synchronized Segment find(String playableId, int pts) {
+        Segment found = null;
+        for (Segment segment : mSegments.values()) {
+            if (segment.mPlayableId.equals(playableId)
+                    && segment.mStartPts <= pts
+                    && pts < segment.mEndPts
+                    && (found == null || segment.mEndPts > found.mEndPts)) {
+                found = segment;
+            }
+        }
+        if (found != null) {
+            // Touch, to move it to the end of access order
+            mSegments.get(found.mId);
+        }
+        return found;
+    }
+
+    /**
+     * Pins segment, so it's not moved or evicted while frames are being read from it.
+     * @param segment segment to pin
+     */
+    synchronized void pin(Segment segment) {
+        segment.mPinCount++;
+    }
+
+    synchronized void unpin(Segment segment) {
+        segment.mPinCount--;
+        trim();
+    }
+
+    /**
+     * Reads cached frames in range [fromPts, toPts). Segment should be pinned while reading.
+     * @param segment segment to read from
+     * @param fromPts first position to read
+     * @param toPts end of range
+     * @param frameSink sink receiving read frames, reading stops if it returns {@code false}
+     * @throws IOException if disk segment can't be read
+     */
+    void read(Segment segment, int fromPts, int toPts, FrameSink frameSink) throws IOException {
+        if (segment.isOnDisk()) {
+            readFromDisk(segment, fromPts, toPts, frameSink);
+            return;
+        }
+        boolean isStarted = false;
+        for (int i = 0; ; i++) {
+            Frame frame;
+            synchronized (this) {
+                if (i >= segment.mFrames.size()) {
+                    return;
+                }
+                frame = segment.mFrames.get(i);
+            }
+            if (frame.getPts() >= toPts) {
+                return;
+            }
+            isStarted |= frame.getType() == Frame.Type.VIDEO && frame.getPts() >= fromPts;
+            if (isStarted && !frameSink.onFrame(copy(frame))) {
+                return;
+            }
+        }
+    }
+
+    private void readFromDisk(Segment segment, int fromPts, int toPts, FrameSink frameSink) throws IOException {
+        long length;
+        synchronized (this) {
+            segment.flushOutput();
+            length = segment.mSizeBytes;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.mFile)));
+        try {
+            boolean isStarted = false;
+            long position = 0;
+            while (position < length) {
+                int version = input.readInt();
+                Frame.Type type = Frame.Type.fromValue(input.readInt());
+                int dataLength = input.readInt();
+                int pts = input.readInt();
+                int status = input.readInt();
+                position += PreviewStreamParser.WIRE_HEADER_LENGTH + dataLength;
+                if (pts >= toPts) {
+                    return;
+                }
+                isStarted |= type == Frame.Type.VIDEO && pts >= fromPts;
+                if (!isStarted) {
+                    skipFully(input, dataLength);
+                    continue;
+                }
+                byte[] data = new byte[dataLength];
+                input.readFully(data);
+                if (!frameSink.onFrame(new Frame(version, type, pts, status, data))) {
+                    return;
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void skipFully(DataInputStream input, int length) throws IOException {
+        int skipped = 0;
+        while (skipped < length) {
+            int count = input.skipBytes(length - skipped);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of segment file");
+            }
+            skipped += count;
+        }
+    }
+
+    private static Frame copy(Frame frame) {
+        return new Frame(frame.getVersion(), frame.getType(), frame.getPts(), frame.getStatus(), frame.getBytes());
+    }
+
+    /**
+     * Moves least recently used segments to disk while memory budget is exceeded and deletes least
+     * recently used disk segments while disk budget is exceeded. Pinned segments are skipped.
+     * Segments are moved on writer thread, so memory budget is exceeded until they are written.
+     */
+    private void trim() {
+        long memoryBytes = mMemoryBytes;
+        for (Segment segment : mSegments.values()) {
+            if (segment.mIsSpilling) {
+                memoryBytes -= segment.mSizeBytes;
+            }
+        }
+        Iterator<Segment> iterator = mSegments.values().iterator();
+        while (memoryBytes > mMemoryBudgetBytes && iterator.hasNext()) {
+            final Segment segment = iterator.next();
+            if (segment.mPinCount > 0 || segment.isOnDisk() || segment.mIsSpilling) {
+                continue;
+            }
+            memoryBytes -= segment.mSizeBytes;
+            if (mDiskBudgetBytes > 0) {
+                segment.mIsSpilling = true;
+                mWriteExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        spill(segment);
+                    }
+                });
+            } else {
+                remove(segment);
+                iterator.remove();
+            }
+        }
+
+        iterator = mSegments.values().iterator();
+        while (mDiskBytes > mDiskBudgetBytes && iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.mPinCount > 0 || !segment.isOnDisk()) {
+                continue;
+            }
+            remove(segment);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Writes segment to disk without holding cache lock, and switches it to disk once written.
+     * Called on writer thread, so no frame is appended meanwhile. Segment which was evicted or
+     * pinned for reading meanwhile stays as it is.
+     */
+    private void spill(Segment segment) {
+        ArrayList<Frame> frames;
+        synchronized (this) {
+            if (!mSegments.containsKey(segment.mId) || segment.mPinCount > 0) {
+                segment.mIsSpilling = false;
+                return;
+            }
+            frames = new ArrayList<>(segment.mFrames);
+        }
+
+        File file = new File(mCacheDir, FILE_PREFIX + segment.mId);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            for (Frame frame : frames) {
+                writeFrame(output, frame);
+            }
+            output.flush();
+        } catch (IOException e) {
+            Logger.error(TAG, "Moving segment to disk failed: " + e.getMessage());
+            closeAndDelete(output, file);
+            synchronized (this) {
+                segment.mIsSpilling = false;
+                if (mSegments.remove(segment.mId) != null) {
+                    remove(segment);
+                }
+            }
+            return;
+        }
+
+        synchronized (this) {
+            segment.mIsSpilling = false;
+            if (!mSegments.containsKey(segment.mId) || segment.mPinCount > 0) {
+                closeAndDelete(output, file);
+                return;
+            }
+            segment.mFile = file;
+            segment.mFrames = null;
+            mMemoryBytes -= segment.mSizeBytes;
+            mDiskBytes += segment.mSizeBytes;
+            segment.mOutput = output;
+            if (segment != mRecordingSegment) {
+                segment.closeOutput();
+            }
+            Logger.debug(TAG, "Segment " + segment.mId + " of " + segment.mSizeBytes + " bytes moved to disk");
+            trim();
+        }
+    }
+
+    private static void closeAndDelete(DataOutputStream output, File file) {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Logger.error(TAG, "Closing segment failed: " + e.getMessage());
+            }
+        }
+        if (!file.delete()) {
+            Logger.warning(TAG, "Couldn't delete " + file);
+        }
+    }
+
+    private void remove(Segment segment) {
+        if (segment == mRecordingSegment) {
+            mRecordingSegment.closeOutput();
+            mRecordingSegment = null;
+            mRecordingPlayableId = null;
+        }
+        if (segment.isOnDisk()) {
+            mDiskBytes -= segment.mSizeBytes;
+            if (!segment.mFile.delete()) {
+                Logger.warning(TAG, "Couldn't delete " + segment.mFile);
+            }
+        } else {
+            mMemoryBytes -= segment.mSizeBytes;
+        }
+        Logger.debug(TAG, "Segment " + segment.mId + " evicted");
+    }
+
+    /**
+     * Removes all segments.
+     */
+    synchronized void clear() {
+        stopRecording();
+        ArrayList<Segment> segments = new ArrayList<>(mSegments.values());
+        for (Segment segment : segments) {
+            if (segment.mPinCount == 0) {
+                remove(segment);
+                mSegments.remove(segment.mId);
+            }
+        }
+    }
+
+    synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    synchronized long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    private static void writeFrame(DataOutputStream output, Frame frame) throws IOException {
+        output.writeInt(frame.getVersion());
+        output.writeInt(frame.getType().value());
+        output.writeInt(frame.getLength());
+        output.writeInt(frame.getPts());
+        output.writeInt(frame.getStatus());
+        output.write(frame.getBytes());
+    }
+
+    static int secondsToPts(float seconds) {
+        return Math.round(seconds * PTS_PER_SECOND);
+    }
+
+    static float ptsToSeconds(int pts) {
+        return (float) pts / PTS_PER_SECOND;
+    }
+
+    /**
+     * Receives frames read from cache.
+     */
+    interface FrameSink {
+        /**
+         * @param frame read frame
+         * @return {@code true} to continue reading
+         */
+        boolean onFrame(Frame frame);
+    }
+
+    /**
+     * Continuous run of recorded frames of one playable.
+     */
+    static final class Segment {
+
+        private final int mId;
+        private final String mPlayableId;
+        private final int mStartPts;
+        private volatile int mEndPts;
+        private volatile boolean mHasEos;
+        private long mSizeBytes;
+        private int mPinCount;
+        /** Segment is being written to disk on writer thread. */
+        private boolean mIsSpilling;
+
+        private ArrayList<Frame> mFrames = new ArrayList<>();
+        private File mFile;
+        private DataOutputStream mOutput;
+
+        Segment(int id, String playableId, int startPts) {
+            mId = id;
+            mPlayableId = playableId;
+            mStartPts = startPts;
+            mEndPts = startPts;
+        }
+
+        private long append(Frame frame) {
+            long frameSize = PreviewStreamParser.WIRE_HEADER_LENGTH + frame.getLength();
+            if (mFile != null) {
+                try {
+                    if (mOutput == null) {
+                        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+                    }
+                    writeFrame(mOutput, frame);
+                } catch (IOException e) {
+                    Logger.error(TAG, "Writing segment failed: " + e.getMessage());
+                    return 0;
+                }
+            } else {
+                mFrames.add(frame);
+            }
+            mSizeBytes += frameSize;
+            if (frame.getType() == Frame.Type.VIDEO && frame.getPts() > mEndPts) {
+                mEndPts = frame.getPts();
+            }
+            return frameSize;
+        }
+
+        private void flushOutput() {
+            if (mOutput != null) {
+                try {
+                    mOutput.flush();
+                } catch (IOException e) {
+                    Logger.error(TAG, "Flushing segment failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeOutput() {
+            if (mOutput != null) {
+                try {
+                    mOutput.close();
+                } catch (IOException e) {
+                    Logger.error(TAG, "Closing segment failed: " + e.getMessage());
+                }
+                mOutput = null;
+            }
+        }
+
+        private boolean isOnDisk() {
+            return mFile != null;
+        }
+
+        String getPlayableId() {
+            return mPlayableId;
+        }
+
+        int getStartPts() {
+            return mStartPts;
+        }
+
+        /**
+         * Provides pts of last cached video frame.
+         * @return end pts
+         */
+        int getEndPts() {
+            return mEndPts;
+        }
+
+        /**
+         * Provides information if segment was recorded until end of stream.
+         * @return {@code true} if EOS was received
+         */
+        boolean hasEos() {
+            return mHasEos;
+        }
+    }
+}
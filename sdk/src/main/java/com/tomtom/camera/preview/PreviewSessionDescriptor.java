@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.api.model.Highlight;
+import com.tomtom.camera.api.model.Playable;
+import com.tomtom.camera.api.model.Video;
+import com.tomtom.camera.util.AudioUtil;
+
+/**
+ * Describes preview session started with SOS frame. Stream itself doesn't carry metadata, so
+ * resolution and framerate are taken from {@link Video} being previewed, which lets buffers and
+ * pools be sized before first frame arrives.
+ */
+class PreviewSessionDescriptor {
+
+    static final int DEFAULT_FRAMERATE = 30;
+    /** Rough MJPEG compression ratio, about 1.6 bits per pixel. */
+    private static final float JPEG_BYTES_PER_PIXEL = 0.2f;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private final int mVersion;
+    private final String mPlayableId;
+    private final int mWidthPx;
+    private final int mHeightPx;
+    private final int mFramerate;
+    private final boolean mHasAudio;
+
+    PreviewSessionDescriptor(int version, String playableId, int widthPx, int heightPx, int framerate, boolean hasAudio) {
+        mVersion = version;
+        mPlayableId = playableId;
+        mWidthPx = widthPx;
+        mHeightPx = heightPx;
+        mFramerate = framerate;
+        mHasAudio = hasAudio;
+    }
+
+    /**
+     * Creates descriptor for session of given playable.
+     * @param version version of SOS frame
+     * @param playable playable being previewed, can be {@code null} if unknown
+     * @return session descriptor, with default framerate and unknown resolution if playable
+     * doesn't provide them
+     */
+    static PreviewSessionDescriptor create(int version, Playable playable) {
+        if (playable == null) {
+            return new PreviewSessionDescriptor(version, null, 0, 0, DEFAULT_FRAMERATE, true);
+        }
+        Video video = null;
+        if (playable instanceof Video) {
+            video = (Video) playable;
+        } else if (playable instanceof Highlight) {
+            video = ((Highlight) playable).getVideo();
+        }
+
+        int widthPx = 0;
+        int heightPx = 0;
+        int framerate = DEFAULT_FRAMERATE;
+        if (video != null && video.getResolution() != null) {
+            widthPx = video.getResolution().getWidthPx();
+            heightPx = video.getResolution().getHeightPx();
+        }
+        if (video != null && video.getFramerate() != null) {
+            framerate = video.getFramerate().intValue();
+        }
+        return new PreviewSessionDescriptor(version, playable.getPlayableId(), widthPx, heightPx, framerate, !playable.isMuted());
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    String getPlayableId() {
+        return mPlayableId;
+    }
+
+    int getWidthPx() {
+        return mWidthPx;
+    }
+
+    int getHeightPx() {
+        return mHeightPx;
+    }
+
+    int getFramerate() {
+        return mFramerate;
+    }
+
+    boolean hasAudio() {
+        return mHasAudio;
+    }
+
+    /**
+     * Provides information if resolution of previewed video is known.
+     * @return {@code true} if resolution is known
+     */
+    boolean hasResolution() {
+        return mWidthPx > 0 && mHeightPx > 0;
+    }
+
+    /**
+     * Provides estimated size of video frame payload.
+     * @return estimated frame size in bytes, 0 if resolution is unknown
+     */
+    int getEstimatedFrameSize() {
+        return (int) (mWidthPx * mHeightPx * JPEG_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Provides expected number of AAC frames per second, assuming default sample rate.
+     * @return audio frames per second
+     */
+    int getAudioFramerate() {
+        return AudioUtil.SAMPLE_RATE_DEFAULT / AAC_SAMPLES_PER_FRAME;
+    }
+
+    @Override
+    public String toString() {
+        return mPlayableId + " " + mWidthPx + "x" + mHeightPx + "@" + mFramerate + (mHasAudio ? " with audio" : " muted");
+    }
+}
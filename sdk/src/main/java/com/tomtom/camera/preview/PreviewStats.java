@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+/**
+ * Snapshot of preview playback quality statistics, see {@link AbstractPreviewVideo#getPreviewStats()}.
+ */
+public class PreviewStats {
+
+    long mTimestampMillis;
+    float mPresentedFps;
+    float mDroppedFps;
+    long mPresentedFrameCount;
+    long mDroppedFrameCount;
+    Histogram mDecodeTimeHistogram;
+    Histogram mDrawTimeHistogram;
+    int mBufferedVideoFrames;
+    int mBufferedAudioFrames;
+    long mBufferedVideoBytes;
+    long mBufferedAudioBytes;
+    long mBufferedVideoMillis;
+    long mBufferedAudioMillis;
+    long mRebufferCount;
+    long mRebufferMillis;
+    int mAvOffsetMillis;
+    long mTimeToFirstFrameMillis;
+
+    PreviewStats() {
+    }
+
+    /**
+     * Provides time snapshot was taken at.
+     * @return {@link android.os.SystemClock#elapsedRealtime()} of snapshot
+     */
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    /**
+     * Provides rate of presented video frames in last second.
+     * @return presented frames per second
+     */
+    public float getPresentedFps() {
+        return mPresentedFps;
+    }
+
+    /**
+     * Provides rate of video frames dropped because they were late, in last second.
+     * @return dropped frames per second
+     */
+    public float getDroppedFps() {
+        return mDroppedFps;
+    }
+
+    public long getPresentedFrameCount() {
+        return mPresentedFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Provides histogram of video frame decode times. Only frames decoded by SDK are recorded, see
+     * {@link AbstractPreviewVideo#enableDecodeAhead(int, int)}.
+     * @return decode time histogram
+     */
+    public Histogram getDecodeTimeHistogram() {
+        return mDecodeTimeHistogram;
+    }
+
+    /**
+     * Provides histogram of time spent handing video frames over to surface.
+     * @return draw time histogram
+     */
+    public Histogram getDrawTimeHistogram() {
+        return mDrawTimeHistogram;
+    }
+
+    public int getBufferedVideoFrames() {
+        return mBufferedVideoFrames;
+    }
+
+    public int getBufferedAudioFrames() {
+        return mBufferedAudioFrames;
+    }
+
+    public long getBufferedVideoBytes() {
+        return mBufferedVideoBytes;
+    }
+
+    public long getBufferedAudioBytes() {
+        return mBufferedAudioBytes;
+    }
+
+    public long getBufferedVideoMillis() {
+        return mBufferedVideoMillis;
+    }
+
+    public long getBufferedAudioMillis() {
+        return mBufferedAudioMillis;
+    }
+
+    public long getRebufferCount() {
+        return mRebufferCount;
+    }
+
+    public long getRebufferMillis() {
+        return mRebufferMillis;
+    }
+
+    /**
+     * Provides offset of last presented video frame from playback clock.
+     * @return offset in milliseconds, positive if video is ahead
+     */
+    public int getAvOffsetMillis() {
+        return mAvOffsetMillis;
+    }
+
+    /**
+     * Provides time from last start or seek request to its first presented frame.
+     * @return time in milliseconds, -1 if no frame was presented yet
+     */
+    public long getTimeToFirstFrameMillis() {
+        return mTimeToFirstFrameMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "PreviewStats{presentedFps=" + mPresentedFps
+                + ", droppedFps=" + mDroppedFps
+                + ", bufferedVideo=" + mBufferedVideoFrames + "/" + mBufferedVideoBytes + "B/" + mBufferedVideoMillis + "ms"
+                + ", bufferedAudio=" + mBufferedAudioFrames + "/" + mBufferedAudioBytes + "B/" + mBufferedAudioMillis + "ms"
+                + ", rebuffers=" + mRebufferCount + "/" + mRebufferMillis + "ms"
+                + ", avOffset=" + mAvOffsetMillis + "ms"
+                + ", timeToFirstFrame=" + mTimeToFirstFrameMillis + "ms}";
+    }
+
+    /**
+     * Counts of durations in millisecond buckets. Bucket holds durations up to and including its
+     * upper bound, and longer than upper bound of previous bucket.
+     */
+    public static class Histogram {
+
+        private final long[] mCounts;
+
+        Histogram(long[] counts) {
+            mCounts = counts;
+        }
+
+        public int getBucketCount() {
+            return mCounts.length;
+        }
+
+        /**
+         * Provides upper bound of bucket.
+         * @param bucket bucket index
+         * @return upper bound in milliseconds, {@link Integer#MAX_VALUE} for last bucket
+         */
+        public int getUpperBoundMillis(int bucket) {
+            return LatencyHistogram.BUCKET_UPPER_BOUNDS_MILLIS[bucket];
+        }
+
+        public long getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        public long getTotalCount() {
+            long totalCount = 0;
+            for (long count : mCounts) {
+                totalCount += count;
+            }
+            return totalCount;
+        }
+    }
+}
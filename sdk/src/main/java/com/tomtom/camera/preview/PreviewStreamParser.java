@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser of preview wire protocol. Stream is pushed in chunks of any size with
+ * {@link #feed(ByteBuffer)} and parsed frames are reported to {@link FrameListener}. Parser keeps
+ * only header state between chunks and hands payload over as a view of the input, so it allocates
+ * nothing while parsing. Invalid headers are skipped byte by byte using {@link FrameValidator}.
+ * <p>
+ * Bytes which can't be parsed yet are left unconsumed in the input. Caller should keep them and
+ * feed them again followed by more data, making sure {@link #getRequiredBytes()} bytes fit into
+ * its buffer.
+ */
+class PreviewStreamParser {
+
+    /** Length of frame header on wire: version, type and {@link Frame#HEADER_LENGTH} bytes. */
+    static final int WIRE_HEADER_LENGTH = 8 + Frame.HEADER_LENGTH;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_PAYLOAD = 1;
+
+    private final FrameValidator mFrameValidator;
+    private final FrameListener mFrameListener;
+
+    private int mState = STATE_HEADER;
+    private int mVersion;
+    private int mType;
+    private int mDataLength;
+    private int mPts;
+    private int mStatus;
+
+    /**
+     * @param frameValidator validator used for header checks and resync accounting
+     * @param frameListener listener receiving parsed frames
+     */
+    PreviewStreamParser(FrameValidator frameValidator, FrameListener frameListener) {
+        mFrameValidator = frameValidator;
+        mFrameListener = frameListener;
+    }
+
+    /**
+     * Parses as many frames as possible from input, starting at its position. On return position
+     * points to first unconsumed byte. Limit of input is left unchanged.
+     * @param input big endian stream data
+     * @return {@code true} if listener asked to stop parsing
+     */
+    boolean feed(ByteBuffer input) {
+        while (true) {
+            if (mState == STATE_HEADER) {
+                if (input.remaining() < WIRE_HEADER_LENGTH) {
+                    return false;
+                }
+                if (!parseHeader(input)) {
+                    continue;
+                }
+                if (mType == Frame.Type.SOS.value()) {
+                    if (mFrameListener.onStartOfStream(mVersion)) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (mType == Frame.Type.EOS.value()) {
+                    if (mFrameListener.onEndOfStream(mVersion)) {
+                        return true;
+                    }
+                    continue;
+                }
+                mState = STATE_PAYLOAD;
+            }
+
+            if (input.remaining() < mDataLength) {
+                return false;
+            }
+            mState = STATE_HEADER;
+            int limit = input.limit();
+            int payloadEnd = input.position() + mDataLength;
+            input.limit(payloadEnd);
+            boolean stop;
+            if (mType == Frame.Type.VIDEO.value()) {
+                stop = mFrameListener.onVideoFrame(mVersion, mPts, mStatus, input);
+            } else {
+                stop = mFrameListener.onAudioFrame(mVersion, mPts, mStatus, input);
+            }
+            input.limit(limit);
+            input.position(payloadEnd);
+            if (stop) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Validates header at input position. Valid header is consumed, otherwise single byte is
+     * discarded.
+     * @return {@code true} if header was valid
+     */
+    private boolean parseHeader(ByteBuffer input) {
+        int position = input.position();
+        int version = input.getInt(position);
+        int type = input.getInt(position + 4);
+        int dataLength = input.getInt(position + 8);
+        if (!mFrameValidator.isValidHeader(version, type, dataLength)) {
+            input.position(position + 1);
+            mFrameValidator.onByteDiscarded();
+            return false;
+        }
+        mFrameValidator.onHeaderAccepted();
+        mVersion = version;
+        mType = type;
+        mDataLength = dataLength;
+        // Reserved part for SOS/EOS
+        mPts = input.getInt(position + 12);
+        mStatus = input.getInt(position + 16);
+        input.position(position + WIRE_HEADER_LENGTH);
+        return true;
+    }
+
+    /**
+     * Provides number of contiguous bytes parser needs at input position to make progress.
+     * @return required bytes
+     */
+    int getRequiredBytes() {
+        return mState == STATE_HEADER ? WIRE_HEADER_LENGTH : mDataLength;
+    }
+
+    /**
+     * Drops partially parsed frame, next fed byte is expected to start frame header.
+     */
+    void reset() {
+        mState = STATE_HEADER;
+    }
+
+    /**
+     * Receives frames parsed by {@link PreviewStreamParser}. Payload buffers are views of fed input
+     * between position and limit, valid only until callback returns.
+     */
+    interface FrameListener {
+
+        /**
+         * @return {@code true} to stop parsing
+         */
+        boolean onVideoFrame(int version, int pts, int status, ByteBuffer data);
+
+        /**
+         * @return {@code true} to stop parsing
+         */
+        boolean onAudioFrame(int version, int pts, int status, ByteBuffer data);
+
+        /**
+         * @return {@code true} to stop parsing
+         */
+        boolean onStartOfStream(int version);
+
+        /**
+         * @return {@code true} to stop parsing
+         */
+        boolean onEndOfStream(int version);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Back buffer of already played frames of currently played file, indexed by pts. Frames are kept
+ * until byte budget is exceeded, then oldest ones are released first. Retained frames can be moved
+ * back in front of buffered frames to rewind playback without requesting them from camera again.
+ */
+class RetainedFrameBuffer {
+
+    private final TreeMap<Integer, Frame> mVideoFrames = new TreeMap<>();
+    private final TreeMap<Integer, Frame> mAudioFrames = new TreeMap<>();
+    private long mBudgetBytes;
+    private long mRetainedBytes;
+
+    /**
+     * @param budgetBytes maximum size of retained frames, 0 to release frames right away
+     */
+    RetainedFrameBuffer(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    synchronized void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        trim();
+    }
+
+    /**
+     * Retains played frame. First frame of a file drops frames of previous file of the same type.
+     * @param frame played video or audio frame
+     */
+    synchronized void retain(Frame frame) {
+        TreeMap<Integer, Frame> frames = getFrames(frame.getType());
+        if (frames == null || mBudgetBytes <= 0) {
+            frame.release();
+            return;
+        }
+        if (frame.isFirstFrame()) {
+            clear(frames);
+        }
+        Frame previous = frames.put(frame.getPts(), frame);
+        if (previous != null && previous != frame) {
+            mRetainedBytes -= previous.getLength();
+            previous.release();
+        }
+        mRetainedBytes += frame.getLength();
+        trim();
+    }
+
+    /**
+     * Checks if video frame presented at given position is retained.
+     * @param pts position in pts units
+     * @return {@code true} if position is within retained window
+     */
+    synchronized boolean contains(int pts) {
+        return !mVideoFrames.isEmpty() && mVideoFrames.firstKey() <= pts && pts <= mVideoFrames.lastKey();
+    }
+
+    /**
+     * Provides number of retained frames of given type which {@link #drainFrom(int, Collection, Collection)}
+     * would move for given position.
+     */
+    synchronized int countFrom(int pts, Frame.Type type) {
+        Integer startPts = mVideoFrames.floorKey(pts);
+        if (startPts == null) {
+            return 0;
+        }
+        TreeMap<Integer, Frame> frames = getFrames(type);
+        return frames != null ? frames.tailMap(startPts, true).size() : 0;
+    }
+
+    /**
+     * Moves retained frames from video frame presented at given position on, in pts order. Moved
+     * frames are retained again once played.
+     * @param pts position in pts units
+     * @param videoFrames collection receiving video frames
+     * @param audioFrames collection receiving audio frames
+     */
+    synchronized void drainFrom(int pts, Collection<Frame> videoFrames, Collection<Frame> audioFrames) {
+        Integer startPts = mVideoFrames.floorKey(pts);
+        if (startPts == null) {
+            return;
+        }
+        drain(mVideoFrames.tailMap(startPts, true), videoFrames);
+        drain(mAudioFrames.tailMap(startPts, true), audioFrames);
+    }
+
+    private void drain(NavigableMap<Integer, Frame> frames, Collection<Frame> collection) {
+        Iterator<Frame> iterator = frames.values().iterator();
+        while (iterator.hasNext()) {
+            Frame frame = iterator.next();
+            mRetainedBytes -= frame.getLength();
+            collection.add(frame);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Releases all retained frames.
+     */
+    synchronized void clear() {
+        clear(mVideoFrames);
+        clear(mAudioFrames);
+    }
+
+    synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    /**
+     * Provides duration of retained video.
+     * @return retained duration in pts units
+     */
+    synchronized int getRetainedDuration() {
+        return mVideoFrames.isEmpty() ? 0 : mVideoFrames.lastKey() - mVideoFrames.firstKey();
+    }
+
+    private void clear(TreeMap<Integer, Frame> frames) {
+        for (Frame frame : frames.values()) {
+            mRetainedBytes -= frame.getLength();
+            frame.release();
+        }
+        frames.clear();
+    }
+
+    /**
+     * Releases oldest frames, by pts of either type, while budget is exceeded.
+     */
+    private void trim() {
+        while (mRetainedBytes > mBudgetBytes) {
+            TreeMap<Integer, Frame> frames;
+            if (mAudioFrames.isEmpty()) {
+                frames = mVideoFrames;
+            } else if (mVideoFrames.isEmpty() || mAudioFrames.firstKey() < mVideoFrames.firstKey()) {
+                frames = mAudioFrames;
+            } else {
+                frames = mVideoFrames;
+            }
+            Map.Entry<Integer, Frame> oldest = frames.pollFirstEntry();
+            if (oldest == null) {
+                return;
+            }
+            mRetainedBytes -= oldest.getValue().getLength();
+            oldest.getValue().release();
+        }
+    }
+
+    private TreeMap<Integer, Frame> getFrames(Frame.Type type) {
+        switch (type) {
+            case VIDEO:
+                return mVideoFrames;
+            case AUDIO:
+                return mAudioFrames;
+        }
+        return null;
+    }
+}
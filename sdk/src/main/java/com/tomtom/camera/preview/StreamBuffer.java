@@ -18,11 +18,23 @@ package com.tomtom.camera.preview;
 
 import android.support.annotation.NonNull;
 
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Generic buffer structure with given set of states - {@link BufferState}.
+ * <p>
+ * Elements are kept in fixed size ring indexed by head and tail sequences, so queueing allocates
+ * nothing and no lock is taken. Single producer may queue while other threads dequeue and peek.
+ * <p>
+ * State is derived from occupancy, READY is reached once ready limit is exceeded (or buffer gets
+ * full) and kept until buffer drops to low limit. Producer and consumer both update this READY
+ * flag with CAS against occupancy they see afterwards, so neither loses other's transition. With
+ * {@link Measure} set, limits can be given in
+ * bytes and duration as well. Buffer is full once any capacity is reached, low and ready limits
+ * are taken from duration if set, then bytes, with element count as fallback.
  */
 class StreamBuffer<T> {
 
@@ -31,122 +43,330 @@ class StreamBuffer<T> {
     static final int DEFAULT_BUFFER_CAPACITY = 120;
     static final int DEFAULT_BUFFER_LOW_LIMIT = 30;
     static final int DEFAULT_BUFFER_READY_LIMIT = 60;
+    /** Size of ring, limits capacity which can be set with {@link #setLimits(int, int, int)}. */
+    static final int MAX_BUFFER_CAPACITY = 512;
 
     enum BufferState {
         EMPTY, LOW, READY, FULL
     }
 
-    private int mBufferCapacity = DEFAULT_BUFFER_CAPACITY;
-    private int mLowBufferLimit = DEFAULT_BUFFER_LOW_LIMIT;
-    private int mReadyLimit = DEFAULT_BUFFER_READY_LIMIT;
-
-    private boolean mIsReady;
-
-    private BufferState mBufferState;
-    private LinkedList<T> mBufferQueue;
+    private volatile int mBufferCapacity = DEFAULT_BUFFER_CAPACITY;
+    private volatile int mLowBufferLimit = DEFAULT_BUFFER_LOW_LIMIT;
+    private volatile int mReadyLimit = DEFAULT_BUFFER_READY_LIMIT;
+
+    private volatile long mCapacityBytes;
+    private volatile long mLowBytes;
+    private volatile long mReadyBytes;
+    private volatile long mCapacityDuration;
+    private volatile long mLowDuration;
+    private volatile long mReadyDuration;
+
+    private final AtomicBoolean mIsReady = new AtomicBoolean();
+
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mMask;
+    /** Sequence of next element to dequeue. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Sequence of next slot to queue into, written by producer only. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Size and duration of element in each slot, written by producer before slot is published. */
+    private final int[] mSlotBytes;
+    private final int[] mSlotDurations;
+    private final AtomicLong mBufferedBytes = new AtomicLong();
+    private final AtomicLong mBufferedDuration = new AtomicLong();
+    private final Measure<T> mMeasure;
+    private boolean mHasLastTimestamp;
+    private int mLastTimestamp;
+    private int mLastDuration;
     private StreamBufferCallback mCallback;
 
     StreamBuffer(@NonNull StreamBufferCallback streamBufferCallback){
-        mBufferQueue = new LinkedList<T>();
-        mCallback = streamBufferCallback;
+        this(streamBufferCallback, null);
     }
 
-    private synchronized void setBufferState(BufferState state) {
-        if(mBufferState == BufferState.LOW && state == BufferState.READY){
-            mBufferState = state;
-            mCallback.onReady();
-        }
-        else {
-            mBufferState = state;
-        }
-
+    /**
+     * @param streamBufferCallback state callback
+     * @param measure measure of elements for byte and duration limits, {@code null} if only
+     *                element count limits are used
+     */
+    StreamBuffer(@NonNull StreamBufferCallback streamBufferCallback, Measure<T> measure){
+        this(streamBufferCallback, DEFAULT_BUFFER_CAPACITY, DEFAULT_BUFFER_LOW_LIMIT, DEFAULT_BUFFER_READY_LIMIT, measure);
     }
 
-    synchronized BufferState getBufferState(){
-        return mBufferState;
+    StreamBuffer(StreamBufferCallback streamBufferCallback, int bufferCapacity, int bufferLowLimit, int bufferReadyLimit){
+        this(streamBufferCallback, bufferCapacity, bufferLowLimit, bufferReadyLimit, null);
     }
 
-    StreamBuffer(StreamBufferCallback streamBufferCallback, int bufferCapacity, int bufferLowLimit, int bufferReadyLimit){
-        setBufferState(BufferState.EMPTY);
+    private StreamBuffer(StreamBufferCallback streamBufferCallback, int bufferCapacity, int bufferLowLimit, int bufferReadyLimit, Measure<T> measure){
+        int ringSize = Integer.highestOneBit(Math.max(MAX_BUFFER_CAPACITY, bufferCapacity) - 1) << 1;
+        mSlots = new AtomicReferenceArray<T>(ringSize);
+        mMask = ringSize - 1;
+        mSlotBytes = new int[ringSize];
+        mSlotDurations = new int[ringSize];
+        mMeasure = measure;
         mBufferCapacity = bufferCapacity;
         mLowBufferLimit = bufferLowLimit;
         mReadyLimit = bufferReadyLimit;
         mCallback = streamBufferCallback;
-        mBufferQueue = new LinkedList<T>();
     }
 
-    BufferState queue(T frame) {
+    BufferState getBufferState(){
+        int size = size();
+        if (size == 0) {
+            return BufferState.EMPTY;
+        }
+        if (isAtCapacity(size)) {
+            return BufferState.FULL;
+        }
+        if (!mIsReady.get() || isAtOrBelowLow(size)) {
+            return BufferState.LOW;
+        }
+        return BufferState.READY;
+    }
+
+    private boolean isAtCapacity(int size) {
+        return size >= mBufferCapacity
+                || (mCapacityBytes > 0 && mBufferedBytes.get() >= mCapacityBytes)
+                || (mCapacityDuration > 0 && mBufferedDuration.get() >= mCapacityDuration);
+    }
 
-        if (mBufferQueue.size() == mBufferCapacity) {
-            setBufferState(BufferState.FULL);
+    private boolean isAtOrBelowLow(int size) {
+        if (mReadyDuration > 0) {
+            return mBufferedDuration.get() <= mLowDuration;
+        }
+        if (mReadyBytes > 0) {
+            return mBufferedBytes.get() <= mLowBytes;
         }
-        else {
-            boolean accepted = mBufferQueue.offer(frame);
+        return size <= mLowBufferLimit;
+    }
 
-            if (!accepted) {
-                setBufferState(BufferState.FULL);
-            }
-            else {
-                if(mBufferQueue.size() <= mLowBufferLimit) {
-                    mIsReady = false;
-                    setBufferState(BufferState.LOW);
-                }
+    private boolean isAboveReady(int size) {
+        if (mReadyDuration > 0) {
+            return mBufferedDuration.get() > mReadyDuration;
+        }
+        if (mReadyBytes > 0) {
+            return mBufferedBytes.get() > mReadyBytes;
+        }
+        return size > mReadyLimit;
+    }
 
-                else if(mBufferQueue.size() <= mReadyLimit) {
-                    if (mIsReady) {
-                        setBufferState(BufferState.READY);
-                    } else {
-                        mIsReady = false;
-                        setBufferState(BufferState.LOW);
-                    }
-                }
+    /**
+     * Queues element if buffer isn't full. Must be called from single producer thread.
+     * @param frame element to queue
+     * @return {@code true} if element was queued, {@code false} if buffer is full
+     */
+    boolean queue(T frame) {
+        return offer(frame, false);
+    }
 
-                else if(mBufferQueue.size() < mBufferCapacity) {
-                    mIsReady = true;
-                    setBufferState(BufferState.READY);
-                }
+    /**
+     * Queues element regardless of capacity limits, as long as it fits into ring. Used to put
+     * already consumed elements back, buffer stays full until they are consumed again. Must be
+     * called from single producer thread.
+     * @param frame element to queue
+     * @return {@code true} if element was queued, {@code false} if ring is full
+     */
+    boolean requeue(T frame) {
+        return offer(frame, true);
+    }
 
-                else {
-                    return BufferState.FULL;
+    private boolean offer(T frame, boolean ignoreLimits) {
+        long tail = mTail.get();
+        int size = (int) (tail - mHead.get());
+        if (ignoreLimits ? size >= mSlots.length() : isAtCapacity(size)) {
+            return false;
+        }
+        int index = (int) tail & mMask;
+        if (mMeasure != null) {
+            int bytes = mMeasure.getSizeBytes(frame);
+            int duration = getDuration(mMeasure.getTimestamp(frame));
+            mSlotBytes[index] = bytes;
+            mSlotDurations[index] = duration;
+            mBufferedBytes.addAndGet(bytes);
+            mBufferedDuration.addAndGet(duration);
+        }
+        mSlots.lazySet(index, frame);
+        mTail.lazySet(tail + 1);
+
+        updateReadyState();
+        return true;
+    }
+
+    /**
+     * Sets READY flag from current occupancy, with hysteresis. Flag is only changed with CAS from
+     * the value occupancy was checked against, otherwise occupancy is checked again, so transition
+     * made by other thread meanwhile is never overwritten.
+     * @return {@code true} if flag was changed and callback notified
+     */
+    private boolean updateReadyState() {
+        while (true) {
+            boolean isReady = mIsReady.get();
+            int size = size();
+            boolean isReadyNow = isReady
+                    ? !isAtOrBelowLow(size)
+                    : isAboveReady(size) || isAtCapacity(size);
+            if (isReadyNow == isReady) {
+                return false;
+            }
+            if (mIsReady.compareAndSet(isReady, isReadyNow)) {
+                if (isReadyNow) {
+                    mCallback.onReady();
+                } else if (size == 0) {
+                    mCallback.onEmpty();
+                } else {
+                    mCallback.onLow();
                 }
+                return true;
             }
         }
+    }
 
-        return mBufferState;
+    /**
+     * Duration of element is time since previous one. Gaps which aren't plausible for a single
+     * element, such as timestamp jumps between sessions, are replaced with last known duration.
+     */
+    private int getDuration(int timestamp) {
+        int duration = timestamp - mLastTimestamp;
+        boolean isContinuous = mHasLastTimestamp && duration > 0
+                && (mCapacityDuration == 0 || duration < mCapacityDuration);
+        mHasLastTimestamp = true;
+        mLastTimestamp = timestamp;
+        if (isContinuous) {
+            mLastDuration = duration;
+        }
+        return mLastDuration;
     }
 
     T dequeue() {
-        try {
-            T t = mBufferQueue.removeFirst();
-            if(mBufferQueue.size() == 0){
-                setBufferState(BufferState.EMPTY);
-                mCallback.onEmpty();
-            }
+        T t = poll();
+        if (t == null) {
+            return null;
+        }
+        if (!updateReadyState() && size() == 0) {
+            // Emptied while not ready, consumers are notified anyway
+            mCallback.onEmpty();
+        }
+        return t;
+    }
 
-            else if(mBufferQueue.size() <= mLowBufferLimit){
-                setBufferState(BufferState.LOW);
-                mCallback.onLow();
+    /**
+     * Removes head element without notifying callback.
+     * @return removed element, or {@code null} if buffer is empty
+     */
+    private T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return null;
+            }
+            int index = (int) head & mMask;
+            T t = mSlots.get(index);
+            int bytes = mSlotBytes[index];
+            int duration = mSlotDurations[index];
+            if (t != null && mHead.compareAndSet(head, head + 1)) {
+                // Slot may be already reused by producer, then it is left as is
+                mSlots.compareAndSet(index, t, null);
+                if (mMeasure != null) {
+                    mBufferedBytes.addAndGet(-bytes);
+                    mBufferedDuration.addAndGet(-duration);
+                }
+                return t;
             }
-
-            return t;
-        } catch (NoSuchElementException e) {
-            return null;
         }
     }
 
     void clear() {
-        mIsReady = false;
-        mBufferQueue.clear();
-        setBufferState(BufferState.EMPTY);
+        while (poll() != null) {
+            // Dropping all elements
+        }
+        mIsReady.set(false);
         mCallback.onEmpty();
     }
 
+    /**
+     * Moves all buffered elements to given collection, without notifying callback. Should be
+     * followed by {@link #clear()}.
+     * @param collection collection to add elements to
+     */
+    void drainTo(Collection<? super T> collection) {
+        T t;
+        while ((t = poll()) != null) {
+            collection.add(t);
+        }
+    }
+
+    /**
+     * Changes buffer limits. Already buffered elements are kept, if there are more of them than
+     * new capacity buffer stays full until they are consumed.
+     * @param bufferCapacity maximum number of elements, at most {@link #MAX_BUFFER_CAPACITY} for
+     *                       buffers created with default capacity
+     * @param bufferLowLimit number of elements at or below which buffer is low
+     * @param bufferReadyLimit number of elements above which buffer is ready
+     */
+    void setLimits(int bufferCapacity, int bufferLowLimit, int bufferReadyLimit) {
+        mBufferCapacity = Math.min(bufferCapacity, mSlots.length());
+        mLowBufferLimit = bufferLowLimit;
+        mReadyLimit = bufferReadyLimit;
+    }
+
+    /**
+     * Sets limits in bytes, measured with {@link Measure#getSizeBytes(Object)}.
+     * @param capacityBytes buffer is full once this many bytes are buffered, 0 for no limit
+     * @param lowBytes buffer is low at or below this many bytes
+     * @param readyBytes buffer is ready above this many bytes, 0 if low and ready limits aren't
+     *                   given in bytes
+     */
+    void setByteLimits(long capacityBytes, long lowBytes, long readyBytes) {
+        mCapacityBytes = capacityBytes;
+        mLowBytes = lowBytes;
+        mReadyBytes = readyBytes;
+    }
+
+    /**
+     * Sets limits in units of {@link Measure#getTimestamp(Object)}.
+     * @param capacityDuration buffer is full once this duration is buffered, 0 for no limit
+     * @param lowDuration buffer is low at or below this duration
+     * @param readyDuration buffer is ready above this duration, 0 if low and ready limits aren't
+     *                      given as duration
+     */
+    void setDurationLimits(long capacityDuration, long lowDuration, long readyDuration) {
+        mCapacityDuration = capacityDuration;
+        mLowDuration = lowDuration;
+        mReadyDuration = readyDuration;
+    }
+
+    /**
+     * Provides size of buffered elements.
+     * @return buffered bytes, 0 if buffer has no {@link Measure}
+     */
+    long getBufferedBytes() {
+        return mBufferedBytes.get();
+    }
+
+    /**
+     * Provides duration of buffered elements.
+     * @return buffered duration in timestamp units, 0 if buffer has no {@link Measure}
+     */
+    long getBufferedDuration() {
+        return mBufferedDuration.get();
+    }
+
     int size(){
-        return mBufferQueue.size();
+        // Head is read first, so size is never negative
+        long head = mHead.get();
+        return (int) (mTail.get() - head);
     }
 
     int remaining(){
-        return mBufferCapacity - mBufferQueue.size();
+        return mBufferCapacity - size();
+    }
+
+    /**
+     * Provides number of elements ring can hold, regardless of set limits.
+     * @return ring size
+     */
+    int getRingSize() {
+        return mSlots.length();
     }
 
     int getReadyToPlayLimit(){
@@ -162,6 +382,33 @@ class StreamBuffer<T> {
     }
 
     T peek(){
-        return mBufferQueue.peek();
+        return peek(0);
+    }
+
+    /**
+     * Provides element at given position from head without removing it.
+     * @param index position from head
+     * @return element, or {@code null} if buffer holds fewer elements
+     */
+    T peek(int index) {
+        while (true) {
+            long sequence = mHead.get() + index;
+            if (sequence >= mTail.get()) {
+                return null;
+            }
+            T t = mSlots.get((int) sequence & mMask);
+            // Element is valid only if it wasn't dequeued meanwhile and its slot reused
+            if (t != null && mHead.get() <= sequence) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * Provides size and timestamp of buffered elements.
+     */
+    interface Measure<T> {
+        int getSizeBytes(T element);
+        int getTimestamp(T element);
     }
 }
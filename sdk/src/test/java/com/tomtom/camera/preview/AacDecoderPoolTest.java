@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that decoders pre-warmed by {@link AacDecoderPool} are keyed as received audio is.
+ */
+public class AacDecoderPoolTest {
+
+    private static final int PROFILE_LC = 1;
+    private static final int SAMPLE_RATE_INDEX_48000 = 3;
+    private static final int CHANNEL_CONFIG_MONO = 1;
+
+    @Test
+    public void testDefaultFormatMatchesDefaultAudioFrame() {
+        Frame frame = new Frame(1, Frame.Type.AUDIO, 0, 0, createAdtsFrame(PROFILE_LC, SAMPLE_RATE_INDEX_48000, CHANNEL_CONFIG_MONO));
+
+        assertEquals(AacDecoderPool.DEFAULT_FORMAT, AacDecoderPool.Format.fromFrame(frame));
+    }
+
+    @Test
+    public void testDefaultFormatIsPrewarmedFirstForNewPool() {
+        Frame frame = new Frame(1, Frame.Type.AUDIO, 0, 0, createAdtsFrame(PROFILE_LC, SAMPLE_RATE_INDEX_48000, CHANNEL_CONFIG_MONO));
+
+        List<AacDecoderPool.Format> formats = new AacDecoderPool(AacDecoderPool.MAX_POOLED_DECODERS).getPrewarmFormats();
+        assertEquals(1, formats.size());
+        assertEquals(AacDecoderPool.Format.fromFrame(frame), formats.get(0));
+    }
+
+    /**
+     * Builds ADTS frame without CRC, with header fields laid out as in ISO/IEC 14496-3.
+     */
+    private static byte[] createAdtsFrame(int profile, int sampleRateIndex, int channelConfig) {
+        byte[] frame = new byte[16];
+        int length = frame.length;
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xF1;
+        frame[2] = (byte) ((profile << 6) | (sampleRateIndex << 2) | (channelConfig >> 2));
+        frame[3] = (byte) (((channelConfig & 0x3) << 6) | (length >> 11));
+        frame[4] = (byte) ((length >> 3) & 0xFF);
+        frame[5] = (byte) (((length & 0x7) << 5) | 0x1F);
+        frame[6] = (byte) 0xFC;
+        return frame;
+    }
+}
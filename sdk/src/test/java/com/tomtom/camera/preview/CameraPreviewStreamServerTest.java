@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams frames from {@link StandInCamera} into {@link CameraPreviewStreamServer} over loopback.
+ */
+public class CameraPreviewStreamServerTest {
+
+    private static final int FRAME_PTS = 3000;
+    private static final long EOS_TIMEOUT_SECS = 5;
+
+    private PreviewBuffer mPreviewBuffer;
+    private CameraPreviewStreamServer mServer;
+    private CountDownLatch mEosLatch;
+
+    @Before
+    public void setUp() {
+        mPreviewBuffer = new PreviewBuffer();
+        mEosLatch = new CountDownLatch(1);
+        mServer = new CameraPreviewStreamServer(mPreviewBuffer, new CameraPreviewStreamServer.OnEosReceivedListener() {
+            @Override
+            public void onEosReceived() {
+                mEosLatch.countDown();
+            }
+        });
+        assertTrue(mServer.start());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void testFramesSurvivePartialReads() throws Exception {
+        startSession(0);
+        StandInCamera camera = new StandInCamera().writeSos();
+        for (int i = 0; i < 10; i++) {
+            camera.writeVideo(i * FRAME_PTS, 100 + i);
+            camera.writeAudio(i * FRAME_PTS, 20);
+        }
+        camera.writeEos().sendTo(mServer.getPort(), 7);
+
+        assertTrue(mEosLatch.await(EOS_TIMEOUT_SECS, TimeUnit.SECONDS));
+        List<Frame> videoFrames = drain(Frame.Type.VIDEO);
+        List<Frame> audioFrames = drain(Frame.Type.AUDIO);
+        assertEquals(10, videoFrames.size());
+        assertEquals(10, audioFrames.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * FRAME_PTS, videoFrames.get(i).getPts());
+            assertEquals(i == 0, videoFrames.get(i).isFirstFrame());
+            assertTrue(StandInCamera.isPayloadOf(videoFrames.get(i)));
+            assertTrue(StandInCamera.isPayloadOf(audioFrames.get(i)));
+        }
+        assertEquals(0, mServer.getResyncCount());
+    }
+
+    @Test
+    public void testReconnectContinuesSession() throws Exception {
+        startSession(0);
+        StandInCamera firstConnection = new StandInCamera().writeSos();
+        for (int i = 0; i < 3; i++) {
+            firstConnection.writeVideo(i * FRAME_PTS, 100);
+        }
+        int completeBytes = firstConnection.toByteArray().length;
+        // Connection drops in the middle of fourth frame
+        firstConnection.writeVideo(3 * FRAME_PTS, 100);
+        firstConnection.sendTo(mServer.getPort(), 16, completeBytes + 50);
+
+        StandInCamera secondConnection = new StandInCamera();
+        for (int i = 3; i < 6; i++) {
+            secondConnection.writeVideo(i * FRAME_PTS, 100);
+        }
+        secondConnection.writeEos().sendTo(mServer.getPort(), 16);
+
+        assertTrue(mEosLatch.await(EOS_TIMEOUT_SECS, TimeUnit.SECONDS));
+        List<Frame> videoFrames = drain(Frame.Type.VIDEO);
+        assertEquals(6, videoFrames.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i * FRAME_PTS, videoFrames.get(i).getPts());
+            assertTrue(StandInCamera.isPayloadOf(videoFrames.get(i)));
+        }
+    }
+
+    @Test
+    public void testConnectionOfSupersededStartIsRejected() throws Exception {
+        assertSupersededStartIsRejected(60);
+    }
+
+    @Test
+    public void testSupersededStartCloseToCurrentIsRejected() throws Exception {
+        assertSupersededStartIsRejected(0.5f);
+    }
+
+    private void assertSupersededStartIsRejected(float sessionStartSecs) throws Exception {
+        int stalePort = startSession(0).previewVideoPort;
+        int sessionPort = startSession(sessionStartSecs).previewVideoPort;
+        assertNotEquals(stalePort, sessionPort);
+        int sessionPts = PreviewSegmentCache.secondsToPts(sessionStartSecs);
+
+        StandInCamera lateConnection = new StandInCamera().writeSos();
+        for (int i = 0; i < 3; i++) {
+            lateConnection.writeVideo(i * FRAME_PTS, 100);
+        }
+        sendIgnoringReset(lateConnection.writeEos(), stalePort);
+
+        StandInCamera currentConnection = new StandInCamera().writeSos();
+        for (int i = 0; i < 3; i++) {
+            currentConnection.writeVideo(sessionPts + i * FRAME_PTS, 100);
+        }
+        currentConnection.writeEos().sendTo(sessionPort, 64);
+
+        assertTrue(mEosLatch.await(EOS_TIMEOUT_SECS, TimeUnit.SECONDS));
+        List<Frame> videoFrames = drain(Frame.Type.VIDEO);
+        assertEquals(3, videoFrames.size());
+        assertEquals(sessionPts, videoFrames.get(0).getPts());
+        assertTrue(videoFrames.get(0).isFirstFrame());
+    }
+
+    @Test
+    public void testCloseFinishesQueueThreadAndServerReopens() throws Exception {
+        mServer.close();
+        assertFalse(isConsumerWaiting());
+
+        assertTrue(mServer.start());
+        startSession(0);
+        StandInCamera camera = new StandInCamera().writeSos();
+        for (int i = 0; i < 3; i++) {
+            camera.writeVideo(i * FRAME_PTS, 100);
+        }
+        camera.writeEos().sendTo(mServer.getPort(), 64);
+
+        assertTrue(mEosLatch.await(EOS_TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(3, drain(Frame.Type.VIDEO).size());
+    }
+
+    /**
+     * Checks if any thread waits for frames in ring of a server.
+     */
+    private static boolean isConsumerWaiting() {
+        for (StackTraceElement[] stackTrace : Thread.getAllStackTraces().values()) {
+            for (StackTraceElement element : stackTrace) {
+                if (element.getClassName().equals(FrameRingBuffer.class.getName())
+                        && element.getMethodName().equals("awaitFrames")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private AbstractPreviewVideo.PreviewCommand startSession(float startPositionSecs) {
+        return mServer.newSession(AbstractPreviewVideo.PreviewCommand.createStart("video", mServer.getPort(), startPositionSecs, 10f));
+    }
+
+    private void sendIgnoringReset(StandInCamera camera, int port) {
+        try {
+            camera.sendTo(port, 64);
+        } catch (IOException e) {
+            // Listener of superseded session is closed, so connection is refused
+        }
+    }
+
+    private List<Frame> drain(Frame.Type type) {
+        List<Frame> frames = new ArrayList<>();
+        Frame frame;
+        while ((frame = mPreviewBuffer.dequeue(type)) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTest {
+
+    private int mReleaseCount;
+    private Frame mFrame;
+
+    @Before
+    public void setUp() {
+        mFrame = new Frame(1, Frame.Type.VIDEO, 0, 0, ByteBuffer.allocate(16), new Frame.FrameReleaser() {
+            @Override
+            public void release() {
+                mReleaseCount++;
+            }
+        });
+    }
+
+    @Test
+    public void testReleaseIsDeferredWhileRetained() {
+        assertTrue(mFrame.retain());
+        assertTrue(mFrame.retain());
+
+        mFrame.release();
+        assertEquals(0, mReleaseCount);
+        assertNotNull(mFrame.getBuffer());
+
+        mFrame.unretain();
+        assertEquals(0, mReleaseCount);
+        mFrame.unretain();
+        assertEquals(1, mReleaseCount);
+        assertNull(mFrame.getBuffer());
+    }
+
+    @Test
+    public void testReleasedFrameCantBeRetained() {
+        mFrame.release();
+
+        assertFalse(mFrame.retain());
+        assertEquals(1, mReleaseCount);
+    }
+
+    @Test
+    public void testUnretainWithoutReleaseKeepsPayload() {
+        assertTrue(mFrame.retain());
+        mFrame.unretain();
+
+        assertEquals(0, mReleaseCount);
+        assertNotNull(mFrame.getBuffer());
+    }
+
+    @Test
+    public void testByteArrayFrameStaysRetainable() {
+        Frame frame = new Frame(1, Frame.Type.VIDEO, 0, 0, new byte[16]);
+        frame.release();
+
+        assertTrue(frame.retain());
+        frame.unretain();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.tomtom.camera.preview.StreamBuffer.BufferState.EMPTY;
+import static com.tomtom.camera.preview.StreamBuffer.BufferState.FULL;
+import static com.tomtom.camera.preview.StreamBuffer.BufferState.LOW;
+import static com.tomtom.camera.preview.StreamBuffer.BufferState.READY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks combined A/V state of {@link PreviewBuffer} for every pair of video and audio buffer
+ * states, and transitions reported to its callback.
+ */
+public class PreviewBufferStateTest {
+
+    private static final StreamBuffer.BufferState[] STATES = StreamBuffer.BufferState.values();
+    private static final int FRAME_PTS = 100 * PreviewBuffer.PTS_PER_MILLISECOND;
+
+    /** Combined state with audio, before EOS, indexed by video and audio state. */
+    private static final StreamBuffer.BufferState[][] AV_STATES = {
+            // audio: EMPTY, LOW,  READY,  FULL
+            {EMPTY, LOW, READY, FULL}, // video EMPTY
+            {LOW,   LOW, LOW,   LOW},  // video LOW
+            {READY, LOW, READY, FULL}, // video READY
+            {FULL,  LOW, FULL,  FULL}, // video FULL
+    };
+
+    /** Combined state with audio, after EOS, indexed by video and audio state. */
+    private static final StreamBuffer.BufferState[][] AV_EOS_STATES = {
+            // audio: EMPTY, LOW,    READY,  FULL
+            {EMPTY, READY, READY, FULL}, // video EMPTY
+            {READY, READY, READY, READY}, // video LOW
+            {READY, READY, READY, FULL}, // video READY
+            {FULL,  READY, FULL,  FULL}, // video FULL
+    };
+
+    private final List<String> mCallbacks = new ArrayList<>();
+    private PreviewBuffer mPreviewBuffer;
+
+    @Before
+    public void setUp() {
+        mPreviewBuffer = new PreviewBuffer(new StreamBufferCallback() {
+            @Override
+            public void onEmpty() {
+                mCallbacks.add("empty");
+            }
+
+            @Override
+            public void onLow() {
+                mCallbacks.add("low");
+            }
+
+            @Override
+            public void onReady() {
+                mCallbacks.add("ready");
+            }
+        });
+        // First frame has no duration: low at 3 frames or less, ready above 5, full at 11
+        mPreviewBuffer.setDurationLimits(1000, 200, 400);
+    }
+
+    @Test
+    public void testAudioAndVideoStates() {
+        for (StreamBuffer.BufferState videoState : STATES) {
+            for (StreamBuffer.BufferState audioState : STATES) {
+                String pair = "video " + videoState + ", audio " + audioState;
+                assertEquals(pair, AV_STATES[videoState.ordinal()][audioState.ordinal()],
+                        PreviewBuffer.combineStates(false, false, videoState, audioState));
+                assertEquals(pair + ", EOS", AV_EOS_STATES[videoState.ordinal()][audioState.ordinal()],
+                        PreviewBuffer.combineStates(false, true, videoState, audioState));
+            }
+        }
+    }
+
+    @Test
+    public void testVideoOnlyStatesIgnoreAudio() {
+        for (StreamBuffer.BufferState videoState : STATES) {
+            for (StreamBuffer.BufferState audioState : STATES) {
+                String pair = "video " + videoState + ", audio " + audioState;
+                assertEquals(pair, videoState, PreviewBuffer.combineStates(true, false, videoState, audioState));
+                assertEquals(pair + ", EOS", videoState == LOW ? READY : videoState,
+                        PreviewBuffer.combineStates(true, true, videoState, audioState));
+            }
+        }
+    }
+
+    @Test
+    public void testVideoOnlyTransitions() {
+        queueVideo(0, 3);
+        assertEquals(LOW, mPreviewBuffer.getBufferState());
+
+        queueVideo(3, 3);
+        assertEquals(READY, mPreviewBuffer.getBufferState());
+
+        queueVideo(6, 5);
+        assertEquals(FULL, mPreviewBuffer.getBufferState());
+
+        dequeue(Frame.Type.VIDEO, 9);
+        assertEquals(LOW, mPreviewBuffer.getBufferState());
+
+        mPreviewBuffer.queue(new Frame(1, Frame.Type.EOS, 0, 0, null));
+        assertEquals(READY, mPreviewBuffer.getBufferState());
+
+        dequeue(Frame.Type.VIDEO, 2);
+        assertEquals(EMPTY, mPreviewBuffer.getBufferState());
+        assertTrue(mPreviewBuffer.isEosReached());
+        assertEquals(Arrays.asList("ready", "low", "ready", "empty"), mCallbacks);
+    }
+
+    @Test
+    public void testAudioHoldsPlaybackBackUntilReady() {
+        queueVideo(0, 6);
+        assertEquals(READY, mPreviewBuffer.getBufferState());
+        assertEquals(Arrays.asList("ready"), mCallbacks);
+
+        // Audio arriving late makes combined state low until it's ready as well
+        queueAudio(0, 2);
+        assertEquals(LOW, mPreviewBuffer.getBufferState());
+
+        queueAudio(2, 4);
+        assertEquals(READY, mPreviewBuffer.getBufferState());
+
+        dequeue(Frame.Type.AUDIO, 4);
+        assertEquals(LOW, mPreviewBuffer.getBufferState());
+
+        mPreviewBuffer.queue(new Frame(1, Frame.Type.EOS, 0, 0, null));
+        assertEquals(READY, mPreviewBuffer.getBufferState());
+
+        mPreviewBuffer.clear();
+        assertEquals(EMPTY, mPreviewBuffer.getBufferState());
+        assertEquals(Arrays.asList("ready", "low", "ready", "low", "ready", "empty"), mCallbacks);
+    }
+
+    @Test
+    public void testFullAudioMakesBufferFull() {
+        queueAudio(0, 11);
+        queueVideo(0, 6);
+
+        assertEquals(FULL, mPreviewBuffer.getBufferState());
+        assertFalse(mPreviewBuffer.awaitNotFull(0));
+
+        dequeue(Frame.Type.AUDIO, 2);
+        assertEquals(READY, mPreviewBuffer.getBufferState());
+        assertTrue(mPreviewBuffer.awaitNotFull(0));
+    }
+
+    private void queueVideo(int firstFrame, int count) {
+        for (int i = firstFrame; i < firstFrame + count; i++) {
+            mPreviewBuffer.queue(new Frame(1, Frame.Type.VIDEO, i * FRAME_PTS, 0, new byte[16]));
+        }
+    }
+
+    private void queueAudio(int firstFrame, int count) {
+        for (int i = firstFrame; i < firstFrame + count; i++) {
+            mPreviewBuffer.queue(new Frame(1, Frame.Type.AUDIO, i * FRAME_PTS, 0, new byte[16]));
+        }
+    }
+
+    private void dequeue(Frame.Type type, int count) {
+        for (int i = 0; i < count; i++) {
+            mPreviewBuffer.dequeue(type);
+        }
+    }
+}
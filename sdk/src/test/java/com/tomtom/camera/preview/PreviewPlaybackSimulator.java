@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import com.tomtom.camera.video.BitmapDrawObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Plays synthetic video streams through {@link PreviewBuffer} and {@link PreviewPlayer} on virtual
+ * time, so that presentation timing, drops and rebuffering can be checked on JVM. Frames are
+ * queued at their arrival times and player is driven by buffer state like in
+ * {@link AbstractPreviewVideo}. Drawing takes {@link #setDrawDurationMillis(int)} of virtual
+ * time, during which following presentations wait.
+ */
+class PreviewPlaybackSimulator {
+
+    private final VirtualTimeScheduler mScheduler = new VirtualTimeScheduler();
+    private final PreviewBuffer mPreviewBuffer;
+    private final PreviewPlayer mPreviewPlayer;
+    private final ArrayList<Presentation> mPresentations = new ArrayList<>();
+    private int mRebufferCount;
+    private boolean mIsPlaybackFinished;
+    private long mDrawNanos;
+    private long mDrawEndNanos;
+
+    private final ArrayDeque<Runnable> mPresentTasks = new ArrayDeque<>();
+    private boolean mIsPresentScheduled;
+
+    private final Runnable mPresentRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mIsPresentScheduled = false;
+            mPresentTasks.poll().run();
+            if (!mPresentTasks.isEmpty()) {
+                schedulePresent();
+            }
+        }
+    };
+
+    /**
+     * Runs presentations one after another, like presenting thread, so that slow drawing delays
+     * following frames.
+     */
+    private final Executor mPresentExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPresentTasks.add(command);
+            if (!mIsPresentScheduled) {
+                schedulePresent();
+            }
+        }
+    };
+
+    private final StreamBufferCallback mStreamBufferCallback = new StreamBufferCallback() {
+        @Override
+        public void onEmpty() {
+            mPreviewPlayer.stop();
+        }
+
+        @Override
+        public void onLow() {
+        }
+
+        @Override
+        public void onReady() {
+            mPreviewPlayer.play();
+        }
+    };
+
+    private final PreviewPlayer.PreviewPlayerCallback mPreviewPlayerCallback = new PreviewPlayer.PreviewPlayerCallback() {
+        @Override
+        public void drawFrame(byte[] data, int pts, boolean isFirstFrame) {
+            onDraw(pts);
+        }
+
+        @Override
+        public void drawDecodedFrame(BitmapDrawObject bitmapDrawObject, int pts, boolean isFirstFrame) {
+            onDraw(pts);
+        }
+
+        @Override
+        public void onPlaybackFinished() {
+            mIsPlaybackFinished = true;
+        }
+
+        @Override
+        public void onRebuffering() {
+            mRebufferCount++;
+        }
+
+        @Override
+        public void onFirstFrameSkipped(int pts) {
+        }
+    };
+
+    PreviewPlaybackSimulator() {
+        mPreviewBuffer = new PreviewBuffer(mStreamBufferCallback);
+        mPreviewPlayer = new PreviewPlayer(mPreviewBuffer, mScheduler, mScheduler, mPresentExecutor);
+        mPreviewPlayer.setPreviewPlayerCallback(mPreviewPlayerCallback);
+    }
+
+    private void onDraw(int ptsMillis) {
+        mPresentations.add(new Presentation(getTimeMillis(), ptsMillis));
+        mDrawEndNanos = mScheduler.nanoTime() + mDrawNanos;
+    }
+
+    private void schedulePresent() {
+        mIsPresentScheduled = true;
+        mScheduler.schedule(mPresentRunnable, Math.max(0, mDrawEndNanos - mScheduler.nanoTime()), NANOSECONDS);
+    }
+
+    /**
+     * Sets virtual time each drawn frame takes to draw.
+     * @param drawDurationMillis draw duration
+     */
+    void setDrawDurationMillis(int drawDurationMillis) {
+        mDrawNanos = MILLISECONDS.toNanos(drawDurationMillis);
+    }
+
+    PreviewBuffer getPreviewBuffer() {
+        return mPreviewBuffer;
+    }
+
+    PreviewPlayer getPreviewPlayer() {
+        return mPreviewPlayer;
+    }
+
+    /**
+     * Schedules arrival of video frames at constant frame rate, frames arrive in real time.
+     * @param arrivalMillis virtual time first frame arrives at
+     * @param firstPtsMillis pts of first frame
+     * @param frameCount number of frames
+     * @param fps frame rate
+     * @param frameBytes payload size of each frame
+     * @param isSessionStart {@code true} if first frame starts new file
+     */
+    void queueVideoFrames(long arrivalMillis, int firstPtsMillis, int frameCount, int fps, int frameBytes, boolean isSessionStart) {
+        for (int i = 0; i < frameCount; i++) {
+            long frameOffsetMillis = i * 1000L / fps;
+            int pts = (int) ((firstPtsMillis + frameOffsetMillis) * PreviewBuffer.PTS_PER_MILLISECOND);
+            queueFrame(arrivalMillis + frameOffsetMillis,
+                    new Frame(0, Frame.Type.VIDEO, pts, 0, new byte[frameBytes], isSessionStart && i == 0));
+        }
+    }
+
+    /**
+     * Schedules arrival of end of stream.
+     * @param arrivalMillis virtual time EOS arrives at
+     */
+    void queueEos(long arrivalMillis) {
+        queueFrame(arrivalMillis, new Frame(0, Frame.Type.EOS, 0, 0, (byte[]) null));
+    }
+
+    /**
+     * Schedules arrival of frame.
+     * @param arrivalMillis virtual time frame is queued to buffer at
+     * @param frame frame to queue
+     */
+    void queueFrame(long arrivalMillis, final Frame frame) {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPreviewBuffer.queue(frame);
+            }
+        }, arrivalMillis - getTimeMillis(), MILLISECONDS);
+    }
+
+    /**
+     * Runs simulation for given virtual duration.
+     * @param durationMillis duration to advance virtual time by
+     */
+    void runFor(long durationMillis) {
+        mScheduler.advanceTimeBy(durationMillis, MILLISECONDS);
+    }
+
+    long getTimeMillis() {
+        return NANOSECONDS.toMillis(mScheduler.nanoTime());
+    }
+
+    /**
+     * Provides presented frames in order of presentation.
+     * @return presentations
+     */
+    List<Presentation> getPresentations() {
+        return Collections.unmodifiableList(mPresentations);
+    }
+
+    long getDroppedFrameCount() {
+        return mPreviewPlayer.getDroppedFrameCount();
+    }
+
+    int getRebufferCount() {
+        return mRebufferCount;
+    }
+
+    boolean isPlaybackFinished() {
+        return mIsPlaybackFinished;
+    }
+
+    /**
+     * Presented frame, at virtual time it was presented.
+     */
+    static class Presentation {
+
+        private final long mTimeMillis;
+        private final int mPtsMillis;
+
+        Presentation(long timeMillis, int ptsMillis) {
+            mTimeMillis = timeMillis;
+            mPtsMillis = ptsMillis;
+        }
+
+        long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        int getPtsMillis() {
+            return mPtsMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Presentation{time=" + mTimeMillis + ", pts=" + mPtsMillis + "}";
+        }
+    }
+}
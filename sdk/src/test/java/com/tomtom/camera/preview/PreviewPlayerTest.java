@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tomtom.camera.preview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewPlayerTest {
+
+    private static final int FPS = 30;
+    private static final int FRAME_BYTES = 1000;
+    private static final int FRAME_MILLIS = 1000 / FPS;
+    /** Pts of last of 150 frames. */
+    private static final int LAST_PTS_MILLIS = 149 * 1000 / FPS;
+    /** Slower than frame rate, so that drawing falls behind. */
+    private static final int DRAW_MILLIS = 50;
+
+    private PreviewPlaybackSimulator mSimulator;
+
+    @Before
+    public void setUp() {
+        mSimulator = new PreviewPlaybackSimulator();
+    }
+
+    @Test
+    public void testFramesArePresentedAtTheirPts() {
+        mSimulator.queueVideoFrames(0, 0, 150, FPS, FRAME_BYTES, true);
+        mSimulator.queueEos(5000);
+        mSimulator.runFor(10000);
+
+        List<PreviewPlaybackSimulator.Presentation> presentations = mSimulator.getPresentations();
+        assertEquals(150, presentations.size());
+        assertPresentedOnClock(presentations, 0);
+        // Playback starts once ready duration is buffered
+        assertEquals(PreviewBuffer.DEFAULT_READY_MILLIS, presentations.get(0).getTimeMillis(), FRAME_MILLIS);
+        assertEquals(0, mSimulator.getDroppedFrameCount());
+        assertEquals(0, mSimulator.getRebufferCount());
+        assertTrue(mSimulator.isPlaybackFinished());
+    }
+
+    @Test
+    public void testStallRebuffersAndResumes() {
+        mSimulator.queueVideoFrames(0, 0, 150, FPS, FRAME_BYTES, true);
+        mSimulator.queueVideoFrames(8000, 5000, 60, FPS, FRAME_BYTES, false);
+        mSimulator.queueEos(10000);
+        mSimulator.runFor(15000);
+
+        List<PreviewPlaybackSimulator.Presentation> presentations = mSimulator.getPresentations();
+        assertEquals(210, presentations.size());
+        assertEquals(1, mSimulator.getRebufferCount());
+        assertEquals(0, mSimulator.getDroppedFrameCount());
+        assertTrue(mSimulator.isPlaybackFinished());
+
+        // Frames after stall are presented on clock again, later by time spent rebuffering
+        PreviewPlaybackSimulator.Presentation lastBeforeStall = presentations.get(149);
+        PreviewPlaybackSimulator.Presentation firstAfterStall = presentations.get(150);
+        assertEquals(5000, firstAfterStall.getPtsMillis());
+        assertTrue(firstAfterStall.getTimeMillis() - lastBeforeStall.getTimeMillis()
+                > firstAfterStall.getPtsMillis() - lastBeforeStall.getPtsMillis());
+        assertPresentedOnClock(presentations, 150);
+    }
+
+    @Test
+    public void testSlowDrawingDropsLateFrames() {
+        mSimulator.setDrawDurationMillis(DRAW_MILLIS);
+        mSimulator.queueVideoFrames(0, 0, 150, FPS, FRAME_BYTES, true);
+        mSimulator.queueEos(5000);
+        mSimulator.runFor(15000);
+
+        List<PreviewPlaybackSimulator.Presentation> presentations = mSimulator.getPresentations();
+        long droppedFrameCount = mSimulator.getDroppedFrameCount();
+        assertTrue(droppedFrameCount > 0);
+        assertEquals(150, presentations.size() + droppedFrameCount);
+        assertEquals(0, mSimulator.getRebufferCount());
+        assertTrue(mSimulator.isPlaybackFinished());
+
+        // Dropping keeps presentation within late threshold of clock. Clock stops with last frame,
+        // after that frames still waiting for drawing aren't late anymore and are all presented.
+        long startOffsetMillis = presentations.get(0).getTimeMillis() - presentations.get(0).getPtsMillis();
+        long endMillis = startOffsetMillis + LAST_PTS_MILLIS;
+        for (PreviewPlaybackSimulator.Presentation presentation : presentations) {
+            long lateMillis = presentation.getTimeMillis() - presentation.getPtsMillis() - startOffsetMillis;
+            if (presentation.getTimeMillis() <= endMillis) {
+                assertTrue(presentation.toString(), lateMillis <= PreviewPlayer.DEFAULT_LATE_FRAME_THRESHOLD_MILLIS);
+            } else {
+                assertTrue(presentation.toString(), lateMillis <= PreviewPlayer.DEFAULT_LATE_FRAME_THRESHOLD_MILLIS + DRAW_MILLIS);
+            }
+        }
+        assertEquals(LAST_PTS_MILLIS, presentations.get(presentations.size() - 1).getPtsMillis());
+    }
+
+    @Test
+    public void testDisabledLateThresholdPresentsEveryFrame() {
+        mSimulator.setDrawDurationMillis(DRAW_MILLIS);
+        mSimulator.getPreviewPlayer().setLateFrameThresholdMillis(0);
+        mSimulator.queueVideoFrames(0, 0, 150, FPS, FRAME_BYTES, true);
+        mSimulator.queueEos(5000);
+        mSimulator.runFor(15000);
+
+        assertEquals(150, mSimulator.getPresentations().size());
+        assertEquals(0, mSimulator.getDroppedFrameCount());
+        assertTrue(mSimulator.isPlaybackFinished());
+    }
+
+    @Test
+    public void testHiddenPlaybackResumesFromClockPosition() {
+        mSimulator.queueVideoFrames(0, 0, 300, FPS, FRAME_BYTES, true);
+        mSimulator.queueEos(10000);
+        mSimulator.runFor(4000);
+        mSimulator.getPreviewPlayer().setHidden(true);
+        int presentedCount = mSimulator.getPresentations().size();
+        mSimulator.runFor(3000);
+
+        assertEquals(presentedCount, mSimulator.getPresentations().size());
+        assertFalse(mSimulator.isPlaybackFinished());
+
+        mSimulator.getPreviewPlayer().setHidden(false);
+        mSimulator.runFor(8000);
+
+        List<PreviewPlaybackSimulator.Presentation> presentations = mSimulator.getPresentations();
+        PreviewPlaybackSimulator.Presentation lastBeforeHiding = presentations.get(presentedCount - 1);
+        PreviewPlaybackSimulator.Presentation firstAfterShowing = presentations.get(presentedCount);
+        assertTrue(lastBeforeHiding.getTimeMillis() < 4000);
+        assertTrue(firstAfterShowing.getTimeMillis() >= 7000);
+        // Hidden frames were consumed on clock, so playback continues where it would be if shown
+        assertEquals(firstAfterShowing.getTimeMillis() - lastBeforeHiding.getTimeMillis(),
+                firstAfterShowing.getPtsMillis() - lastBeforeHiding.getPtsMillis(), FRAME_MILLIS);
+        assertPresentedOnClock(presentations, presentedCount);
+        assertEquals(0, mSimulator.getDroppedFrameCount());
+        assertTrue(mSimulator.isPlaybackFinished());
+    }
+
+    /**
+     * Checks that presentations from given index on keep the same offset between time and pts.
+     */
+    private static void assertPresentedOnClock(List<PreviewPlaybackSimulator.Presentation> presentations, int fromIndex) {
+        PreviewPlaybackSimulator.Presentation first = presentations.get(fromIndex);
+        long offsetMillis = first.getTimeMillis() - first.getPtsMillis();
+        for (int i = fromIndex; i < presentations.size(); i++) {
+            PreviewPlaybackSimulator.Presentation presentation = presentations.get(i);
+            assertEquals(presentation.toString(), offsetMillis,
+                    presentation.getTimeMillis() - presentation.getPtsMillis(), 1);
+        }
+    }
+}
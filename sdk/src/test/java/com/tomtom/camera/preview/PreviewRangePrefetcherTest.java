@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams split range from two {@link StandInCamera} connections and checks it's merged into main
+ * buffer in order.
+ */
+public class PreviewRangePrefetcherTest {
+
+    private static final float WINDOW_SECS = 2f;
+    private static final int FRAME_PTS = PreviewSegmentCache.PTS_PER_SECOND / 2;
+    private static final long EOS_TIMEOUT_SECS = 5;
+
+    private PreviewBuffer mMainBuffer;
+    private CameraPreviewStreamServer mMainServer;
+    private CameraPreviewStreamServer mPrefetchServer;
+    private PreviewRangePrefetcher mPrefetcher;
+    private CountDownLatch mEosLatch;
+
+    @Before
+    public void setUp() {
+        mMainBuffer = new PreviewBuffer();
+        // Nothing plays from main buffer, so it has to hold whole range
+        mMainBuffer.setDurationLimits(10000, 500, 1000);
+        mEosLatch = new CountDownLatch(1);
+        CameraPreviewStreamServer.OnEosReceivedListener onEosReceivedListener = new CameraPreviewStreamServer.OnEosReceivedListener() {
+            @Override
+            public void onEosReceived() {
+                mEosLatch.countDown();
+            }
+        };
+        mMainServer = new CameraPreviewStreamServer(mMainBuffer, onEosReceivedListener);
+        PreviewBuffer stagingBuffer = PreviewRangePrefetcher.createStagingBuffer();
+        mPrefetchServer = new CameraPreviewStreamServer(stagingBuffer);
+        mPrefetcher = new PreviewRangePrefetcher(mMainServer, mMainBuffer, mPrefetchServer, stagingBuffer, WINDOW_SECS);
+        assertTrue(mMainServer.start());
+    }
+
+    @After
+    public void tearDown() {
+        mPrefetcher.release();
+        mMainServer.close();
+    }
+
+    @Test
+    public void testShortRangeIsNotSplit() {
+        AbstractPreviewVideo.PreviewCommand startCommand = createStart(0f, 3f);
+        assertSame(startCommand, mPrefetcher.split(startCommand));
+        assertNull(mPrefetcher.pollPendingStart());
+    }
+
+    @Test
+    public void testPrefetchedRangeFollowsMainWindow() throws Exception {
+        int frameCount = streamSplitRange();
+
+        for (int i = 0; i < frameCount; i++) {
+            Frame video = mMainBuffer.dequeue(Frame.Type.VIDEO);
+            Frame audio = mMainBuffer.dequeue(Frame.Type.AUDIO);
+            assertEquals(i * FRAME_PTS, video.getPts());
+            assertEquals(i * FRAME_PTS, audio.getPts());
+            assertEquals(i == 0, video.isFirstFrame());
+            assertTrue(StandInCamera.isPayloadOf(video));
+        }
+        assertNull(mMainBuffer.dequeue(Frame.Type.VIDEO));
+        assertTrue(mMainBuffer.isEosReached());
+        assertNull(mPrefetcher.pollPendingStop());
+    }
+
+    @Test
+    public void testMergedRangeIsRecordedInCache() throws Exception {
+        PreviewSegmentCache segmentCache = new PreviewSegmentCache(null, Long.MAX_VALUE, 0, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mMainServer.setSegmentCache(segmentCache);
+
+        int frameCount = streamSplitRange();
+
+        PreviewSegmentCache.Segment segment = segmentCache.find("video", 0);
+        assertNotNull(segment);
+        assertEquals((frameCount - 1) * FRAME_PTS, segment.getEndPts());
+        assertTrue(segment.hasEos());
+    }
+
+    /**
+     * Streams range of three windows split between main and prefetch server, prefetched part
+     * arrives first and waits in staging buffer.
+     * @return number of streamed video frames
+     */
+    private int streamSplitRange() throws Exception {
+        AbstractPreviewVideo.PreviewCommand mainCommand = mPrefetcher.split(mMainServer.newSession(createStart(0f, 6f)));
+        assertEquals(WINDOW_SECS, mainCommand.lengthSecs, 0);
+        AbstractPreviewVideo.PreviewCommand prefetchCommand = mPrefetcher.pollPendingStart();
+        assertNotNull(prefetchCommand);
+        assertEquals(WINDOW_SECS, prefetchCommand.startPositionSecs, 0);
+
+        int windowFrames = (int) (WINDOW_SECS * PreviewSegmentCache.PTS_PER_SECOND / FRAME_PTS);
+        StandInCamera prefetchCamera = new StandInCamera().writeSos();
+        for (int i = windowFrames; i < 3 * windowFrames; i++) {
+            prefetchCamera.writeVideo(i * FRAME_PTS, 200);
+            prefetchCamera.writeAudio(i * FRAME_PTS, 20);
+        }
+        prefetchCamera.writeEos().sendTo(prefetchCommand.previewVideoPort, 13);
+
+        StandInCamera mainCamera = new StandInCamera().writeSos();
+        for (int i = 0; i < windowFrames; i++) {
+            mainCamera.writeVideo(i * FRAME_PTS, 200);
+            mainCamera.writeAudio(i * FRAME_PTS, 20);
+        }
+        mainCamera.writeEos().sendTo(mainCommand.previewVideoPort, 13);
+
+        assertTrue(mEosLatch.await(EOS_TIMEOUT_SECS, TimeUnit.SECONDS));
+        return 3 * windowFrames;
+    }
+
+    @Test
+    public void testRefusedPrefetchEndsRangeWithMainWindow() throws Exception {
+        AbstractPreviewVideo.PreviewCommand mainCommand = mPrefetcher.split(mMainServer.newSession(createStart(0f, 6f)));
+        AbstractPreviewVideo.PreviewCommand prefetchCommand = mPrefetcher.pollPendingStart();
+        mPrefetcher.onStartFailed(prefetchCommand);
+
+        new StandInCamera().writeSos().writeVideo(0, 200).writeVideo(FRAME_PTS, 200).writeEos()
+                .sendTo(mainCommand.previewVideoPort, 13);
+
+        assertTrue(mEosLatch.await(EOS_TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(2, mMainBuffer.getBufferedFrames(Frame.Type.VIDEO));
+        assertNull(mPrefetcher.pollPendingStop());
+    }
+
+    private AbstractPreviewVideo.PreviewCommand createStart(float startPositionSecs, float lengthSecs) {
+        return AbstractPreviewVideo.PreviewCommand.createStart("video", mMainServer.getPort(), startPositionSecs, lengthSecs);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tomtom.camera.preview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records frames into {@link PreviewSegmentCache}, with writer tasks run only when test says so.
+ */
+public class PreviewSegmentCacheTest {
+
+    private static final String PLAYABLE_ID = "video";
+    private static final int FRAME_PTS = 3000;
+    private static final int FRAME_BYTES = 100;
+    private static final int FRAME_SIZE = PreviewStreamParser.WIRE_HEADER_LENGTH + FRAME_BYTES;
+
+    private final ArrayDeque<Runnable> mWriterTasks = new ArrayDeque<>();
+    private final Executor mWriteExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mWriterTasks.add(command);
+        }
+    };
+
+    private File mCacheDir;
+    private PreviewSegmentCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mCacheDir = File.createTempFile("segment_cache", "");
+        assertTrue(mCacheDir.delete() && mCacheDir.mkdir());
+        // Fits one segment of 10 frames in memory
+        mCache = new PreviewSegmentCache(mCacheDir, 15 * FRAME_SIZE, 100 * FRAME_SIZE, mWriteExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+        runWriterTasks();
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void testPayloadIsCopiedOnWriter() {
+        final int[] releaseCount = new int[1];
+        Frame frame = new Frame(0, Frame.Type.VIDEO, 0, 0, ByteBuffer.wrap(payload(0)), new Frame.FrameReleaser() {
+            @Override
+            public void release() {
+                releaseCount[0]++;
+            }
+        });
+        mCache.startRecording(PLAYABLE_ID, null);
+        mCache.record(frame);
+        frame.release();
+
+        // Payload stays valid until writer copied it
+        assertEquals(0, releaseCount[0]);
+        assertEquals(0, mCache.getMemoryBytes());
+        runWriterTasks();
+        assertEquals(1, releaseCount[0]);
+        assertEquals(FRAME_SIZE, mCache.getMemoryBytes());
+    }
+
+    @Test
+    public void testEosIsMarkedAfterRecordedFrames() throws IOException {
+        recordSegment(0, 10);
+        PreviewSegmentCache.Segment segment = mCache.find(PLAYABLE_ID, 0);
+        assertNotNull(segment);
+        assertEquals(9 * FRAME_PTS, segment.getEndPts());
+        assertTrue(segment.hasEos());
+        assertFrames(readAll(segment), 0, 10);
+    }
+
+    @Test
+    public void testSegmentIsMovedToDiskOnWriter() throws IOException {
+        recordSegment(0, 10);
+        mCache.startRecording(PLAYABLE_ID, null);
+        for (int i = 100; i < 110; i++) {
+            mCache.record(videoFrame(i));
+        }
+        runWriterTask(10);
+
+        // Budget is exceeded, first segment is written on next writer task and still readable meanwhile
+        PreviewSegmentCache.Segment segment = mCache.find(PLAYABLE_ID, 0);
+        assertNotNull(segment);
+        assertEquals(20 * FRAME_SIZE, mCache.getMemoryBytes());
+        assertEquals(0, mCache.getDiskBytes());
+        assertFrames(readAll(segment), 0, 10);
+
+        runWriterTasks();
+        assertEquals(10 * FRAME_SIZE, mCache.getMemoryBytes());
+        assertEquals(10 * FRAME_SIZE, mCache.getDiskBytes());
+        assertFrames(readAll(segment), 0, 10);
+    }
+
+    @Test
+    public void testPinnedSegmentIsMovedOnlyOnceUnpinned() throws IOException {
+        recordSegment(0, 10);
+        PreviewSegmentCache.Segment segment = mCache.find(PLAYABLE_ID, 0);
+        mCache.startRecording(PLAYABLE_ID, null);
+        for (int i = 100; i < 110; i++) {
+            mCache.record(videoFrame(i));
+        }
+        runWriterTask(10);
+        mCache.pin(segment);
+        runWriterTasks();
+
+        assertEquals(0, mCache.getDiskBytes());
+        assertFrames(readAll(segment), 0, 10);
+
+        mCache.unpin(segment);
+        runWriterTasks();
+        assertEquals(10 * FRAME_SIZE, mCache.getDiskBytes());
+        assertFrames(readAll(segment), 0, 10);
+    }
+
+    private void recordSegment(int firstIndex, int frameCount) {
+        mCache.startRecording(PLAYABLE_ID, null);
+        for (int i = firstIndex; i < firstIndex + frameCount; i++) {
+            mCache.record(videoFrame(i));
+        }
+        mCache.record(new Frame(0, Frame.Type.EOS, 0, 0, (byte[]) null));
+        runWriterTasks();
+    }
+
+    private static Frame videoFrame(int index) {
+        return new Frame(0, Frame.Type.VIDEO, index * FRAME_PTS, 0, payload(index));
+    }
+
+    private static byte[] payload(int index) {
+        byte[] payload = new byte[FRAME_BYTES];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (index + i);
+        }
+        return payload;
+    }
+
+    private void runWriterTask(int count) {
+        for (int i = 0; i < count; i++) {
+            mWriterTasks.poll().run();
+        }
+    }
+
+    private void runWriterTasks() {
+        Runnable task;
+        while ((task = mWriterTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private List<Frame> readAll(PreviewSegmentCache.Segment segment) throws IOException {
+        final List<Frame> frames = new ArrayList<>();
+        mCache.read(segment, 0, Integer.MAX_VALUE, new PreviewSegmentCache.FrameSink() {
+            @Override
+            public boolean onFrame(Frame frame) {
+                frames.add(frame);
+                return true;
+            }
+        });
+        return frames;
+    }
+
+    private static void assertFrames(List<Frame> frames, int firstIndex, int frameCount) {
+        assertEquals(frameCount, frames.size());
+        for (int i = 0; i < frameCount; i++) {
+            assertEquals((firstIndex + i) * FRAME_PTS, frames.get(i).getPts());
+            assertArrayEquals(payload(firstIndex + i), frames.get(i).getBytes());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of {@link PreviewStreamParser} fed the way server feeds it. Run with JMH
+ * main class on test classpath, e.g. {@code org.openjdk.jmh.Main PreviewStreamParserBenchmark}.
+ * Adding {@code -prof gc} shows that parser allocates nothing in steady state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class PreviewStreamParserBenchmark {
+
+    private static final int VIDEO_FRAME_SIZE = 20000;
+    private static final int AUDIO_FRAME_SIZE = 300;
+
+    /** Bytes read from socket at once, from single TCP segment up to whole read buffer. */
+    @Param({"1460", "16384", "65536"})
+    public int chunkSize;
+
+    private byte[] mStream;
+    private ByteBuffer mReadBuffer;
+    private PreviewStreamParser mParser;
+    private long mPayloadBytes;
+
+    private final PreviewStreamParser.FrameListener mFrameListener = new PreviewStreamParser.FrameListener() {
+        @Override
+        public boolean onVideoFrame(int version, int pts, int status, ByteBuffer data) {
+            mPayloadBytes += data.remaining();
+            return false;
+        }
+
+        @Override
+        public boolean onAudioFrame(int version, int pts, int status, ByteBuffer data) {
+            mPayloadBytes += data.remaining();
+            return false;
+        }
+
+        @Override
+        public boolean onStartOfStream(int version) {
+            return false;
+        }
+
+        @Override
+        public boolean onEndOfStream(int version) {
+            return false;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        // One second of 30 fps video with AAC audio at 44.1 kHz
+        StandInCamera camera = new StandInCamera().writeSos();
+        for (int i = 0; i < 30; i++) {
+            camera.writeVideo(i * 3000, VIDEO_FRAME_SIZE);
+            camera.writeAudio(i * 3000, AUDIO_FRAME_SIZE);
+            if (i % 2 == 0) {
+                camera.writeAudio(i * 3000 + 2090, AUDIO_FRAME_SIZE);
+            }
+        }
+        mStream = camera.writeEos().toByteArray();
+        mReadBuffer = ByteBuffer.allocate(65536 + VIDEO_FRAME_SIZE + PreviewStreamParser.WIRE_HEADER_LENGTH);
+        mParser = new PreviewStreamParser(new FrameValidator(), mFrameListener);
+    }
+
+    /**
+     * Parses one second of stream.
+     * @return total payload bytes reported so far
+     */
+    @Benchmark
+    public long parseSecondOfStream() {
+        ByteBuffer buffer = mReadBuffer;
+        buffer.clear();
+        mParser.reset();
+        int offset = 0;
+        while (offset < mStream.length) {
+            int length = Math.min(Math.min(chunkSize, buffer.remaining()), mStream.length - offset);
+            buffer.put(mStream, offset, length);
+            offset += length;
+            buffer.flip();
+            mParser.feed(buffer);
+            buffer.compact();
+        }
+        return mPayloadBytes;
+    }
+}
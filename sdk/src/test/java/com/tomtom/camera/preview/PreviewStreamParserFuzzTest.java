@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds mutated preview streams to {@link PreviewStreamParser}. Corpus of valid streams is
+ * generated, and each one is mutated with fixed seeds, so failures are reproducible. Whatever the
+ * input, parser must not throw, must only report frames which pass validation, and must report
+ * the same frames and resyncs however the stream is split into chunks.
+ */
+public class PreviewStreamParserFuzzTest {
+
+    private static final int MUTATIONS_PER_SEED = 200;
+    private static final long[] SEEDS = {1, 7, 42, 1000, 65537};
+
+    @Test
+    public void testMutatedStreams() {
+        List<byte[]> corpus = createCorpus();
+        for (long seed : SEEDS) {
+            Random random = new Random(seed);
+            for (int i = 0; i < MUTATIONS_PER_SEED; i++) {
+                byte[] stream = mutate(corpus.get(random.nextInt(corpus.size())), random);
+                checkStream(stream, random, "seed " + seed + " mutation " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomBytes() {
+        Random random = new Random(3);
+        for (int i = 0; i < 50; i++) {
+            byte[] stream = new byte[random.nextInt(4096)];
+            random.nextBytes(stream);
+            checkStream(stream, random, "random stream " + i);
+        }
+    }
+
+    private static void checkStream(byte[] stream, Random random, String description) {
+        FrameValidator validator = new FrameValidator();
+        final FrameValidator headerValidator = new FrameValidator();
+        RecordingFrameListener listener = new RecordingFrameListener() {
+            @Override
+            public boolean onVideoFrame(int version, int pts, int status, ByteBuffer data) {
+                assertTrue(headerValidator.isValidHeader(version, Frame.Type.VIDEO.value(), data.remaining()));
+                return super.onVideoFrame(version, pts, status, data);
+            }
+
+            @Override
+            public boolean onAudioFrame(int version, int pts, int status, ByteBuffer data) {
+                assertTrue(headerValidator.isValidHeader(version, Frame.Type.AUDIO.value(), data.remaining()));
+                return super.onAudioFrame(version, pts, status, data);
+            }
+        };
+        ByteBuffer input = ByteBuffer.wrap(stream);
+        new PreviewStreamParser(validator, listener).feed(input);
+
+        FrameValidator chunkedValidator = new FrameValidator();
+        RecordingFrameListener chunkedListener = new RecordingFrameListener();
+        PreviewStreamParserTest.feedInChunks(new PreviewStreamParser(chunkedValidator, chunkedListener), stream,
+                PreviewStreamParserTest.randomChunkSizes(random, 512));
+
+        assertEquals(description, listener.mEvents, chunkedListener.mEvents);
+        assertEquals(description, validator.getResyncCount(), chunkedValidator.getResyncCount());
+        assertEquals(description, validator.getDiscardedBytes(), chunkedValidator.getDiscardedBytes());
+        assertTrue(description, validator.getDiscardedBytes() <= stream.length);
+    }
+
+    private static List<byte[]> createCorpus() {
+        List<byte[]> corpus = new ArrayList<>();
+        corpus.add(PreviewStreamParserTest.createStream());
+        corpus.add(new StandInCamera().writeSos().writeEos().toByteArray());
+        corpus.add(new StandInCamera().writeVideo(0, 1).writeVideo(1, 1).toByteArray());
+        corpus.add(new StandInCamera().writeAudio(0, Frame.AAC_ADTS_HEADER + 1).writeSos().writeAudio(0, 2000).toByteArray());
+        StandInCamera longStream = new StandInCamera().writeSos();
+        for (int i = 0; i < 60; i++) {
+            longStream.writeVideo(i * 3000, 500 + i * 31).writeAudio(i * 3000, 300);
+        }
+        corpus.add(longStream.writeEos().toByteArray());
+        return corpus;
+    }
+
+    /**
+     * Applies one of mutations seen on corrupted connections: flipped bytes, inserted garbage,
+     * dropped range, overwritten header field or truncated stream.
+     */
+    private static byte[] mutate(byte[] stream, Random random) {
+        byte[] mutated = Arrays.copyOf(stream, stream.length);
+        int position = random.nextInt(stream.length);
+        switch (random.nextInt(5)) {
+            case 0:
+                for (int i = 0; i < 1 + random.nextInt(8); i++) {
+                    mutated[random.nextInt(mutated.length)] ^= (byte) (1 << random.nextInt(8));
+                }
+                return mutated;
+            case 1:
+                byte[] garbage = new byte[1 + random.nextInt(64)];
+                random.nextBytes(garbage);
+                return concat(Arrays.copyOf(stream, position), garbage, Arrays.copyOfRange(stream, position, stream.length));
+            case 2:
+                int end = Math.min(stream.length, position + 1 + random.nextInt(64));
+                return concat(Arrays.copyOf(stream, position), Arrays.copyOfRange(stream, end, stream.length));
+            case 3:
+                if (position + 4 <= mutated.length) {
+                    ByteBuffer.wrap(mutated).putInt(position, random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(300));
+                }
+                return mutated;
+            default:
+                return Arrays.copyOf(stream, position);
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            result.put(part);
+        }
+        return result.array();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewStreamParserTest {
+
+    private FrameValidator mFrameValidator;
+    private RecordingFrameListener mListener;
+    private PreviewStreamParser mParser;
+
+    @Before
+    public void setUp() {
+        mFrameValidator = new FrameValidator();
+        mListener = new RecordingFrameListener();
+        mParser = new PreviewStreamParser(mFrameValidator, mListener);
+    }
+
+    @Test
+    public void testParsesAllFrameTypes() {
+        byte[] stream = new StandInCamera().writeSos().writeVideo(3000, 100).writeAudio(3100, 20).writeEos().toByteArray();
+        ByteBuffer input = ByteBuffer.wrap(stream);
+
+        assertFalse(mParser.feed(input));
+
+        assertEquals(0, input.remaining());
+        assertEquals(Arrays.asList(
+                "SOS v1",
+                "VIDEO v1 pts 3000 status 0 100 bytes #" + Arrays.hashCode(StandInCamera.payload(3000, 100)),
+                "AUDIO v1 pts 3100 status 0 20 bytes #" + Arrays.hashCode(StandInCamera.payload(3100, 20)),
+                "EOS v1"), mListener.mEvents);
+        assertEquals(0, mFrameValidator.getResyncCount());
+    }
+
+    @Test
+    public void testPayloadIsViewOfInput() {
+        byte[] stream = new StandInCamera().writeVideo(0, 50).toByteArray();
+        final ByteBuffer input = ByteBuffer.wrap(stream);
+        PreviewStreamParser parser = new PreviewStreamParser(mFrameValidator, new RecordingFrameListener() {
+            @Override
+            public boolean onVideoFrame(int version, int pts, int status, ByteBuffer data) {
+                assertTrue(data == input);
+                assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH, data.position());
+                assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH + 50, data.limit());
+                return false;
+            }
+        });
+
+        parser.feed(input);
+
+        assertEquals(stream.length, input.position());
+        assertEquals(stream.length, input.limit());
+    }
+
+    @Test
+    public void testIncompleteFrameIsLeftUnconsumed() {
+        byte[] stream = new StandInCamera().writeVideo(0, 50).toByteArray();
+        ByteBuffer input = ByteBuffer.wrap(stream, 0, 10);
+
+        assertFalse(mParser.feed(input));
+        assertEquals(0, input.position());
+        assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH, mParser.getRequiredBytes());
+
+        input.limit(PreviewStreamParser.WIRE_HEADER_LENGTH + 20);
+        assertFalse(mParser.feed(input));
+        assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH, input.position());
+        assertEquals(50, mParser.getRequiredBytes());
+        assertTrue(mListener.mEvents.isEmpty());
+
+        input.limit(stream.length);
+        assertFalse(mParser.feed(input));
+        assertEquals(1, mListener.mEvents.size());
+        assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH, mParser.getRequiredBytes());
+    }
+
+    @Test
+    public void testSplitFeedsMatchSingleFeed() {
+        byte[] stream = createStream();
+        List<String> expectedEvents = parseAtOnce(stream);
+
+        for (int chunkSize = 1; chunkSize <= 64; chunkSize++) {
+            RecordingFrameListener listener = new RecordingFrameListener();
+            feedInChunks(new PreviewStreamParser(new FrameValidator(), listener), stream, new int[]{chunkSize});
+            assertEquals("Chunk size " + chunkSize, expectedEvents, listener.mEvents);
+        }
+        Random random = new Random(8);
+        for (int i = 0; i < 100; i++) {
+            RecordingFrameListener listener = new RecordingFrameListener();
+            feedInChunks(new PreviewStreamParser(new FrameValidator(), listener), stream, randomChunkSizes(random, 300));
+            assertEquals(expectedEvents, listener.mEvents);
+        }
+    }
+
+    @Test
+    public void testGarbageBetweenFramesIsSkipped() {
+        byte[] garbage = new byte[33];
+        Arrays.fill(garbage, (byte) 0xFF);
+        byte[] stream = new StandInCamera().writeSos().writeBytes(garbage).writeVideo(0, 100)
+                .writeBytes(garbage).writeVideo(3000, 100).writeEos().toByteArray();
+
+        mParser.feed(ByteBuffer.wrap(stream));
+
+        assertEquals(4, mListener.mEvents.size());
+        assertEquals(2, mFrameValidator.getResyncCount());
+        assertEquals(2 * garbage.length, mFrameValidator.getDiscardedBytes());
+    }
+
+    @Test
+    public void testBadLengthsAreSkipped() {
+        // Pts of -1 keeps shifted headers from passing as valid while bytes are discarded
+        StandInCamera camera = new StandInCamera();
+        camera.writeHeader(Frame.Type.VIDEO.value(), 0, -1);
+        camera.writeHeader(Frame.Type.VIDEO.value(), FrameValidator.DEFAULT_MAX_VIDEO_FRAME_SIZE + 1, -1);
+        camera.writeHeader(Frame.Type.AUDIO.value(), Frame.AAC_ADTS_HEADER, -1);
+        camera.writeHeader(Frame.Type.AUDIO.value(), -1, -1);
+        byte[] stream = camera.writeVideo(3000, 100).toByteArray();
+
+        mParser.feed(ByteBuffer.wrap(stream));
+
+        assertEquals(1, mListener.mEvents.size());
+        assertTrue(mListener.mEvents.get(0).startsWith("VIDEO v1 pts 3000"));
+        assertEquals(1, mFrameValidator.getResyncCount());
+        assertEquals(4 * PreviewStreamParser.WIRE_HEADER_LENGTH, mFrameValidator.getDiscardedBytes());
+    }
+
+    @Test
+    public void testBadTypeIsSkipped() {
+        byte[] payload = new byte[10];
+        Arrays.fill(payload, (byte) 0xFF);
+        StandInCamera camera = new StandInCamera();
+        camera.writeHeader(5, payload.length, -1).writeBytes(payload);
+        byte[] stream = camera.writeEos().toByteArray();
+
+        mParser.feed(ByteBuffer.wrap(stream));
+
+        assertEquals(Arrays.asList("EOS v1"), mListener.mEvents);
+        assertEquals(1, mFrameValidator.getResyncCount());
+        assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH + payload.length, mFrameValidator.getDiscardedBytes());
+    }
+
+    @Test
+    public void testStopLeavesRestUnconsumed() {
+        byte[] stream = new StandInCamera().writeVideo(0, 100).writeEos().writeVideo(3000, 100).toByteArray();
+        ByteBuffer input = ByteBuffer.wrap(stream);
+        mListener.stopAfter(2);
+
+        assertTrue(mParser.feed(input));
+
+        assertEquals(2, mListener.mEvents.size());
+        assertEquals(PreviewStreamParser.WIRE_HEADER_LENGTH + 100, input.remaining());
+    }
+
+    @Test
+    public void testResetDropsPartialFrame() {
+        byte[] partialStream = new StandInCamera().writeVideo(0, 100).toByteArray();
+        mParser.feed(ByteBuffer.wrap(partialStream, 0, PreviewStreamParser.WIRE_HEADER_LENGTH + 10));
+
+        mParser.reset();
+        mParser.feed(ByteBuffer.wrap(new StandInCamera().writeEos().toByteArray()));
+
+        assertEquals(Arrays.asList("EOS v1"), mListener.mEvents);
+    }
+
+    static byte[] createStream() {
+        StandInCamera camera = new StandInCamera().writeSos();
+        for (int i = 0; i < 20; i++) {
+            camera.writeVideo(i * 3000, 50 + 37 * i);
+            if (i % 2 == 0) {
+                camera.writeAudio(i * 3000, 8 + 11 * i);
+            }
+        }
+        return camera.writeEos().toByteArray();
+    }
+
+    static List<String> parseAtOnce(byte[] stream) {
+        RecordingFrameListener listener = new RecordingFrameListener();
+        new PreviewStreamParser(new FrameValidator(), listener).feed(ByteBuffer.wrap(stream));
+        return listener.mEvents;
+    }
+
+    static int[] randomChunkSizes(Random random, int maxChunkSize) {
+        int[] chunkSizes = new int[16];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = 1 + random.nextInt(maxChunkSize);
+        }
+        return chunkSizes;
+    }
+
+    /**
+     * Feeds stream the way server reads it: chunk is appended after unconsumed bytes, and buffer is
+     * compacted after each feed.
+     * @param chunkSizes sizes of consecutive chunks, repeated until stream ends
+     */
+    static void feedInChunks(PreviewStreamParser parser, byte[] stream, int[] chunkSizes) {
+        ByteBuffer buffer = ByteBuffer.allocate(stream.length);
+        int offset = 0;
+        for (int i = 0; offset < stream.length; i++) {
+            int chunkSize = Math.min(chunkSizes[i % chunkSizes.length], stream.length - offset);
+            buffer.put(stream, offset, chunkSize);
+            offset += chunkSize;
+            buffer.flip();
+            assertFalse(parser.feed(buffer));
+            buffer.compact();
+        }
+    }
+}
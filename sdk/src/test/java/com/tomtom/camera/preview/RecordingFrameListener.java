@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records frames reported by {@link PreviewStreamParser} as comparable strings, so that event
+ * sequences of different feeds can be compared.
+ */
+class RecordingFrameListener implements PreviewStreamParser.FrameListener {
+
+    final List<String> mEvents = new ArrayList<>();
+    private int mStopAfterEvents = Integer.MAX_VALUE;
+
+    /**
+     * Makes listener ask parser to stop once given number of events is recorded.
+     */
+    void stopAfter(int events) {
+        mStopAfterEvents = events;
+    }
+
+    @Override
+    public boolean onVideoFrame(int version, int pts, int status, ByteBuffer data) {
+        return record("VIDEO v" + version + " pts " + pts + " status " + status + " " + describe(data));
+    }
+
+    @Override
+    public boolean onAudioFrame(int version, int pts, int status, ByteBuffer data) {
+        return record("AUDIO v" + version + " pts " + pts + " status " + status + " " + describe(data));
+    }
+
+    @Override
+    public boolean onStartOfStream(int version) {
+        return record("SOS v" + version);
+    }
+
+    @Override
+    public boolean onEndOfStream(int version) {
+        return record("EOS v" + version);
+    }
+
+    private boolean record(String event) {
+        mEvents.add(event);
+        return mEvents.size() >= mStopAfterEvents;
+    }
+
+    private static String describe(ByteBuffer data) {
+        byte[] payload = new byte[data.remaining()];
+        data.duplicate().get(payload);
+        return payload.length + " bytes #" + Arrays.hashCode(payload);
+    }
+}
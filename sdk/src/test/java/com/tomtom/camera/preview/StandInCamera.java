@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stands in for camera side of preview wire protocol. Frames are encoded into a stream, which is
+ * then sent to preview server over loopback connection in small chunks, so that server reads
+ * partial headers and payloads.
+ */
+class StandInCamera {
+
+    static final int VERSION = 1;
+
+    private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+
+    StandInCamera writeSos() {
+        return writeHeader(Frame.Type.SOS.value(), 0, 0);
+    }
+
+    StandInCamera writeEos() {
+        return writeHeader(Frame.Type.EOS.value(), 0, 0);
+    }
+
+    StandInCamera writeVideo(int pts, int length) {
+        writeHeader(Frame.Type.VIDEO.value(), length, pts);
+        return writeBytes(payload(pts, length));
+    }
+
+    StandInCamera writeAudio(int pts, int length) {
+        writeHeader(Frame.Type.AUDIO.value(), length, pts);
+        return writeBytes(payload(pts, length));
+    }
+
+    /**
+     * Writes header with arbitrary fields, valid or not.
+     */
+    StandInCamera writeHeader(int type, int dataLength, int pts) {
+        ByteBuffer header = ByteBuffer.allocate(PreviewStreamParser.WIRE_HEADER_LENGTH);
+        header.putInt(VERSION).putInt(type).putInt(dataLength).putInt(pts).putInt(0);
+        return writeBytes(header.array());
+    }
+
+    StandInCamera writeBytes(byte[] bytes) {
+        mStream.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return mStream.toByteArray();
+    }
+
+    /**
+     * Connects to preview server and sends written stream.
+     * @param port server port
+     * @param chunkSize number of bytes sent at once
+     * @param sentBytes number of bytes of written stream to send, rest is dropped with connection
+     */
+    void sendTo(int port, int chunkSize, int sentBytes) throws IOException {
+        byte[] bytes = toByteArray();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream output = socket.getOutputStream();
+            for (int offset = 0; offset < sentBytes; offset += chunkSize) {
+                output.write(bytes, offset, Math.min(chunkSize, sentBytes - offset));
+                output.flush();
+                sleep(1);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    void sendTo(int port, int chunkSize) throws IOException {
+        sendTo(port, chunkSize, toByteArray().length);
+    }
+
+    /**
+     * Payload recognizable by its pts, see {@link #isPayloadOf(Frame)}.
+     */
+    static byte[] payload(int pts, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (pts + i);
+        }
+        return payload;
+    }
+
+    static boolean isPayloadOf(Frame frame) {
+        ByteBuffer buffer = frame.getBuffer();
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        return Arrays.equals(payload(frame.getPts(), payload.length), payload);
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks READY hysteresis of {@link StreamBuffer} when producer and consumer race.
+ */
+public class StreamBufferTest {
+
+    private static final int ROUNDS = 2000;
+
+    private final AtomicInteger mReadyCount = new AtomicInteger();
+    private final AtomicInteger mNotReadyCount = new AtomicInteger();
+
+    private final StreamBufferCallback mCallback = new StreamBufferCallback() {
+        @Override
+        public void onEmpty() {
+            mNotReadyCount.incrementAndGet();
+        }
+
+        @Override
+        public void onLow() {
+            mNotReadyCount.incrementAndGet();
+        }
+
+        @Override
+        public void onReady() {
+            mReadyCount.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void testConcurrentDrainAndRefillEndsReady() throws InterruptedException {
+        // Low at 3 frames or less, ready above 5
+        final StreamBuffer<Integer> buffer = new StreamBuffer<>(mCallback, 16, 3, 5);
+        queue(buffer, 6);
+        assertEquals(StreamBuffer.BufferState.READY, buffer.getBufferState());
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < 3; i++) {
+                        buffer.dequeue();
+                    }
+                }
+            });
+            consumer.start();
+            start.countDown();
+            queue(buffer, 3);
+            consumer.join();
+
+            // Whatever the interleaving, six frames are above ready limit again
+            assertEquals("round " + round, 6, buffer.size());
+            assertEquals("round " + round, StreamBuffer.BufferState.READY, buffer.getBufferState());
+            assertEquals("round " + round, mNotReadyCount.get() + 1, mReadyCount.get());
+        }
+    }
+
+    private static void queue(StreamBuffer<Integer> buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            buffer.queue(i);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tomtom.camera.preview;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Scheduler running on virtual time, for deterministic simulation of playback timing on JVM. Time
+ * only moves with {@link #advanceTimeBy(long, TimeUnit)}, which runs due tasks on calling thread
+ * in order of their time and submission. Tasks take no virtual time.
+ */
+class VirtualTimeScheduler extends AbstractExecutorService implements ScheduledExecutorService, TimeSource {
+
+    private final PriorityQueue<VirtualTask<?>> mTasks = new PriorityQueue<>();
+    private long mNowNanos;
+    private long mSequence;
+    private boolean mIsShutdown;
+
+    @Override
+    public synchronized long nanoTime() {
+        return mNowNanos;
+    }
+
+    /**
+     * Advances time by given duration, running tasks which become due, including ones they
+     * schedule within that duration.
+     * @param duration duration to advance by
+     * @param unit unit of duration
+     */
+    void advanceTimeBy(long duration, TimeUnit unit) {
+        long targetNanos;
+        synchronized (this) {
+            targetNanos = mNowNanos + unit.toNanos(duration);
+        }
+        while (true) {
+            VirtualTask<?> task;
+            synchronized (this) {
+                task = mTasks.peek();
+                if (task == null || task.mTimeNanos > targetNanos) {
+                    mNowNanos = targetNanos;
+                    return;
+                }
+                mTasks.poll();
+                mNowNanos = Math.max(mNowNanos, task.mTimeNanos);
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * Runs tasks which are due at current time.
+     */
+    void runDueTasks() {
+        advanceTimeBy(0, NANOSECONDS);
+    }
+
+    /**
+     * Provides number of scheduled tasks which weren't cancelled.
+     * @return pending task count
+     */
+    synchronized int getPendingTaskCount() {
+        int count = 0;
+        for (VirtualTask<?> task : mTasks) {
+            if (!task.isCancelled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new VirtualTask<Void>(command, null, toTimeNanos(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new VirtualTask<>(callable, toTimeNanos(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period has to be positive");
+        }
+        return enqueue(new VirtualTask<Void>(command, null, toTimeNanos(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    /**
+     * Tasks take no virtual time, so fixed delay is the same as fixed rate.
+     */
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mIsShutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        mIsShutdown = true;
+        List<Runnable> tasks = new ArrayList<Runnable>(mTasks);
+        mTasks.clear();
+        return tasks;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return mIsShutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return mIsShutdown && mTasks.isEmpty();
+    }
+
+    /**
+     * Nothing runs unless time is advanced, so waiting for termination doesn't block.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private synchronized long toTimeNanos(long delay, TimeUnit unit) {
+        return mNowNanos + Math.max(0, unit.toNanos(delay));
+    }
+
+    private synchronized <V> VirtualTask<V> enqueue(VirtualTask<V> task) {
+        if (mIsShutdown) {
+            throw new RejectedExecutionException("Scheduler is shut down");
+        }
+        task.mSequence = mSequence++;
+        mTasks.offer(task);
+        return task;
+    }
+
+    private class VirtualTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        private long mTimeNanos;
+        private final long mPeriodNanos;
+        private long mSequence;
+
+        VirtualTask(Runnable runnable, V result, long timeNanos, long periodNanos) {
+            super(runnable, result);
+            mTimeNanos = timeNanos;
+            mPeriodNanos = periodNanos;
+        }
+
+        VirtualTask(Callable<V> callable, long timeNanos) {
+            super(callable);
+            mTimeNanos = timeNanos;
+            mPeriodNanos = 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                mTimeNanos += mPeriodNanos;
+                synchronized (VirtualTimeScheduler.this) {
+                    if (!mIsShutdown) {
+                        mTasks.offer(this);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Task runs on thread advancing time, which is the caller of cancel when task cancels
+         * itself, so that thread isn't interrupted.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return super.cancel(false);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return mPeriodNanos > 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mTimeNanos - nanoTime(), NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            VirtualTask<?> otherTask = (VirtualTask<?>) other;
+            if (mTimeNanos != otherTask.mTimeNanos) {
+                return mTimeNanos < otherTask.mTimeNanos ? -1 : 1;
+            }
+            return mSequence < otherTask.mSequence ? -1 : 1;
+        }
+    }
+}
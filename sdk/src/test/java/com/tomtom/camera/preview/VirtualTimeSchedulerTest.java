@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012-2016. TomTom International BV (http://tomtom.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tomtom.camera.preview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualTimeSchedulerTest {
+
+    private VirtualTimeScheduler mScheduler;
+    private List<String> mEvents;
+
+    @Before
+    public void setUp() {
+        mScheduler = new VirtualTimeScheduler();
+        mEvents = new ArrayList<>();
+    }
+
+    @Test
+    public void testTasksRunInTimeThenSubmissionOrder() {
+        mScheduler.schedule(record("b"), 20, MILLISECONDS);
+        mScheduler.schedule(record("a"), 10, MILLISECONDS);
+        mScheduler.schedule(record("c"), 20, MILLISECONDS);
+
+        mScheduler.advanceTimeBy(15, MILLISECONDS);
+        assertEquals(Arrays.asList("a@10"), mEvents);
+        assertEquals(MILLISECONDS.toNanos(15), mScheduler.nanoTime());
+
+        mScheduler.advanceTimeBy(5, MILLISECONDS);
+        assertEquals(Arrays.asList("a@10", "b@20", "c@20"), mEvents);
+    }
+
+    @Test
+    public void testTasksScheduledByTasksRunWithinAdvance() {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.schedule(record("nested"), 10, MILLISECONDS);
+            }
+        }, 10, MILLISECONDS);
+
+        mScheduler.advanceTimeBy(20, MILLISECONDS);
+
+        assertEquals(Arrays.asList("nested@20"), mEvents);
+        assertEquals(0, mScheduler.getPendingTaskCount());
+    }
+
+    @Test
+    public void testPeriodicTaskRunsUntilCancelled() {
+        ScheduledFuture<?> future = mScheduler.scheduleAtFixedRate(record("tick"), 5, 10, MILLISECONDS);
+
+        mScheduler.advanceTimeBy(30, MILLISECONDS);
+        future.cancel(false);
+        mScheduler.advanceTimeBy(30, MILLISECONDS);
+
+        assertEquals(Arrays.asList("tick@5", "tick@15", "tick@25"), mEvents);
+        assertEquals(0, mScheduler.getPendingTaskCount());
+    }
+
+    @Test
+    public void testCancellingRunningTaskDoesntInterruptThread() {
+        final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+        future[0] = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future[0].cancel(true);
+            }
+        }, 10, MILLISECONDS);
+
+        mScheduler.advanceTimeBy(10, MILLISECONDS);
+
+        assertFalse(Thread.interrupted());
+    }
+
+    @Test
+    public void testExecuteRunsOnlyOnceTimeIsAdvanced() {
+        mScheduler.execute(record("now"));
+        assertTrue(mEvents.isEmpty());
+
+        mScheduler.runDueTasks();
+
+        assertEquals(Arrays.asList("now@0"), mEvents);
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testShutdownRejectsTasks() {
+        mScheduler.shutdown();
+        mScheduler.execute(record("rejected"));
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mEvents.add(name + "@" + NANOSECONDS.toMillis(mScheduler.nanoTime()));
+            }
+        };
+    }
+}